@@ -1,4 +1,3 @@
-import com.google.gson.Gson;
 import org.junit.Test;
 import org.junit.Assert;
 
@@ -54,34 +53,10 @@ public class AggrServerTest {
             }
 
             if (isJson) {
-                StringBuilder jsonResponse = new StringBuilder();
-                String bodyLine;
-                while ((bodyLine = in.readLine()) != null) {
-                    jsonResponse.append(bodyLine);
-                }
-
-                // Print the raw JSON response to see what is returned
-                System.out.println("Raw JSON Response: " + jsonResponse.toString());
-
-                // Parse and display the weather data
-                Gson gson = new Gson();
-                GETClient.WeatherData[] weatherDataArray = gson.fromJson(jsonResponse.toString(), GETClient.WeatherData[].class);
-
+                // Parse and display the weather data station by station, without holding the whole body
                 System.out.println("Weather Data:");
-                for (GETClient.WeatherData weatherData : weatherDataArray) {
-                    System.out.println("ID: " + weatherData.id);
-                    System.out.println("Name: " + weatherData.name);
-                    System.out.println("Air Temperature: " + weatherData.air_temp);
-                    System.out.println("Apparent Temperature: " + weatherData.apparent_t);
-                    System.out.println("Cloud: " + weatherData.cloud);
-                    System.out.println("Dew Point: " + weatherData.dewpt);
-                    System.out.println("Pressure: " + weatherData.press);
-                    System.out.println("Relative Humidity: " + weatherData.rel_hum);
-                    System.out.println("Wind Direction: " + weatherData.wind_dir);
-                    System.out.println("Wind Speed (km/h): " + weatherData.wind_spd_kmh);
-                    System.out.println("Wind Speed (knots): " + weatherData.wind_spd_kt);
-                    System.out.println("---------------------------");
-                }
+                int stations = GETClient.readStations(in, GETClient::printStation);
+                System.out.println("Received " + stations + " stations");
             } else {
                 System.out.println("No JSON data received.");
             }
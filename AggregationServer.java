@@ -1,192 +1,1721 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 
 public class AggregationServer {
     private static final String STORAGE_FILE = "File.json";
-    private static Map<String, WeatherData> weatherDataStore = new ConcurrentHashMap<>();
+    private static final String SNAPSHOT_FILE = "File.snapshot";
+    // Compaction writes binary snapshots unless -Daggregation.snapshotFormat=json
+    private static final boolean BINARY_SNAPSHOTS = !"json".equalsIgnoreCase(System.getProperty("aggregation.snapshotFormat", "binary"));
+    // -Daggregation.store=columnar keeps readings in primitive columns instead of WeatherData objects
+    private static Map<String, WeatherData> weatherDataStore =
+            "columnar".equalsIgnoreCase(System.getProperty("aggregation.store", "map"))
+                    ? new ColumnarWeatherStore()
+                    : new ConcurrentHashMap<>();
 
     // Adding an identifier for LamportClock
     private static LamportClock lamportClock = new LamportClock("AggregationServer");
 
-    private static final long EXPIRATION_TIME_MS = 30000; // 30 seconds
+    // Readings expire after the TTL (30 seconds by default), checked every resolution tick
+    private static final long EXPIRATION_TIME_MS = Long.getLong("aggregation.ttlMs", 30000);
+    private static final long EXPIRATION_RESOLUTION_MS = Long.getLong("aggregation.expiryResolutionMs", 100);
+    private static final ExpirationWheel expirationWheel =
+            new ExpirationWheel(EXPIRATION_TIME_MS, EXPIRATION_RESOLUTION_MS, System.currentTimeMillis());
     private static final Gson gson = new Gson();  // Using Gson for JSON handling
 
+    // Bumped on every change to weatherDataStore, the GET response is cached per version
+    private static final AtomicLong storeVersion = new AtomicLong();
+    private static final ResponseCache fullStoreResponse = new ResponseCache();
+    // tells the store versions of this run from those of an earlier one, which started from 0 as well
+    private static final String ETAG_EPOCH = Long.toString(System.currentTimeMillis(), 36);
+    private static final int GZIP_MIN_BYTES = Integer.getInteger("aggregation.gzipMinBytes", 1024);
+
+    // Latest change of every station by Lamport time, for GET ?since=; tombstones are kept for the retention time
+    private static final ChangeIndex changeIndex = new ChangeIndex(Long.getLong("aggregation.tombstoneRetentionMs", 600000));
+
+    // Recent readings and rolling statistics of every station, for ?from=&to= and ?trend=true
+    private static final StationHistory history = StationHistory.fromSystemProperties();
+    private static final GeoIndex geoIndex = GeoIndex.fromSystemProperties();
+    private static final int MAX_NEAREST = Integer.getInteger("aggregation.maxNearest", 1000);
+
+    // GET /subscribe clients, a long-poll waits at most LONG_POLL_TIMEOUT_MS for updates
+    private static final SubscriptionHub subscriptions = SubscriptionHub.fromSystemProperties();
+    private static final long LONG_POLL_TIMEOUT_MS = Long.getLong("aggregation.longPollTimeoutMs", 25000);
+
+    // Persistent connections are closed after this much idle time or this many requests
+    private static final int KEEP_ALIVE_TIMEOUT_MS = Integer.getInteger("aggregation.keepAliveTimeoutMs", 15000);
+    private static final int MAX_REQUESTS_PER_CONNECTION = Integer.getInteger("aggregation.maxRequestsPerConnection", 10000);
+
+    // Runs the ClientHandlers, configured with -Daggregation.executor=virtual|pooled
+    private static ConnectionExecutor connectionExecutor;
+    private static volatile ServerSocket serverSocket;
+
+    // Accepted PUTs are appended here and folded into STORAGE_FILE by compactStorage()
+    private static volatile WriteAheadLog writeAheadLog;
+    private static final long COMPACTION_THRESHOLD_BYTES = Long.getLong("aggregation.wal.compactBytes", 8 * 1024 * 1024);
+    private static final long COMPACTION_CHECK_MS = Long.getLong("aggregation.wal.compactCheckMs", 5000);
+
+    // Request counts and stage latencies, served with the gauges below on GET /metrics
+    private static final Metrics metrics = new Metrics();
+
+    // Access and error log of the request path, written by a background thread
+    private static final AsyncLog log = AsyncLog.fromSystemProperties();
+
+    // Primary/backup replication, null unless -Daggregation.role or -Daggregation.backups is set
+    private static volatile Replication replication;
+
+    // Sharded cluster membership, null unless -Daggregation.ring is set
+    private static volatile Sharding sharding;
+
+    // Set when the server runs with -Daggregation.engine=nio
+    private static volatile NioServerEngine nioEngine;
+
     public static void main(String[] args) {
         int port = 4567;
         if (args.length > 0) {
             port = Integer.parseInt(args[0]);
         }
 
+        try {
+            openWriteAheadLog();
+        } catch (IOException e) {
+            System.err.println("Error opening write-ahead log: " + e.getMessage());
+            return;
+        }
         loadWeatherDataFromFile();
 
-        // Schedule periodic data expiration
+        replication = Replication.fromSystemProperties(port, () -> new ArrayList<>(weatherDataStore.values()), AggregationServer::sendClock);
+        if (replication != null) {
+            replication.start();
+        }
+        sharding = Sharding.fromSystemProperties(port);
+        if (sharding != null) {
+            System.out.println("Sharding: " + sharding);
+        }
+
+        // Schedule periodic data expiration, one tick of the expiration wheel at a time
         Timer timer = new Timer(true);
         timer.scheduleAtFixedRate(new TimerTask() {
             @Override
             public void run() {
                 expireOldData();
+                subscriptions.expireIdle(System.currentTimeMillis());
             }
-        }, 0, 5000);
+        }, 0, expirationWheel.getResolutionMs());
+
+        // Fold the write-ahead log into the snapshot once it has grown large enough.
+        // This runs on its own timer so a slow compaction does not hold up expiration.
+        Timer compactionTimer = new Timer("compaction", true);
+        compactionTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                if (writeAheadLog.getSegmentSize() >= COMPACTION_THRESHOLD_BYTES) {
+                    compactStorage();
+                }
+            }
+        }, COMPACTION_CHECK_MS, COMPACTION_CHECK_MS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(AggregationServer::shutdown));
+
+        if ("nio".equalsIgnoreCase(System.getProperty("aggregation.engine", "blocking"))) {
+            runNioEngine(port);
+            return;
+        }
+
+        connectionExecutor = ConnectionExecutor.fromSystemProperties();
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Aggregation Server running on port " + port);
+        try (ServerSocket socket = new ServerSocket(port)) {
+            serverSocket = socket;
+            System.out.println("Aggregation Server running on port " + port + " (" + connectionExecutor.getMode() + " connections)");
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(new ClientHandler(clientSocket)).start();
+            while (!connectionExecutor.isShutdown()) {
+                Socket clientSocket = socket.accept();
+                if (!connectionExecutor.submit(new ClientHandler(clientSocket, connectionExecutor))) {
+                    rejectConnection(clientSocket);
+                }
             }
+        } catch (IOException e) {
+            if (serverSocket == null || !serverSocket.isClosed()) {
+                System.err.println("Error while starting server: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void runNioEngine(int port) {
+        int eventLoops = Integer.getInteger("aggregation.nioThreads", Runtime.getRuntime().availableProcessors());
+        nioEngine = new NioServerEngine(port, eventLoops);
+        try {
+            nioEngine.run();
         } catch (IOException e) {
             System.err.println("Error while starting server: " + e.getMessage());
         }
     }
 
+    // Stops accepting connections and lets the running handlers finish
+    static void shutdown() {
+        if (nioEngine != null) {
+            nioEngine.shutdown();
+        } else if (connectionExecutor != null && !connectionExecutor.isShutdown()) {
+            System.out.println("Shutting down, " + connectionExecutor + ", " + expirationWheel + ", " + subscriptions + ", " + log);
+            try {
+                if (serverSocket != null) {
+                    serverSocket.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Error closing server socket: " + e.getMessage());
+            }
+            connectionExecutor.shutdown(5000);
+        }
+        if (replication != null) {
+            replication.stop();
+        }
+        if (sharding != null) {
+            sharding.close();
+        }
+        closeWriteAheadLog();
+        log.close();
+    }
+
+    static int getActiveConnections() {
+        if (nioEngine != null) {
+            return nioEngine.getOpenConnections();
+        }
+        return connectionExecutor == null ? 0 : connectionExecutor.getActiveConnections();
+    }
+
+    static int getQueuedConnections() {
+        return connectionExecutor == null ? 0 : connectionExecutor.getQueuedConnections();
+    }
+
+    // Answers a connection the executor had no room for and closes it
+    static void rejectConnection(Socket clientSocket) {
+        try (Socket socket = clientSocket;
+             OutputStream out = socket.getOutputStream()) {
+            new HttpResponse(503).header("Retry-After", "1")
+                    .writeTo(out, false, sendClock());
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error rejecting connection: " + e.getMessage());
+        }
+    }
+
     static class ClientHandler implements Runnable {
         private Socket socket;
+        private final ConnectionExecutor executor;
+        private final long acceptedNanos = System.nanoTime();
+        private boolean holdsKeepAlive;
 
-        public ClientHandler(Socket socket) {
+        public ClientHandler(Socket socket, ConnectionExecutor executor) {
             this.socket = socket;
+            this.executor = executor;
         }
 
+        /**
+         * Serves requests on the connection until the client closes it, asks for "Connection: close"
+         * or stays idle for longer than the keep-alive timeout. A connection that finds every keep-alive
+         * slot of the executor taken is closed after its response, so idle clients cannot fill the pool.
+         * Pipelined requests are answered in order, and responses are flushed once all requests that
+         * have already arrived are answered.
+         */
         @Override
         public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            metrics.recordSince(Metrics.Stage.ACCEPT, acceptedNanos);
+            try (Socket s = socket;
+                 InputStream in = s.getInputStream();
+                 OutputStream out = new BufferedOutputStream(s.getOutputStream())) {
 
-                String request = in.readLine();
-                String line;
-                String method = "";
-                if (request.startsWith("PUT"))
-                    method = "PUT";
-                else if (request.startsWith("GET")) {
-                    method = "GET";
-                } else {
-                    method = "";
+                s.setSoTimeout(KEEP_ALIVE_TIMEOUT_MS);
+                HttpRequestParser parser = new HttpRequestParser();
+                byte[] readBuffer = new byte[8192];
+                ByteBuffer buffer = ByteBuffer.wrap(readBuffer, 0, 0);
+                int served = 0;
+
+                while (true) {
+                    HttpRequest request;
+                    try {
+                        long parseStart = System.nanoTime();
+                        request = parser.parse(buffer);
+                        if (request != null) {
+                            metrics.recordSince(Metrics.Stage.PARSE, parseStart);
+                        }
+                    } catch (ProtocolException e) {
+                        log.warn("invalid_request", "error", e.getMessage());
+                        new HttpResponse(400).writeTo(out, false, sendClock());
+                        out.flush();
+                        return;
+                    }
+
+                    if (request == null) {
+                        out.flush();
+                        int count = readSafely(in, readBuffer);
+                        if (count < 0) {
+                            request = parser.finish();
+                            if (request == null) {
+                                return;
+                            }
+                        } else {
+                            buffer = ByteBuffer.wrap(readBuffer, 0, count);
+                            continue;
+                        }
+                    }
+
+                    boolean keepAlive = request.isKeepAlive() && ++served < MAX_REQUESTS_PER_CONNECTION && holdKeepAlive();
+                    // a subscriber holds this thread while it waits, so only so many may wait, see ConnectionExecutor
+                    boolean subscriber = "/subscribe".equals(request.getPath());
+                    if (subscriber && !executor.tryHoldSubscriber()) {
+                        log.warn("subscriber_rejected", "waiting", executor.getWaitingSubscribers());
+                        subscribersFull().writeTo(out, keepAlive, sendClock());
+                        if (!keepAlive) {
+                            out.flush();
+                            return;
+                        }
+                        continue;
+                    }
+                    HttpResponse response;
+                    try {
+                        response = awaitDeferred(handleRequest(request));
+                        if (response.getEventStream() != null) {
+                            out.flush();
+                            streamEvents(out, response);
+                            return;
+                        }
+                    } finally {
+                        if (subscriber) {
+                            executor.releaseSubscriber();
+                        }
+                    }
+                    response.writeTo(out, keepAlive, sendClock());
+                    if (!keepAlive) {
+                        out.flush();
+                        return;
+                    }
                 }
 
-                while ((line = in.readLine()) != null && !line.isEmpty()) {
-                    System.out.println(line);
+            } catch (IOException e) {
+                log.warn("connection_error", "error", e.getMessage());
+            } finally {
+                if (holdsKeepAlive) {
+                    executor.releaseKeepAlive();
                 }
-                lamportClock.update();
+            }
+        }
 
-                if (request.startsWith("PUT")) {
-                    handlePutRequest(in, out);
-                } else if (request.startsWith("GET")) {
-                    handleGetRequest(out);
-                } else {
-                    out.println("HTTP/1.1 400 Bad Request");
-                    out.println();
-                    System.err.println("Received an invalid request: " + request);
+        // Takes one of the executor's keep-alive slots for this connection, the first time it is kept open
+        private boolean holdKeepAlive() {
+            if (!holdsKeepAlive) {
+                holdsKeepAlive = executor.tryHoldKeepAlive();
+            }
+            return holdsKeepAlive;
+        }
+
+        private HttpResponse subscribersFull() {
+            return new HttpResponse(503).header("Retry-After", "5")
+                    .body("text/plain", "Too many waiting subscribers, try again later");
+        }
+
+        // A long-poll holds this connection's thread until its answer is ready
+        private HttpResponse awaitDeferred(HttpResponse response) {
+            if (response.getDeferred() == null) {
+                return response;
+            }
+            try {
+                return response.getDeferred().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new HttpResponse(503);
+            } catch (ExecutionException e) {
+                log.error("long_poll_failed", "error", e.getCause().getMessage());
+                return new HttpResponse(500);
+            }
+        }
+
+        // Writes the events of the subscription until the client goes away; the connection ends with the stream
+        private void streamEvents(OutputStream out, HttpResponse head) throws IOException {
+            SubscriptionHub.Subscription subscription = head.getEventStream();
+            try {
+                head.writeTo(out, false, sendClock());
+                out.flush();
+                while (!Thread.currentThread().isInterrupted()) {
+                    SubscriptionHub.Delivery delivery = subscription.next(SubscriptionHub.STREAM_PING_MS).get();
+                    out.write(SubscriptionHub.toEventStream(delivery));
+                    out.flush();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                log.error("event_stream_failed", "error", e.getCause().getMessage());
+            } finally {
+                subscriptions.unsubscribe(subscription);
+            }
+        }
 
-            } catch (IOException e) {
-                System.err.println("Error handling client request: " + e.getMessage());
+        // Returns -1 when the client closed the connection or has been idle for too long
+        private int readSafely(InputStream in, byte[] readBuffer) throws IOException {
+            try {
+                return in.read(readBuffer);
+            } catch (SocketTimeoutException e) {
+                return -1;
             }
         }
+    }
 
-        private void handlePutRequest(BufferedReader in, PrintWriter out) {
-            lamportClock.update();
+    /**
+     * Handles one parsed request, shared by the blocking ClientHandler and the NioServerEngine.
+     * Counts the request by method and status and records how long it took; a long-poll is counted
+     * when its answer is ready.
+     */
+    static HttpResponse handleRequest(HttpRequest request) {
+        long start = System.nanoTime();
+        if (log.isEnabled(AsyncLog.Level.DEBUG)) {
+            log.debug("request", "method", request.getMethod(), "target", request.getTarget(), "headers", request.getHeaders());
+        }
+        HttpResponse response = dispatch(request);
+        if (response.getDeferred() != null) {
+            response.getDeferred().whenComplete((answer, error) ->
+                    recordRequest(request, (error == null) ? answer.getStatusCode() : 500, start));
+        } else {
+            recordRequest(request, response.getStatusCode(), start);
+        }
+        return response;
+    }
+
+    private static void recordRequest(HttpRequest request, int statusCode, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        metrics.record(Metrics.Stage.REQUEST, nanos);
+        metrics.countRequest(request.getMethod(), statusCode);
+        log.info("access", "method", request.getMethod(), "path", request.getPath(), "status", statusCode, "micros", nanos / 1000);
+    }
 
+    private static HttpResponse dispatch(HttpRequest request) {
+        if (!hasValidClock(request)) {
+            log.warn("invalid_lamport_clock", "value", request.getHeader("Lamport-Clock"));
+            return new HttpResponse(400).body("text/plain",
+                    "Lamport-Clock must be a number from 0 to " + LamportClock.MAX_RECEIVED_TIME);
+        }
+        if ("PUT".equals(request.getMethod()) && "/replicate".equals(request.getPath())) {
+            return handleReplicateRequest(request);
+        }
+        if ("PUT".equals(request.getMethod()) && "/ring".equals(request.getPath())) {
+            receiveClock(request);
+            return handleRingRequest(request);
+        }
+        if ("PUT".equals(request.getMethod()) && "/handoff".equals(request.getPath())) {
+            return handleHandoffRequest(request);
+        }
+        Replication replication = AggregationServer.replication;
+        if ("PUT".equals(request.getMethod()) && replication != null && replication.isReadOnly()) {
+            receiveClock(request);
+            String primary = replication.getPrimary();
+            return new HttpResponse(503).header("Retry-After", "1")
+                    .body("text/plain", "Read-only backup, PUT to the primary" + (primary == null ? "" : " " + primary));
+        }
+        if ("PUT".equals(request.getMethod())) {
+            // the PUT's Lamport time stays in flight until it is stored, see ChangeIndex
+            long receiveTime = changeIndex.begin(() -> receiveClock(request));
             try {
-                StringBuilder jsonData = new StringBuilder();
-                String line;
-                boolean hasContent = false;
+                if (WeatherBatch.isBatch(request)) {
+                    return handleBatchPutRequest(request, receiveTime);
+                }
+                return handlePutRequest(request, receiveTime);
+            } finally {
+                changeIndex.end(receiveTime);
+            }
+        }
+
+        receiveClock(request);
+        if ("GET".equals(request.getMethod()) && "/metrics".equals(request.getPath())) {
+            return handleMetricsRequest();
+        } else if ("GET".equals(request.getMethod()) && "/subscribe".equals(request.getPath())) {
+            return handleSubscribeRequest(request);
+        } else if ("GET".equals(request.getMethod()) && isRouted(request) && request.getQueryParameter("since") == null) {
+            return compress(request, handleShardedGet(request));
+        } else if ("GET".equals(request.getMethod()) && isRouted(request) && sharding.getRing().getNodes().size() > 1) {
+            // every node has its own Lamport times, so one since= cannot stand for the changes of all of them
+            return new HttpResponse(400).body("text/plain",
+                    "since is not supported across a sharded cluster, ask each node with the " + Sharding.LOCAL_HEADER + ": true header");
+        } else if ("GET".equals(request.getMethod())) {
+            return handleConditionalGet(request);
+        } else {
+            log.warn("unsupported_method", "method", request.getMethod(), "target", request.getTarget());
+            return new HttpResponse(400);
+        }
+    }
+
+    // False if the request has a Lamport-Clock header the clock cannot take, such as a negative time or one near Long.MAX_VALUE
+    private static boolean hasValidClock(HttpRequest request) {
+        String header = request.getHeader("Lamport-Clock");
+        if (header == null) {
+            return true;
+        }
+        try {
+            return LamportClock.isValidTime(Long.parseLong(header.trim()));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Receive event of the Lamport clock: merges the sender's Lamport-Clock header if it has one,
+     * otherwise just ticks. Returns the clock value assigned to this request.
+     */
+    static long receiveClock(HttpRequest request) {
+        String header = request.getHeader("Lamport-Clock");
+        if (header != null) {
+            try {
+                return lamportClock.update(Long.parseLong(header.trim()));
+            } catch (IllegalArgumentException e) {
+                log.warn("invalid_lamport_clock", "value", header);
+            }
+        }
+        return lamportClock.update();
+    }
 
-                while ((line = in.readLine()) != null && !line.isEmpty()) {
-                    jsonData.append(line);
-                    hasContent = true;
+    // Send event of the Lamport clock, the value goes into the Lamport-Clock header of the response
+    static long sendClock() {
+        return lamportClock.update();
+    }
+
+    private static HttpResponse handlePutRequest(HttpRequest request, long lamportTime) {
+        String jsonData = request.getBody();
+        try {
+            if (jsonData.isEmpty()) {
+                log.info("empty_put");
+                return new HttpResponse(204);
+            }
+
+            // request bodies only go to the log when asked for, see AsyncLog
+            if (log.logsPayloads()) {
+                log.debug("put_body", "body", jsonData);
+            }
+
+            // Manually parse the JSON data into a WeatherData object, once
+            WeatherData weatherData = new WeatherData();
+            long decodeStart = System.nanoTime();
+            try {
+                weatherData.fromJson(jsonData);
+            } catch (IllegalArgumentException e) {
+                log.warn("malformed_weather_data", "error", e.getMessage());
+                return new HttpResponse(400).body("text/plain", e.getMessage());
+            }
+            metrics.recordSince(Metrics.Stage.DECODE, decodeStart);
+            if (log.logsPayloads()) {
+                log.debug("put_parsed", "weatherData", weatherData);
+            }
+
+            if (weatherData.getId() == null || weatherData.getId().isEmpty()) {
+                log.warn("missing_weather_data_id");
+                return new HttpResponse(400);
+            }
+
+            // a station of another node goes there, see Sharding
+            if (isRouted(request) && !sharding.owns(weatherData.getId())) {
+                return forwardPut(sharding.ownerOf(weatherData.getId()), request, lamportTime);
+            }
+
+            // Update the weather data store
+            weatherData.setLamportTimestamp(lamportTime);
+            weatherData.setTimestamp(System.currentTimeMillis());
+            long storeStart = System.nanoTime();
+            boolean isNewEntry = storeIfNewer(weatherData) == null;
+            metrics.recordSince(Metrics.Stage.STORE, storeStart);
+
+            // only acknowledge the PUT once it is in the write-ahead log
+            long persistStart = System.nanoTime();
+            persist(weatherData);
+            metrics.recordSince(Metrics.Stage.PERSIST, persistStart);
+
+            return new HttpResponse(isNewEntry ? 201 : 200);
+
+        } catch (IOException | RuntimeException e) {
+            log.error("put_failed", "error", e.getMessage());
+            return new HttpResponse(500);
+        }
+    }
+
+    /**
+     * Stores every record of a batch PUT with one write-ahead log commit and one store version bump,
+     * and answers with the status of each record. Records in the batch get consecutive Lamport times,
+     * so a station that appears twice ends with its last reading.
+     */
+    private static HttpResponse handleBatchPutRequest(HttpRequest request, long lamportTime) {
+        String contentType = request.getHeader("Content-Type");
+        boolean ndjson = contentType != null && contentType.toLowerCase().startsWith(WeatherBatch.NDJSON);
+
+        List<WeatherBatch.Record> records;
+        long decodeStart = System.nanoTime();
+        try {
+            records = WeatherBatch.parse(request.getBody(), ndjson);
+        } catch (IllegalArgumentException e) {
+            log.warn("malformed_weather_data_batch", "error", e.getMessage());
+            return new HttpResponse(400).body("text/plain", e.getMessage());
+        }
+        metrics.recordSince(Metrics.Stage.DECODE, decodeStart);
+        log.debug("batch_put", "records", records.size());
+
+        try {
+            // records of other nodes are sent there while this node stores its own
+            Map<String, List<WeatherBatch.Record>> remote = isRouted(request)
+                    ? groupRemoteRecords(records) : Collections.emptyMap();
+            Map<String, Future<Sharding.Response>> forwarded = new LinkedHashMap<>();
+            Set<WeatherBatch.Record> remoteRecords = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Map.Entry<String, List<WeatherBatch.Record>> node : remote.entrySet()) {
+                forwarded.put(node.getKey(), forwardBatch(node.getKey(), node.getValue(), lamportTime));
+                remoteRecords.addAll(node.getValue());
+            }
+
+            List<WeatherData> accepted = new ArrayList<>(records.size());
+            long now = System.currentTimeMillis();
+            long time = lamportTime;
+            long storeStart = System.nanoTime();
+            for (WeatherBatch.Record record : records) {
+                if (!record.isValid() || remoteRecords.contains(record)) {
+                    continue;
+                }
+                if (!accepted.isEmpty()) {
+                    time = lamportClock.update();
+                }
+                WeatherData weatherData = record.getWeatherData();
+                weatherData.setLamportTimestamp(time);
+                weatherData.setTimestamp(now);
+                record.setStatus(storeReading(weatherData) == null ? 201 : 200);
+                accepted.add(weatherData);
+            }
+            if (!accepted.isEmpty()) {
+                storeVersion.incrementAndGet();
+            }
+            metrics.recordSince(Metrics.Stage.STORE, storeStart);
+
+            // only acknowledge the batch once all of it is in the write-ahead log
+            long persistStart = System.nanoTime();
+            persistAll(accepted);
+            metrics.recordSince(Metrics.Stage.PERSIST, persistStart);
+
+            for (Map.Entry<String, Future<Sharding.Response>> node : forwarded.entrySet()) {
+                collectForwardedResults(node.getKey(), node.getValue(), remote.get(node.getKey()));
+            }
+
+            return new HttpResponse(200).body("application/json", WeatherBatch.resultsJson(records));
+
+        } catch (IOException | RuntimeException e) {
+            log.error("batch_put_failed", "error", e.getMessage());
+            return new HttpResponse(500);
+        }
+    }
+
+    /**
+     * PUT /replicate from the primary: an NDJSON batch of readings with their Lamport and receive times,
+     * applied like a replayed PUT so a reading that arrives twice or late changes nothing. An empty batch
+     * is a heartbeat. Answers 409 Conflict with this server's term if the sender is no longer the primary.
+     */
+    private static HttpResponse handleReplicateRequest(HttpRequest request) {
+        receiveClock(request);
+        Replication replication = AggregationServer.replication;
+        if (replication == null) {
+            return new HttpResponse(400).body("text/plain", "Replication is not enabled on this server");
+        }
+
+        long term;
+        try {
+            term = Long.parseLong(request.getHeader(Replication.TERM_HEADER).trim());
+        } catch (NullPointerException | NumberFormatException e) {
+            return new HttpResponse(400).body("text/plain", "Missing or invalid " + Replication.TERM_HEADER + " header");
+        }
+        String backups = request.getHeader(Replication.BACKUPS_HEADER);
+        List<String> backupList = new ArrayList<>();
+        if (backups != null) {
+            for (String backup : backups.split(",")) {
+                if (!backup.trim().isEmpty()) {
+                    backupList.add(backup.trim());
+                }
+            }
+        }
+        int status = replication.accept(term, request.getHeader(Replication.PRIMARY_HEADER), backupList);
+        if (status != 200) {
+            log.warn("replication_rejected", "term", term, "primary", request.getHeader(Replication.PRIMARY_HEADER));
+            HttpResponse conflict = new HttpResponse(status).header(Replication.TERM_HEADER, String.valueOf(replication.getTerm()));
+            String primary = replication.getPrimary();
+            return (primary == null) ? conflict : conflict.header(Replication.PRIMARY_HEADER, primary);
+        }
+
+        return storeCopies(request.getBody(), "replicated");
+    }
+
+    /**
+     * Stores readings copied from another server (PUT /replicate from the primary, PUT /handoff from a node
+     * that no longer owns them): NDJSON with their Lamport and receive times, applied like replayed PUTs so
+     * a reading that arrives twice or late changes nothing.
+     */
+    private static HttpResponse storeCopies(String body, String event) {
+        long decodeStart = System.nanoTime();
+        List<WeatherData> readings = new ArrayList<>();
+        try {
+            for (String line : body.split("\n")) {
+                if (!line.trim().isEmpty()) {
+                    WeatherData weatherData = gson.fromJson(line, WeatherData.class);
+                    if (weatherData != null && weatherData.getId() != null) {
+                        if (!LamportClock.isValidTime(weatherData.getLamportTimestamp())) {
+                            log.warn(event + "_invalid_lamport_time", "id", weatherData.getId(), "lamport", weatherData.getLamportTimestamp());
+                            return new HttpResponse(400).body("text/plain",
+                                    "Lamport time out of range for " + weatherData.getId() + ": " + weatherData.getLamportTimestamp());
+                        }
+                        readings.add(weatherData);
+                    }
+                }
+            }
+        } catch (JsonParseException e) {
+            log.warn(event + "_malformed", "error", e.getMessage());
+            return new HttpResponse(400).body("text/plain", e.getMessage());
+        }
+        metrics.recordSince(Metrics.Stage.DECODE, decodeStart);
+        if (readings.isEmpty()) {
+            return new HttpResponse(200);
+        }
+
+        try {
+            long storeStart = System.nanoTime();
+            for (WeatherData weatherData : readings) {
+                storeReading(weatherData);
+                if (weatherData.getLamportTimestamp() > lamportClock.getTime()) {
+                    lamportClock.update(weatherData.getLamportTimestamp());
                 }
+            }
+            storeVersion.incrementAndGet();
+            metrics.recordSince(Metrics.Stage.STORE, storeStart);
+
+            long persistStart = System.nanoTime();
+            persistAll(readings);
+            metrics.recordSince(Metrics.Stage.PERSIST, persistStart);
+            log.debug(event, "readings", readings.size());
+            return new HttpResponse(200);
+
+        } catch (IOException | RuntimeException e) {
+            log.error(event + "_failed", "error", e.getMessage());
+            return new HttpResponse(500);
+        }
+    }
+
+    // True if the server is sharded and the request comes from a client rather than from another node
+    private static boolean isRouted(HttpRequest request) {
+        return sharding != null && request.getHeader(Sharding.LOCAL_HEADER) == null;
+    }
+
+    // Sends a PUT on to the node that owns its station and passes its answer back
+    private static HttpResponse forwardPut(String owner, HttpRequest request, long lamportTime) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        String contentType = request.getHeader("Content-Type");
+        headers.put("Content-Type", contentType == null ? "application/json" : contentType);
+        headers.put("Lamport-Clock", String.valueOf(lamportTime));
+        try {
+            Sharding.Response answer = sharding.send(owner, "PUT", request.getTarget(), headers,
+                    request.getBody().getBytes(StandardCharsets.UTF_8));
+            HttpResponse response = new HttpResponse(answer.getStatus());
+            if (answer.getBody().length > 0) {
+                String answerType = answer.getHeader("Content-Type");
+                response.body(answerType == null ? "text/plain" : answerType, answer.getBody());
+            }
+            return response;
+        } catch (IOException e) {
+            log.warn("forward_failed", "node", owner, "error", e.getMessage());
+            return new HttpResponse(502).body("text/plain", "Could not reach " + owner + ", the node of this station");
+        }
+    }
 
-                if (!hasContent) {
-                    out.println("HTTP/1.1 204 No Content");
-                    out.println();
-                    System.err.println("PUT request received with no content.");
-                    return;
+    // The valid records of a batch that belong to other nodes, by node
+    private static Map<String, List<WeatherBatch.Record>> groupRemoteRecords(List<WeatherBatch.Record> records) {
+        Map<String, List<WeatherBatch.Record>> remote = new LinkedHashMap<>();
+        for (WeatherBatch.Record record : records) {
+            if (record.isValid() && !sharding.owns(record.getWeatherData().getId())) {
+                remote.computeIfAbsent(sharding.ownerOf(record.getWeatherData().getId()), node -> new ArrayList<>()).add(record);
+            }
+        }
+        return remote;
+    }
+
+    private static Future<Sharding.Response> forwardBatch(String node, List<WeatherBatch.Record> records, long lamportTime) {
+        StringBuilder body = new StringBuilder(records.size() * 400);
+        for (WeatherBatch.Record record : records) {
+            body.append(WeatherJson.toJson(record.getWeatherData())).append('\n');
+        }
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", WeatherBatch.NDJSON);
+        headers.put("Lamport-Clock", String.valueOf(lamportTime));
+        return sharding.sendAsync(node, "PUT", "/weather.json", headers, body.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Copies the per-record results of a forwarded batch to the records, in the order they were sent
+    private static void collectForwardedResults(String node, Future<Sharding.Response> answer, List<WeatherBatch.Record> records) {
+        try {
+            Sharding.Response response = answer.get();
+            if (response.getStatus() != 200) {
+                throw new IOException(node + " answered " + response.getStatus());
+            }
+            JsonArray results = JsonParser.parseString(response.getBodyText()).getAsJsonObject().getAsJsonArray("results");
+            for (int i = 0; i < records.size(); i++) {
+                JsonObject result = results.get(i).getAsJsonObject();
+                records.get(i).setStatus(result.get("status").getAsInt());
+                if (result.has("error")) {
+                    records.get(i).setError(result.get("error").getAsString());
                 }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failRecords(node, records, "interrupted");
+        } catch (ExecutionException | IOException | RuntimeException e) {
+            failRecords(node, records, (e instanceof ExecutionException) ? e.getCause().getMessage() : e.getMessage());
+        }
+    }
 
-                // Log the raw data received for debugging
-                System.out.println("Raw data received: " + jsonData.toString());
+    private static void failRecords(String node, List<WeatherBatch.Record> records, String error) {
+        log.warn("forward_failed", "node", node, "records", records.size(), "error", error);
+        for (WeatherBatch.Record record : records) {
+            record.setStatus(502);
+            record.setError("Could not reach " + node + ", the node of this station");
+        }
+    }
 
-                // Manually parse the JSON data into a WeatherData object
-                WeatherData weatherData = new WeatherData();
-                weatherData.fromJson(jsonData.toString());
-                System.out.println(weatherData.toString());
+    /**
+     * A GET answered from this server's store carries the store version it was built from as its ETag. A
+     * client that sends the ETag back in If-None-Match gets 304 Not Modified without a body for as long as
+     * the store has not changed, before any lookup or serialization. Every change of the store counts:
+     * PUTs, expiry, replication and hand-offs.
+     */
+    private static HttpResponse handleConditionalGet(HttpRequest request) {
+        // taken before the body is built, so a body is never older than its ETag
+        String etag = etag(storeVersion.get());
+        if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+            return new HttpResponse(304).header("ETag", etag).header("Vary", "Accept-Encoding");
+        }
+        HttpResponse response = handleGetRequest(request);
+        // the cached full store has its own ETag and must not be changed
+        if (response.getStatusCode() == 200 && response.getHeader("ETag") == null) {
+            response.header("ETag", etag).header("Vary", "Accept-Encoding");
+        }
+        return compress(request, response);
+    }
 
-                if (weatherData == null || weatherData.getId() == null) {
-                    out.println("HTTP/1.1 400 Bad Request");
-                    out.println();
-                    System.err.println("Invalid or missing weather data ID.");
-                    return;
+    // Weak, because the ETag stands for the store's contents and not for the bytes of one encoding
+    private static String etag(long version) {
+        return "W/\"" + ETAG_EPOCH + "-" + version + "\"";
+    }
+
+    // If-None-Match lists one or more ETags, which are compared weakly (without the W/ prefix)
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaqueTag = etag.substring(2);
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compresses a 200 response with gzip if the client accepts it and the body is at least
+     * aggregation.gzipMinBytes. The full store is compressed once per store version, see ResponseCache.
+     */
+    private static HttpResponse compress(HttpRequest request, HttpResponse response) {
+        byte[] body = response.getBody();
+        if (response.getStatusCode() != 200 || body == null || body.length < GZIP_MIN_BYTES
+                || !acceptsGzip(request.getHeader("Accept-Encoding"))) {
+            return response;
+        }
+        long compressStart = System.nanoTime();
+        HttpResponse gzipped = fullStoreResponse.gzipped(response);
+        if (gzipped == null) {
+            gzipped = response.gzipped();
+        }
+        metrics.recordSince(Metrics.Stage.SERIALIZE, compressStart);
+        return gzipped;
+    }
+
+    // Accept-Encoding: gzip, also with a quality such as gzip;q=0.8, but not gzip;q=0
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
                 }
+            }
+            return true;
+        }
+        return false;
+    }
 
-                // Update the weather data store
-                boolean isNewEntry = !weatherDataStore.containsKey(weatherData.getId());
-                weatherDataStore.put(weatherData.getId(), new WeatherData(
-                        jsonData.toString(), lamportClock.getTime(), System.currentTimeMillis()
-                ));
+    /**
+     * GET /weather.json on a sharded server: asks every node (or, with ?id=, the nodes of those stations)
+     * in parallel for its part and joins the JSON arrays. Nodes that do not answer are left out and listed
+     * in the Shard-Missing header.
+     */
+    private static HttpResponse handleShardedGet(HttpRequest request) {
+        List<String> ids = request.getQueryParameters("id");
+        List<String> fieldNames = request.getQueryParameters("fields");
+        Set<String> fields;
+        double[] near = null;
+        int k = 0;
+        try {
+            fields = fieldNames.isEmpty() ? null : WeatherJson.projection(fieldNames);
+            if (isGeoQuery(request)) {
+                double[] coordinates = geoCoordinates(request);
+                if (coordinates.length == 2) {
+                    near = coordinates;
+                    k = nearestCount(request);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return new HttpResponse(400).body("text/plain", e.getMessage());
+        }
 
-                saveWeatherDataToFile();
+        if (ids.isEmpty() && isHistoryQuery(request)) {
+            return handleGetRequest(request);
+        }
 
-                if (isNewEntry) {
-                    out.println("HTTP/1.1 201 Created");
+        HashRing ring = sharding.getRing();
+        Map<String, String> targets = new LinkedHashMap<>();
+        if (ids.isEmpty()) {
+            // every node sends its own k nearest with all fields, so that they can be ranked together here
+            String target = (near == null) ? request.getTarget()
+                    : request.getPath() + "?" + otherParameters(request.getTarget(), "fields").substring(1);
+            for (String node : ring.getNodes()) {
+                targets.put(node, target);
+            }
+        } else {
+            String otherParameters = otherParameters(request.getTarget(), "id");
+            for (Map.Entry<String, List<String>> node : ring.groupByNode(ids).entrySet()) {
+                targets.put(node.getKey(), request.getPath() + "?id=" + encodeList(node.getValue()) + otherParameters);
+            }
+        }
+
+        Map<String, Future<Sharding.Response>> parts = new LinkedHashMap<>();
+        for (Map.Entry<String, String> target : targets.entrySet()) {
+            if (!target.getKey().equals(sharding.getSelf())) {
+                parts.put(target.getKey(), sharding.sendAsync(target.getKey(), "GET", target.getValue(), Collections.emptyMap(), null));
+            }
+        }
+
+        ByteArrayOutputStream merged = new ByteArrayOutputStream();
+        merged.write('[');
+        String own = targets.get(sharding.getSelf());
+        if (own != null) {
+            HttpRequest local = new HttpRequest("GET", own, "HTTP/1.1");
+            local.addHeader(Sharding.LOCAL_HEADER, "true");
+            appendArray(merged, handleGetRequest(local).getBody());
+        }
+        List<String> missing = new ArrayList<>();
+        for (Map.Entry<String, Future<Sharding.Response>> part : parts.entrySet()) {
+            try {
+                Sharding.Response response = part.getValue().get();
+                if (response.getStatus() == 200 || response.getStatus() == 404) {
+                    appendArray(merged, response.getBody());
                 } else {
-                    out.println("HTTP/1.1 200 OK");
+                    missing.add(part.getKey());
                 }
-                out.println();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                missing.add(part.getKey());
+            } catch (ExecutionException e) {
+                log.warn("scatter_failed", "node", part.getKey(), "error", e.getCause().getMessage());
+                missing.add(part.getKey());
+            }
+        }
+        merged.write(']');
 
-            } catch (IOException e) {
-                out.println("HTTP/1.1 500 Internal Server Error");
-                out.println();
-                System.err.println("Error processing PUT request: " + e.getMessage());
+        byte[] body = merged.toByteArray();
+        if (near != null) {
+            body = nearestOf(body, near[0], near[1], k, fields).getBytes(StandardCharsets.UTF_8);
+        }
+        boolean empty = merged.size() == 2;
+        HttpResponse response = new HttpResponse(empty && !ids.isEmpty() ? 404 : 200).body("application/json", body);
+        return missing.isEmpty() ? response : response.header(Sharding.MISSING_HEADER, String.join(",", missing));
+    }
+
+    // The k stations of the joined arrays nearest to the point, nearest first
+    private static String nearestOf(byte[] stations, double lat, double lon, int k, Set<String> fields) {
+        WeatherData[] readings = gson.fromJson(new String(stations, StandardCharsets.UTF_8), WeatherData[].class);
+        Arrays.sort(readings, Comparator.comparingDouble(weatherData ->
+                GeoIndex.distanceKm(lat, lon, weatherData.getLat(), weatherData.getLon())));
+        return WeatherJson.toJson(Arrays.asList(readings).subList(0, Math.min(k, readings.length)), fields);
+    }
+
+    // Appends the elements of a JSON array body to an array that is being built
+    private static void appendArray(ByteArrayOutputStream merged, byte[] array) {
+        int start = 0;
+        int end = array.length;
+        while (start < end && array[start] != '[') {
+            start++;
+        }
+        while (end > start && array[end - 1] != ']') {
+            end--;
+        }
+        start++;
+        end--;
+        while (start < end && Character.isWhitespace(array[start])) {
+            start++;
+        }
+        if (start >= end) {
+            return;
+        }
+        if (merged.size() > 1) {
+            merged.write(',');
+        }
+        merged.write(array, start, end - start);
+    }
+
+    // The query parameters of the target except the named one, as "&a=b&c=d" to append to another query
+    private static String otherParameters(String target, String name) {
+        int start = target.indexOf('?');
+        if (start < 0) {
+            return "";
+        }
+        StringBuilder parameters = new StringBuilder();
+        for (String pair : target.substring(start + 1).split("&")) {
+            if (!pair.isEmpty() && !pair.equals(name) && !pair.startsWith(name + "=")) {
+                parameters.append('&').append(pair);
+            }
+        }
+        return parameters.toString();
+    }
+
+    private static String encodeList(List<String> values) {
+        StringJoiner list = new StringJoiner(",");
+        for (String value : values) {
+            try {
+                list.add(URLEncoder.encode(value, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("UTF-8 is always supported", e);
+            }
+        }
+        return list.toString();
+    }
+
+    /**
+     * PUT /ring with a node list such as "localhost:4567,localhost:4568,localhost:4569" changes the ring of
+     * a sharded cluster. The node that gets it passes it on to the old and new nodes, then every node hands
+     * the stations it no longer owns to their new node (PUT /handoff); all other stations stay where they are.
+     */
+    /**
+     * PUT /handoff from a node that no longer owns these stations, see handOffStations. The readings keep the
+     * Lamport and receive times they were sent with, so only another node of the ring may send them.
+     */
+    private static HttpResponse handleHandoffRequest(HttpRequest request) {
+        receiveClock(request);
+        if (sharding == null) {
+            return new HttpResponse(400).body("text/plain", "Sharding is not enabled on this server");
+        }
+        if (request.getHeader(Sharding.LOCAL_HEADER) == null) {
+            return new HttpResponse(400).body("text/plain", "PUT /handoff is only sent between the nodes of the ring");
+        }
+        Replication replication = AggregationServer.replication;
+        if (replication != null && replication.isReadOnly()) {
+            String primary = replication.getPrimary();
+            return new HttpResponse(503).header("Retry-After", "1")
+                    .body("text/plain", "Read-only backup, PUT to the primary" + (primary == null ? "" : " " + primary));
+        }
+        return storeCopies(request.getBody(), "handoff");
+    }
+
+    private static HttpResponse handleRingRequest(HttpRequest request) {
+        Sharding sharding = AggregationServer.sharding;
+        if (sharding == null) {
+            return new HttpResponse(400).body("text/plain", "Sharding is not enabled on this server");
+        }
+        HashRing ring;
+        try {
+            ring = HashRing.parse(request.getBody().trim());
+        } catch (IllegalArgumentException e) {
+            return new HttpResponse(400).body("text/plain", e.getMessage());
+        }
+        if (ring == null) {
+            return new HttpResponse(400).body("text/plain", "Expected a list of host:port nodes");
+        }
+
+        List<String> unreachable = new ArrayList<>();
+        if (isRouted(request)) {
+            Set<String> nodes = new LinkedHashSet<>(sharding.getRing().getNodes());
+            nodes.addAll(ring.getNodes());
+            nodes.remove(sharding.getSelf());
+            Map<String, Future<Sharding.Response>> sent = new LinkedHashMap<>();
+            byte[] body = ring.toString().getBytes(StandardCharsets.UTF_8);
+            for (String node : nodes) {
+                sent.put(node, sharding.sendAsync(node, "PUT", "/ring", Collections.singletonMap("Content-Type", "text/plain"), body));
+            }
+            for (Map.Entry<String, Future<Sharding.Response>> node : sent.entrySet()) {
+                try {
+                    if (node.getValue().get().getStatus() != 200) {
+                        unreachable.add(node.getKey());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    unreachable.add(node.getKey());
+                } catch (ExecutionException e) {
+                    unreachable.add(node.getKey());
+                }
+            }
+        }
+
+        sharding.setRing(ring);
+        int moved = handOffStations(sharding);
+        log.info("ring_changed", "ring", ring, "moved", moved, "unreachable", unreachable);
+        String text = "Ring " + ring + ", moved " + moved + " stations from " + sharding.getSelf();
+        return new HttpResponse(unreachable.isEmpty() ? 200 : 502)
+                .body("text/plain", unreachable.isEmpty() ? text : text + ", could not reach " + String.join(",", unreachable));
+    }
+
+    /**
+     * Sends the stations this node does not own under the current ring to their owners and removes them
+     * here once they are stored there. A removal is not written to the write-ahead log, so after a restart
+     * a handed-off station can come back here until it expires. Returns the number of stations moved.
+     */
+    static int handOffStations(Sharding sharding) {
+        Map<String, List<WeatherData>> leaving = new LinkedHashMap<>();
+        for (WeatherData weatherData : weatherDataStore.values()) {
+            if (!sharding.owns(weatherData.getId())) {
+                leaving.computeIfAbsent(sharding.ownerOf(weatherData.getId()), node -> new ArrayList<>()).add(weatherData);
+            }
+        }
+
+        Map<String, Future<Sharding.Response>> sent = new LinkedHashMap<>();
+        for (Map.Entry<String, List<WeatherData>> node : leaving.entrySet()) {
+            StringBuilder body = new StringBuilder(node.getValue().size() * 400);
+            for (WeatherData weatherData : node.getValue()) {
+                body.append(WeatherJson.toJson(weatherData)).append('\n');
+            }
+            sent.put(node.getKey(), sharding.sendAsync(node.getKey(), "PUT", "/handoff",
+                    Collections.singletonMap("Content-Type", WeatherBatch.NDJSON), body.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+
+        int moved = 0;
+        for (Map.Entry<String, Future<Sharding.Response>> node : sent.entrySet()) {
+            try {
+                Sharding.Response response = node.getValue().get();
+                if (response.getStatus() != 200) {
+                    log.warn("handoff_failed", "node", node.getKey(), "status", response.getStatus());
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                log.warn("handoff_failed", "node", node.getKey(), "error", e.getCause().getMessage());
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            for (WeatherData weatherData : leaving.get(node.getKey())) {
+                if (removeHandedOff(weatherData, now)) {
+                    moved++;
+                }
+            }
+        }
+        if (moved > 0) {
+            storeVersion.incrementAndGet();
+        }
+        return moved;
+    }
+
+    // Removes the station unless it got a newer reading after it was handed off
+    private static boolean removeHandedOff(WeatherData handedOff, long now) {
+        boolean[] removed = new boolean[1];
+        weatherDataStore.computeIfPresent(handedOff.getId(), (id, current) -> {
+            if (current.getLamportTimestamp() != handedOff.getLamportTimestamp()) {
+                return current;
+            }
+            long removalTime = changeIndex.begin(lamportClock::update);
+            changeIndex.recordRemoval(id, removalTime, now);
+            changeIndex.end(removalTime);
+            history.remove(id);
+            geoIndex.remove(id);
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Stores the reading unless the store already holds a newer one (by Lamport time) for the station,
+     * so concurrent or replayed PUTs for one station end with the latest reading.
+     * Returns the reading that was stored before, or null if the station is new.
+     */
+    static WeatherData storeIfNewer(WeatherData weatherData) {
+        WeatherData previous = storeReading(weatherData);
+        storeVersion.incrementAndGet();
+        return previous;
+    }
+
+    // storeIfNewer without the version bump, so a batch invalidates the cached GET only once
+    private static WeatherData storeReading(WeatherData weatherData) {
+        WeatherData[] previous = new WeatherData[1];
+        boolean[] stored = new boolean[1];
+        weatherDataStore.compute(weatherData.getId(), (id, current) -> {
+            previous[0] = current;
+            if (current != null && (current.getLamportTimestamp() > weatherData.getLamportTimestamp()
+                    || isSameReading(current, weatherData))) {
+                return current;
+            }
+            stored[0] = true;
+            // published while the entry is held, so subscribers and the change index see a station's
+            // readings in store order
+            changeIndex.recordUpdate(weatherData.getId(), weatherData.getLamportTimestamp());
+            history.record(weatherData);
+            geoIndex.put(weatherData.getId(), weatherData.getLat(), weatherData.getLon());
+            subscriptions.publish(weatherData);
+            return weatherData;
+        });
+        if (stored[0]) {
+            expirationWheel.schedule(weatherData.getId(), weatherData.getTimestamp());
+            Replication replication = AggregationServer.replication;
+            if (replication != null) {
+                replication.offer(weatherData);
+            }
+        }
+        return previous[0];
+    }
+
+    // The same reading applied again, e.g. by a replication resync, a handoff retry or a replay of the log
+    private static boolean isSameReading(WeatherData current, WeatherData weatherData) {
+        return current.getLamportTimestamp() == weatherData.getLamportTimestamp()
+                && current.getTimestamp() == weatherData.getTimestamp();
+    }
+
+    /**
+     * GET /weather.json returns every station.
+     * ?id=IDS60901 (or id=a,b / id=a&id=b) returns only those stations, looked up directly in the store,
+     * and ?fields=air_temp,press returns only the given fields (plus the id) of each station.
+     * ?id=..&from=..&to=.. and ?id=..&trend=true return the stations' history instead, see handleHistoryGet.
+     * ?near=lat,lon&k=5 and ?bbox=.. return the stations around a place, see handleGeoGet.
+     */
+    private static HttpResponse handleGetRequest(HttpRequest request) {
+        List<String> ids = request.getQueryParameters("id");
+        List<String> fieldNames = request.getQueryParameters("fields");
+        String since = request.getQueryParameter("since");
+
+        if (isHistoryQuery(request)) {
+            return handleHistoryGet(ids, request.getQueryParameter("from"), request.getQueryParameter("to"),
+                    "true".equalsIgnoreCase(request.getQueryParameter("trend")));
+        }
+        if (isGeoQuery(request)) {
+            return handleGeoGet(request);
+        }
+
+        if (ids.isEmpty() && fieldNames.isEmpty() && since == null) {
+            return handleFullStoreGet();
+        }
+
+        Set<String> fields;
+        try {
+            fields = fieldNames.isEmpty() ? null : WeatherJson.projection(fieldNames);
+        } catch (IllegalArgumentException e) {
+            return new HttpResponse(400).body("text/plain", e.getMessage());
+        }
+
+        if (since != null) {
+            try {
+                return handleDeltaGet(Long.parseLong(since), ids.isEmpty() ? null : new HashSet<>(ids), fields);
+            } catch (NumberFormatException e) {
+                return new HttpResponse(400).body("text/plain", "Invalid since: " + since);
+            }
+        }
+
+        Collection<WeatherData> readings;
+        if (ids.isEmpty()) {
+            readings = weatherDataStore.values();
+        } else {
+            readings = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                WeatherData weatherData = weatherDataStore.get(id);
+                if (weatherData != null) {
+                    readings.add(weatherData);
+                }
+            }
+            if (readings.isEmpty()) {
+                return new HttpResponse(404).body("application/json", "[]");
+            }
+        }
+        long serializeStart = System.nanoTime();
+        String json = WeatherJson.toJson(readings, fields);
+        metrics.recordSince(Metrics.Stage.SERIALIZE, serializeStart);
+        return new HttpResponse(200).body("application/json", json);
+    }
+
+    private static boolean isGeoQuery(HttpRequest request) {
+        return request.getQueryParameter("near") != null || request.getQueryParameter("bbox") != null;
+    }
+
+    /**
+     * GET /weather.json?near=lat,lon&k=5 returns the k stations nearest to the point (5 by default), nearest
+     * first, and ?bbox=minLat,minLon,maxLat,maxLon the stations inside the box; a box with minLon greater
+     * than maxLon crosses the 180th meridian. The stations are looked up in geoIndex, and ?fields= works as
+     * for any GET.
+     */
+    private static HttpResponse handleGeoGet(HttpRequest request) {
+        double[] coordinates;
+        int k;
+        Set<String> fields;
+        try {
+            coordinates = geoCoordinates(request);
+            k = nearestCount(request);
+            List<String> fieldNames = request.getQueryParameters("fields");
+            fields = fieldNames.isEmpty() ? null : WeatherJson.projection(fieldNames);
+        } catch (IllegalArgumentException e) {
+            return new HttpResponse(400).body("text/plain", e.getMessage());
+        }
+
+        List<GeoIndex.Point> points = (coordinates.length == 2)
+                ? geoIndex.nearest(coordinates[0], coordinates[1], k)
+                : geoIndex.within(coordinates[0], coordinates[1], coordinates[2], coordinates[3]);
+        List<WeatherData> readings = new ArrayList<>(points.size());
+        for (GeoIndex.Point point : points) {
+            // a station that expired since the lookup is left out
+            WeatherData weatherData = weatherDataStore.get(point.getId());
+            if (weatherData != null) {
+                readings.add(weatherData);
+            }
+        }
+        long serializeStart = System.nanoTime();
+        String json = WeatherJson.toJson(readings, fields);
+        metrics.recordSince(Metrics.Stage.SERIALIZE, serializeStart);
+        return new HttpResponse(200).body("application/json", json);
+    }
+
+    /**
+     * The numbers of ?near=lat,lon (two) or ?bbox=minLat,minLon,maxLat,maxLon (four).
+     * Throws IllegalArgumentException for a malformed query or one that also asks for ids or changes.
+     */
+    private static double[] geoCoordinates(HttpRequest request) {
+        List<String> near = request.getQueryParameters("near");
+        List<String> bbox = request.getQueryParameters("bbox");
+        if (!near.isEmpty() && !bbox.isEmpty()) {
+            throw new IllegalArgumentException("Use either near or bbox");
+        }
+        if (!request.getQueryParameters("id").isEmpty() || request.getQueryParameter("since") != null) {
+            throw new IllegalArgumentException("near and bbox do not go with id or since");
+        }
+        List<String> values = near.isEmpty() ? bbox : near;
+        String format = near.isEmpty() ? "bbox=minLat,minLon,maxLat,maxLon" : "near=lat,lon";
+        if (values.size() != (near.isEmpty() ? 4 : 2)) {
+            throw new IllegalArgumentException("Expected " + format);
+        }
+        double[] coordinates = new double[values.size()];
+        for (int i = 0; i < coordinates.length; i++) {
+            try {
+                coordinates[i] = Double.parseDouble(values.get(i));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected " + format + " but got " + values.get(i));
+            }
+            boolean latitude = i % 2 == 0;
+            if (Double.isNaN(coordinates[i]) || Math.abs(coordinates[i]) > (latitude ? 90 : 180)) {
+                throw new IllegalArgumentException((latitude ? "Latitude" : "Longitude") + " out of range: " + values.get(i));
             }
         }
+        return coordinates;
+    }
+
+    // ?k= of a near query, 5 by default and at most aggregation.maxNearest
+    private static int nearestCount(HttpRequest request) {
+        String k = request.getQueryParameter("k");
+        try {
+            int count = (k == null) ? 5 : Integer.parseInt(k);
+            if (count < 1 || count > MAX_NEAREST) {
+                throw new NumberFormatException();
+            }
+            return count;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("k must be between 1 and " + MAX_NEAREST + ": " + k);
+        }
+    }
+
+    private static boolean isHistoryQuery(HttpRequest request) {
+        return request.getQueryParameter("from") != null || request.getQueryParameter("to") != null
+                || request.getQueryParameter("trend") != null;
+    }
+
+    /**
+     * GET /weather.json?id=IDS60901&from=T1&to=T2 returns the station's readings received between T1 and T2
+     * (milliseconds since the epoch, both optional) with the minimum, maximum and average of air_temp, press
+     * and wind_spd_kmh over them. ?id=IDS60901&trend=true returns only those statistics over all readings
+     * held, which are kept up to date on every PUT. Several ids give one object per station.
+     */
+    private static HttpResponse handleHistoryGet(List<String> ids, String from, String to, boolean trend) {
+        if (ids.isEmpty()) {
+            return new HttpResponse(400).body("text/plain", "History queries need at least one id");
+        }
+        if (!history.isEnabled()) {
+            return new HttpResponse(404).body("text/plain", "The history is turned off (aggregation.historySize=0)");
+        }
+        long fromTime;
+        long toTime;
+        try {
+            fromTime = (from == null) ? Long.MIN_VALUE : Long.parseLong(from);
+            toTime = (to == null) ? Long.MAX_VALUE : Long.parseLong(to);
+        } catch (NumberFormatException e) {
+            return new HttpResponse(400).body("text/plain", "from and to are milliseconds since the epoch");
+        }
 
+        long serializeStart = System.nanoTime();
+        String json = history.toJson(ids, fromTime, toTime, !trend);
+        metrics.recordSince(Metrics.Stage.SERIALIZE, serializeStart);
+        if (json == null) {
+            return new HttpResponse(404).body("application/json", "[]");
+        }
+        return new HttpResponse(200).body("application/json", json);
+    }
 
-        private void handleGetRequest(PrintWriter out) {
-            out.println("HTTP/1.1 200 OK");
-            out.println("Content-Type: application/json");
-            out.println();
+    /**
+     * GET /subscribe?id=IDS60901,IDS60902 waits for updates of the given stations (all stations without id).
+     * With "Accept: text/event-stream" the updates are streamed as server-sent events for as long as the
+     * connection stays open. Otherwise it is a long-poll: the response lists the updates as soon as there
+     * are any, or none after timeoutMs, and carries a subscription number that the next poll passes as
+     * ?subscription=N so that no update is missed in between.
+     */
+    private static HttpResponse handleSubscribeRequest(HttpRequest request) {
+        String subscriptionId = request.getQueryParameter("subscription");
+        SubscriptionHub.Subscription subscription;
+        if (subscriptionId != null) {
+            try {
+                subscription = subscriptions.get(Long.parseLong(subscriptionId));
+            } catch (NumberFormatException e) {
+                return new HttpResponse(400).body("text/plain", "Invalid subscription: " + subscriptionId);
+            }
+            if (subscription == null) {
+                return new HttpResponse(404).body("text/plain", "Unknown or expired subscription: " + subscriptionId);
+            }
+        } else {
+            List<String> ids = request.getQueryParameters("id");
+            subscription = subscriptions.subscribe(ids.isEmpty() ? null : new HashSet<>(ids));
+        }
 
+        String accept = request.getHeader("Accept");
+        if (accept != null && accept.contains("text/event-stream")) {
+            return new HttpResponse(200).eventStream(subscription);
+        }
+
+        long timeoutMs = LONG_POLL_TIMEOUT_MS;
+        String requestedTimeout = request.getQueryParameter("timeoutMs");
+        if (requestedTimeout != null) {
+            try {
+                timeoutMs = Math.max(0, Math.min(LONG_POLL_TIMEOUT_MS, Long.parseLong(requestedTimeout)));
+            } catch (NumberFormatException e) {
+                return new HttpResponse(400).body("text/plain", "Invalid timeoutMs: " + requestedTimeout);
+            }
+        }
+        SubscriptionHub.Subscription polled = subscription;
+        return HttpResponse.deferred(subscription.next(timeoutMs).thenApply(delivery ->
+                new HttpResponse(200).body("application/json", SubscriptionHub.toJson(polled, delivery))));
+    }
+
+    static SubscriptionHub getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * GET /weather.json?since=N returns the stations changed after Lamport time N and tombstones for the
+     * stations removed since then:
+     * {"since":N,"lamport":M,"full":false,"updates":[...],"removed":[{"id":"IDS60901","lamportTimestamp":L}]}
+     * The next delta should ask from M. If removals after N may have been forgotten, "full" is true and
+     * "updates" holds every station, which replace the client's copy.
+     */
+    private static HttpResponse handleDeltaGet(long since, Set<String> ids, Set<String> fields) {
+        long upTo = changeIndex.watermark(lamportClock::getTime);
+        List<ChangeIndex.Change> changes = changeIndex.changesBetween(since, upTo);
+
+        List<WeatherData> updates = new ArrayList<>();
+        List<ChangeIndex.Change> removed = new ArrayList<>();
+        if (changes == null) {
+            for (WeatherData weatherData : weatherDataStore.values()) {
+                if (ids == null || ids.contains(weatherData.getId())) {
+                    updates.add(weatherData);
+                }
+            }
+        } else {
+            for (ChangeIndex.Change change : changes) {
+                if (ids != null && !ids.contains(change.getId())) {
+                    continue;
+                }
+                if (change.isRemoved()) {
+                    removed.add(change);
+                } else {
+                    WeatherData weatherData = weatherDataStore.get(change.getId());
+                    // null if it expired in the meantime, its tombstone comes with a later delta
+                    if (weatherData != null) {
+                        updates.add(weatherData);
+                    }
+                }
+            }
+        }
+
+        long serializeStart = System.nanoTime();
+        StringWriter text = new StringWriter();
+        try (JsonWriter out = new JsonWriter(text)) {
+            out.beginObject();
+            out.name("since").value(since);
+            out.name("lamport").value(upTo);
+            out.name("full").value(changes == null);
+            out.name("updates").beginArray();
+            for (WeatherData weatherData : updates) {
+                WeatherJson.write(out, weatherData, fields);
+            }
+            out.endArray();
+            out.name("removed").beginArray();
+            for (ChangeIndex.Change change : removed) {
+                out.beginObject().name("id").value(change.getId()).name("lamportTimestamp").value(change.getLamportTimestamp()).endObject();
+            }
+            out.endArray();
+            out.endObject();
+        } catch (IOException e) {
+            throw new IllegalStateException("StringWriter does not throw", e);
+        }
+        metrics.recordSince(Metrics.Stage.SERIALIZE, serializeStart);
+        return new HttpResponse(200).body("application/json", text.toString());
+    }
+
+    // The full store is only serialized again after a PUT or an expiry changed it
+    private static HttpResponse handleFullStoreGet() {
+        long version = storeVersion.get();
+        return fullStoreResponse.get(version, () -> {
+            long serializeStart = System.nanoTime();
             String jsonResponse = gson.toJson(weatherDataStore.values());
-            out.println(jsonResponse.toString());
+            metrics.recordSince(Metrics.Stage.SERIALIZE, serializeStart);
+            return new HttpResponse(200).header("ETag", etag(version)).header("Vary", "Accept-Encoding")
+                    .body("application/json", jsonResponse);
+        });
+    }
+
+    /**
+     * GET /metrics returns the request counters and latency histograms in the Prometheus text format,
+     * together with the current store size, expirations, connections and Lamport clock.
+     */
+    private static HttpResponse handleMetricsRequest() {
+        Map<String, Number> gauges = new LinkedHashMap<>();
+        gauges.put("aggregation_store_size", weatherDataStore.size());
+        gauges.put("aggregation_expired_total", expirationWheel.getExpiredCount());
+        gauges.put("aggregation_expiry_scheduled_total", expirationWheel.getScheduledCount());
+        gauges.put("aggregation_active_connections", getActiveConnections());
+        gauges.put("aggregation_queued_connections", getQueuedConnections());
+        gauges.put("aggregation_lamport_clock", lamportClock.getTime());
+        gauges.put("aggregation_subscriptions", subscriptions.size());
+        gauges.put("aggregation_subscription_dropped_total", subscriptions.getDroppedCount());
+        gauges.put("aggregation_change_index_size", changeIndex.size());
+        gauges.put("aggregation_tombstones", changeIndex.getTombstoneCount());
+        gauges.put("aggregation_history_stations", history.size());
+        gauges.put("aggregation_history_readings", history.getReadingCount());
+        gauges.put("aggregation_geo_stations", geoIndex.size());
+        gauges.put("aggregation_geo_cells", geoIndex.getCellCount());
+        gauges.put("aggregation_log_dropped_total", log.getDroppedCount());
+        WriteAheadLog wal = writeAheadLog;
+        if (wal != null) {
+            gauges.put("aggregation_wal_segment_bytes", wal.getSegmentSize());
+        }
+        Sharding sharding = AggregationServer.sharding;
+        if (sharding != null) {
+            gauges.put("aggregation_shard_nodes", sharding.getRing().getNodes().size());
+            gauges.put("aggregation_shard_requests_total", sharding.getForwardedCount());
+            gauges.put("aggregation_shard_failures_total", sharding.getFailureCount());
+        }
+        Replication replication = AggregationServer.replication;
+        if (replication != null) {
+            gauges.put("aggregation_replication_primary", replication.getRole() == Replication.Role.PRIMARY ? 1 : 0);
+            gauges.put("aggregation_replication_term", replication.getTerm());
+            gauges.put("aggregation_replication_backlog", replication.getBacklog());
+            gauges.put("aggregation_replicated_total", replication.getReplicatedCount());
+            gauges.put("aggregation_replication_promotions_total", replication.getPromotionCount());
         }
+        return new HttpResponse(200).body("text/plain; version=0.0.4", metrics.render(gauges));
     }
 
-    static void expireOldData() {
-        long currentTime = System.currentTimeMillis();
-        weatherDataStore.entrySet().removeIf(entry -> currentTime - entry.getValue().getTimestamp() > EXPIRATION_TIME_MS);
+    static Metrics getMetrics() {
+        return metrics;
     }
 
-    private static void saveWeatherDataToFile() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(STORAGE_FILE))) {
-            for (Map.Entry<String, WeatherData> entry : weatherDataStore.entrySet()) {
-                writer.write(gson.toJson(entry.getValue()));
-                writer.newLine();
+    static AsyncLog getLog() {
+        return log;
+    }
+
+    // Removes the stations whose expiry came due since the last call, without scanning the whole store
+    static synchronized void expireOldData() {
+        long now = System.currentTimeMillis();
+        expirationWheel.advance(now, AggregationServer::expireIfDue);
+        changeIndex.pruneTombstones(now);
+    }
+
+    // Removes the station if its stored reading is older than the TTL; a refreshed station is kept
+    private static boolean expireIfDue(String id, long now) {
+        boolean[] removed = new boolean[1];
+        weatherDataStore.computeIfPresent(id, (key, current) -> {
+            if (now - current.getTimestamp() > expirationWheel.getTtlMs()) {
+                // the removal is an event of its own, its tombstone gets a new Lamport time
+                long removalTime = changeIndex.begin(lamportClock::update);
+                changeIndex.recordRemoval(key, removalTime, now);
+                changeIndex.end(removalTime);
+                history.remove(key);
+                geoIndex.remove(key);
+                removed[0] = true;
+                return null;
+            }
+            return current;
+        });
+        if (removed[0]) {
+            storeVersion.incrementAndGet();
+        }
+        return removed[0];
+    }
+
+    static ExpirationWheel getExpirationWheel() {
+        return expirationWheel;
+    }
+
+    // Appends the accepted reading to the write-ahead log, or rewrites the snapshot when no log is open
+    private static void persist(WeatherData weatherData) throws IOException {
+        WriteAheadLog log = writeAheadLog;
+        if (log != null) {
+            log.append(weatherData);
+        } else {
+            saveWeatherDataToFile();
+        }
+    }
+
+    // Same as persist for all readings of a batch, with a single log commit or snapshot
+    private static void persistAll(List<WeatherData> readings) throws IOException {
+        WriteAheadLog log = writeAheadLog;
+        if (log != null) {
+            log.appendAll(readings);
+        } else if (!readings.isEmpty()) {
+            saveWeatherDataToFile();
+        }
+    }
+
+    static void openWriteAheadLog() throws IOException {
+        writeAheadLog = WriteAheadLog.fromSystemProperties();
+    }
+
+    static void closeWriteAheadLog() {
+        try {
+            if (writeAheadLog != null) {
+                writeAheadLog.close();
             }
         } catch (IOException e) {
-            System.err.println("Error saving weather data to file: " + e.getMessage());
+            System.err.println("Error closing write-ahead log: " + e.getMessage());
         }
     }
 
-    static void loadWeatherDataFromFile() {
-        File file = new File(STORAGE_FILE);
-        if (!file.exists()) {
+    /**
+     * Folds the write-ahead log into the snapshot.
+     * The log is rotated first, so every record in the sealed segments is already in the store when the
+     * snapshot is written; the sealed segments are only deleted after the snapshot is safely on disk.
+     */
+    static synchronized void compactStorage() {
+        WriteAheadLog log = writeAheadLog;
+        if (log == null) {
             return;
         }
+        try {
+            List<Path> sealed = log.rotate();
+            saveWeatherDataToFile();
+            log.deleteSegments(sealed);
+        } catch (IOException e) {
+            System.err.println("Error compacting weather data: " + e.getMessage());
+        }
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(STORAGE_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                WeatherData weatherData = gson.fromJson(line, WeatherData.class);
-                if (weatherData != null && weatherData.getId() != null) {
-                    weatherDataStore.put(weatherData.getId(), weatherData);
+    // Writes the whole store as a snapshot in the configured format, never leaving a torn file behind
+    static synchronized void saveWeatherDataToFile() throws IOException {
+        if (BINARY_SNAPSHOTS) {
+            BinarySnapshot.write(Paths.get(SNAPSHOT_FILE), weatherDataStore.values());
+            return;
+        }
+
+        Path target = Paths.get(STORAGE_FILE);
+        Path temp = Paths.get(STORAGE_FILE + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp.toFile());
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"))) {
+            for (WeatherData weatherData : weatherDataStore.values()) {
+                writer.write(gson.toJson(weatherData));
+                writer.newLine();
+            }
+            writer.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the snapshot, then replays the write-ahead log on top of it.
+     * The binary snapshot is memory-mapped; File.json is still read when there is no binary snapshot yet,
+     * e.g. the first start after upgrading.
+     */
+    static void loadWeatherDataFromFile() {
+        File snapshot = new File(SNAPSHOT_FILE);
+        File file = new File(STORAGE_FILE);
+        if (BINARY_SNAPSHOTS && snapshot.exists()) {
+            try {
+                BinarySnapshot.read(snapshot.toPath(), AggregationServer::restore);
+            } catch (IOException e) {
+                System.err.println("Error loading weather data from snapshot: " + e.getMessage());
+            }
+        } else if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(STORAGE_FILE))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    WeatherData weatherData = gson.fromJson(line, WeatherData.class);
+                    if (weatherData != null && weatherData.getId() != null) {
+                        restore(weatherData);
+                    }
                 }
+            } catch (IOException e) {
+                System.err.println("Error loading weather data from file: " + e.getMessage());
             }
-        } catch (IOException e) {
-            System.err.println("Error loading weather data from file: " + e.getMessage());
+        }
+
+        if (writeAheadLog != null) {
+            try {
+                writeAheadLog.replay(AggregationServer::restore);
+            } catch (IOException e) {
+                System.err.println("Error replaying write-ahead log: " + e.getMessage());
+            }
+        }
+
+        // tombstones are only kept in memory, a delta from before the restart gets the full store
+        changeIndex.setHorizon(lamportClock.getTime());
+    }
+
+    // Puts a recovered reading back into the store and moves the clock past its Lamport time
+    private static void restore(WeatherData weatherData) {
+        if (!LamportClock.isValidTime(weatherData.getLamportTimestamp())) {
+            // a time pushed out of range by a bad Lamport-Clock header would decide against every later reading
+            log.warn("restore_invalid_lamport_time", "id", weatherData.getId(), "lamport", weatherData.getLamportTimestamp());
+            return;
+        }
+        storeIfNewer(weatherData);
+        if (weatherData.getLamportTimestamp() > lamportClock.getTime()) {
+            lamportClock.update(weatherData.getLamportTimestamp());
         }
     }
 
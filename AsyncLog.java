@@ -0,0 +1,286 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access and audit log of the AggregationServer, written off the request path.
+ *
+ * A request thread only checks the level and puts the event into a bounded lock-free ring buffer; one
+ * background thread formats the events and writes them out, flushing whenever the buffer runs empty.
+ * When the writer cannot keep up the buffer fills, and new events are then either dropped and counted
+ * (the default) or the request thread waits for room (-Daggregation.logWhenFull=block).
+ *
+ * Every line is one event with its fields as key=value pairs, e.g.
+ * 2026-10-18T09:15:02.120Z INFO access method=PUT path=/weather.json status=201 micros=412
+ */
+public class AsyncLog {
+
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    private static final long WRITER_IDLE_NANOS = 1_000_000L;
+    private static final long PRODUCER_WAIT_NANOS = 50_000L;
+
+    private final Level level;
+    private final boolean payloads;
+    private final boolean blockWhenFull;
+    private final RingBuffer<Event> buffer;
+    private final Writer out;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    // One logged event, formatted by the writer thread
+    private static final class Event {
+        final long time;
+        final Level level;
+        final String name;
+        final Object[] fields;
+
+        Event(long time, Level level, String name, Object[] fields) {
+            this.time = time;
+            this.level = level;
+            this.name = name;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * Bounded multi-producer, single-consumer ring buffer. Every slot has a sequence number that tells
+     * producers when the slot is free and the consumer when it is filled, so neither side takes a lock.
+     */
+    static final class RingBuffer<T> {
+        private final int mask;
+        private final AtomicReferenceArray<T> slots;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        private long head;  // only touched by the consumer
+
+        RingBuffer(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            mask = size - 1;
+            slots = new AtomicReferenceArray<>(size);
+            sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        // Returns false if the buffer is full
+        boolean offer(T element) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) (position & mask);
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        slots.set(index, element);
+                        sequences.set(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        // Returns null if the buffer is empty; must only be called by one thread
+        T poll() {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                return null;
+            }
+            T element = slots.get(index);
+            slots.set(index, null);
+            sequences.set(index, head + mask + 1);
+            head++;
+            return element;
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+    }
+
+    public AsyncLog(Writer out, Level level, boolean payloads, int capacity, boolean blockWhenFull) {
+        this.out = out;
+        this.level = level;
+        this.payloads = payloads;
+        this.blockWhenFull = blockWhenFull;
+        this.buffer = new RingBuffer<>(capacity);
+        this.writer = new Thread(this::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Builds the log from system properties, e.g. -Daggregation.logLevel=DEBUG -Daggregation.logPayloads=true.
+     * It writes to standard output unless -Daggregation.logFile names a file to append to.
+     */
+    public static AsyncLog fromSystemProperties() {
+        Level level = Level.valueOf(System.getProperty("aggregation.logLevel", "INFO").toUpperCase());
+        boolean payloads = Boolean.getBoolean("aggregation.logPayloads");
+        int capacity = Integer.getInteger("aggregation.logBuffer", 8192);
+        boolean block = "block".equalsIgnoreCase(System.getProperty("aggregation.logWhenFull", "drop"));
+
+        OutputStream target = System.out;
+        String file = System.getProperty("aggregation.logFile");
+        if (file != null) {
+            try {
+                target = new FileOutputStream(file, true);
+            } catch (IOException e) {
+                System.err.println("Cannot open log file " + file + ", logging to standard output: " + e.getMessage());
+            }
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), 64 * 1024);
+        return new AsyncLog(out, level, payloads, capacity, block);
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() <= this.level.ordinal();
+    }
+
+    // Request bodies are only logged with -Daggregation.logPayloads=true (and DEBUG level)
+    public boolean logsPayloads() {
+        return payloads && isEnabled(Level.DEBUG);
+    }
+
+    public void error(String name, Object... fields) {
+        log(Level.ERROR, name, fields);
+    }
+
+    public void warn(String name, Object... fields) {
+        log(Level.WARN, name, fields);
+    }
+
+    public void info(String name, Object... fields) {
+        log(Level.INFO, name, fields);
+    }
+
+    public void debug(String name, Object... fields) {
+        log(Level.DEBUG, name, fields);
+    }
+
+    /**
+     * Queues an event with fields given as alternating names and values, e.g.
+     * log(Level.INFO, "access", "method", "GET", "status", 200).
+     */
+    public void log(Level level, String name, Object... fields) {
+        if (!isEnabled(level) || closed) {
+            return;
+        }
+        Event event = new Event(System.currentTimeMillis(), level, name, fields);
+        while (!buffer.offer(event)) {
+            if (!blockWhenFull || closed) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.parkNanos(PRODUCER_WAIT_NANOS);
+        }
+    }
+
+    // Writes what is queued and stops the writer thread
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        boolean unflushed = false;
+        while (true) {
+            // read before polling, so everything queued before close() is still written
+            boolean stopping = closed;
+            Event event = buffer.poll();
+            try {
+                if (event != null) {
+                    format(event, out);
+                    written.increment();
+                    unflushed = true;
+                    continue;
+                }
+                if (unflushed) {
+                    out.flush();
+                    unflushed = false;
+                }
+            } catch (IOException e) {
+                dropped.increment();
+            }
+            if (stopping) {
+                return;
+            }
+            LockSupport.parkNanos(WRITER_IDLE_NANOS);
+        }
+    }
+
+    private static void format(Event event, Writer out) throws IOException {
+        StringBuilder line = new StringBuilder(128);
+        line.append(Instant.ofEpochMilli(event.time)).append(' ').append(event.level).append(' ').append(event.name);
+        Object[] fields = event.fields;
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            line.append(' ').append(fields[i]).append('=');
+            appendValue(line, String.valueOf(fields[i + 1]));
+        }
+        line.append('\n');
+        out.write(line.toString());
+    }
+
+    // Values with spaces, quotes or line breaks are quoted, so every event stays on one line
+    static void appendValue(StringBuilder line, String value) {
+        boolean plain = !value.isEmpty();
+        for (int i = 0; i < value.length() && plain; i++) {
+            char c = value.charAt(i);
+            plain = c > ' ' && c != '"' && c != '=';
+        }
+        if (plain) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else if (c == '\r') {
+                line.append("\\r");
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    // Events lost because the buffer was full (or the output failed)
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncLog{" +
+                "level=" + level +
+                ", capacity=" + buffer.capacity() +
+                ", written=" + getWrittenCount() +
+                ", dropped=" + getDroppedCount() +
+                '}';
+    }
+}
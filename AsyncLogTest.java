@@ -0,0 +1,119 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+public class AsyncLogTest {
+
+    @Test
+    public void writesEventsAsKeyValueLines() {
+        StringWriter out = new StringWriter();
+        AsyncLog log = new AsyncLog(out, AsyncLog.Level.INFO, false, 16, false);
+        log.info("access", "method", "PUT", "path", "/weather.json", "status", 201);
+        log.warn("malformed_weather_data", "error", "Expected '\"' at position 3");
+        log.debug("request", "target", "/weather.json");
+        log.close();
+
+        String[] lines = out.toString().split("\n");
+        Assert.assertEquals(2, lines.length);
+        Assert.assertTrue(lines[0], lines[0].endsWith(" INFO access method=PUT path=/weather.json status=201"));
+        Assert.assertTrue(lines[1], lines[1].endsWith(" WARN malformed_weather_data error=\"Expected '\\\"' at position 3\""));
+        Assert.assertEquals(2, log.getWrittenCount());
+        Assert.assertFalse(log.logsPayloads());
+    }
+
+    @Test
+    public void quotesValuesThatWouldBreakTheLine() {
+        StringBuilder line = new StringBuilder();
+        AsyncLog.appendValue(line, "two\nlines");
+        line.append(' ');
+        AsyncLog.appendValue(line, "");
+        line.append(' ');
+        AsyncLog.appendValue(line, "a=b");
+        Assert.assertEquals("\"two\\nlines\" \"\" \"a=b\"", line.toString());
+    }
+
+    @Test
+    public void dropsEventsWhenTheWriterFallsBehind() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        Writer stalled = new StringWriter() {
+            @Override
+            public void write(String text) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(text);
+            }
+        };
+        AsyncLog log = new AsyncLog(stalled, AsyncLog.Level.INFO, false, 4, false);
+        for (int i = 0; i < 100; i++) {
+            log.info("access", "n", i);
+        }
+        // the writer holds one event and the buffer four, the rest is dropped without waiting
+        Assert.assertTrue(log.getDroppedCount() >= 95);
+        release.countDown();
+        log.close();
+        Assert.assertEquals(100, log.getWrittenCount() + log.getDroppedCount());
+    }
+
+    @Test
+    public void ringBufferKeepsOrderAndCapacity() {
+        AsyncLog.RingBuffer<Integer> buffer = new AsyncLog.RingBuffer<>(5);
+        Assert.assertEquals(8, buffer.capacity());
+        for (int i = 0; i < 8; i++) {
+            Assert.assertTrue(buffer.offer(i));
+        }
+        Assert.assertFalse(buffer.offer(8));
+        Assert.assertEquals(Integer.valueOf(0), buffer.poll());
+        Assert.assertTrue(buffer.offer(8));
+        for (int i = 1; i <= 8; i++) {
+            Assert.assertEquals(Integer.valueOf(i), buffer.poll());
+        }
+        Assert.assertNull(buffer.poll());
+    }
+
+    @Test
+    public void ringBufferTakesConcurrentProducers() throws InterruptedException {
+        AsyncLog.RingBuffer<Integer> buffer = new AsyncLog.RingBuffer<>(64);
+        int producers = 4;
+        int perProducer = 50_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int base = p * perProducer;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!buffer.offer(base + i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        // every value arrives exactly once, and the values of one producer in their order
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        int received = 0;
+        while (received < producers * perProducer) {
+            Integer value = buffer.poll();
+            if (value == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = value / perProducer;
+            Assert.assertEquals(last[producer] + 1, value % perProducer);
+            last[producer] = value % perProducer;
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertNull(buffer.poll());
+    }
+}
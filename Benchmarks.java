@@ -0,0 +1,210 @@
+import com.google.gson.Gson;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Benchmarks of the hot paths of the aggregation server, run with MicroBenchmark.
+ *
+ * java -cp ".:lib/*" Benchmarks                  all benchmarks, about 10 seconds each
+ * java -cp ".:lib/*" Benchmarks -f 3 fromJson    three forks of the benchmarks matching "fromJson"
+ *
+ * Times are per operation and thread. Sizes are part of the benchmark name, e.g. ":stations=10000".
+ */
+public class Benchmarks {
+
+    static final String SAMPLE = "{\"id\":\"IDS60901\",\"name\":\"Adelaide (West Terrace /  ngayirdapira)\","
+            + "\"state\":\"SA\",\"time_zone\":\"CST\",\"lat\":-34.9,\"lon\":138.6,"
+            + "\"local_date_time\":\"15/04:00pm\",\"local_date_time_full\":\"20230715160000\","
+            + "\"air_temp\":13.3,\"apparent_t\":9.5,\"cloud\":\"Partly cloudy\",\"dewpt\":5.7,"
+            + "\"press\":1023.9,\"rel_hum\":60,\"wind_dir\":\"S\",\"wind_spd_kmh\":15,\"wind_spd_kt\":8}";
+
+    private static final int[] STORE_SIZES = {1_000, 10_000, 100_000};
+    private static final int[] FILE_SIZES = {1_000, 10_000};
+
+    public static void main(String[] args) throws Exception {
+        MicroBenchmark.runAll(benchmarks(), args, Benchmarks.class.getName());
+    }
+
+    static List<MicroBenchmark> benchmarks() {
+        List<MicroBenchmark> benchmarks = new ArrayList<>();
+
+        // Parsing and printing one station
+        benchmarks.add(new MicroBenchmark("WeatherData.fromJson", 1, () ->
+                () -> new WeatherData().fromJson(SAMPLE)));
+        benchmarks.add(new MicroBenchmark("WeatherData.toString", 1, () -> {
+            WeatherData weatherData = new WeatherData().fromJson(SAMPLE);
+            return weatherData::toString;
+        }));
+
+        // Serializing the full store for a GET, as before and after the streaming writer
+        benchmarks.add(new MicroBenchmark("Gson.toJson(store):stations=1000", 1, () -> {
+            Gson gson = new Gson();
+            Collection<WeatherData> values = stations(1000, 0).values();
+            return () -> gson.toJson(values);
+        }));
+        benchmarks.add(new MicroBenchmark("WeatherJson.toJson(store):stations=1000", 1, () -> {
+            Collection<WeatherData> values = stations(1000, 0).values();
+            return () -> WeatherJson.toJson(values, null);
+        }));
+
+        // Store updates and lookups from several threads, nine GETs to one PUT
+        benchmarks.add(new MicroBenchmark("store.getAndCompute:map", 4, () ->
+                storeOperation(new ConcurrentHashMap<>(stations(1000, 0)), 1000)));
+        benchmarks.add(new MicroBenchmark("store.getAndCompute:columnar", 4, () -> {
+            ColumnarWeatherStore store = new ColumnarWeatherStore();
+            store.putAll(stations(1000, 0));
+            return storeOperation(store, 1000);
+        }));
+
+        // A PUT's share of the station history: one reading into a full buffer and its rolling statistics
+        benchmarks.add(new MicroBenchmark("StationHistory.record:readings=120", 1, () -> {
+            StationHistory history = new StationHistory(120, Long.MAX_VALUE);
+            WeatherData weatherData = new WeatherData().fromJson(SAMPLE);
+            long[] time = {0};
+            return () -> {
+                time[0]++;
+                weatherData.setTimestamp(time[0]);
+                weatherData.setAirTemp(time[0] % 300 / 10.0);
+                history.record(weatherData);
+                return time[0];
+            };
+        }));
+
+        // Nearest-station and bounding-box lookups among stations spread over the globe
+        for (int size : STORE_SIZES) {
+            benchmarks.add(new MicroBenchmark("GeoIndex.nearest:k=5:stations=" + size, 1, () -> {
+                GeoIndex index = geoIndex(size);
+                Random random = new Random(7);
+                return () -> index.nearest(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180, 5).size();
+            }));
+            benchmarks.add(new MicroBenchmark("GeoIndex.within:5x5deg:stations=" + size, 1, () -> {
+                GeoIndex index = geoIndex(size);
+                Random random = new Random(7);
+                return () -> {
+                    double lat = random.nextDouble() * 170 - 85;
+                    double lon = random.nextDouble() * 350 - 180;
+                    return index.within(lat, lon, lat + 5, lon + 5).size();
+                };
+            }));
+        }
+
+        // One expiry tick of the server with nothing due, which must not depend on the store size
+        for (int size : STORE_SIZES) {
+            benchmarks.add(new MicroBenchmark("AggregationServer.expireOldData:stations=" + size, 1, () -> {
+                fillServer(size);
+                return () -> {
+                    AggregationServer.expireOldData();
+                    return null;
+                };
+            }));
+        }
+
+        // The expiration wheel in a steady state: every tick expires its share of the stations,
+        // which are then scheduled again as if their content server had sent them again
+        for (int size : STORE_SIZES) {
+            benchmarks.add(new MicroBenchmark("ExpirationWheel.advance:stations=" + size, 1, () -> {
+                long ttlMs = 30000;
+                long resolutionMs = 100;
+                ExpirationWheel wheel = new ExpirationWheel(ttlMs, resolutionMs, 0);
+                for (int i = 0; i < size; i++) {
+                    wheel.schedule(stationId(i), (long) i * ttlMs / size);
+                }
+                long[] now = {ttlMs};
+                ExpirationWheel.ExpiryCallback refresh = (id, time) -> {
+                    wheel.schedule(id, time);
+                    return true;
+                };
+                return () -> {
+                    now[0] += resolutionMs;
+                    wheel.advance(now[0], refresh);
+                    return now[0];
+                };
+            }));
+        }
+
+        // Snapshots, written into the fork's temporary directory
+        for (int size : FILE_SIZES) {
+            benchmarks.add(new MicroBenchmark("AggregationServer.saveWeatherDataToFile:stations=" + size, 1, () -> {
+                fillServer(size);
+                return () -> {
+                    AggregationServer.saveWeatherDataToFile();
+                    return null;
+                };
+            }));
+            benchmarks.add(new MicroBenchmark("AggregationServer.loadWeatherDataFromFile:stations=" + size, 1, () -> {
+                fillServer(size);
+                AggregationServer.saveWeatherDataToFile();
+                return () -> {
+                    AggregationServer.loadWeatherDataFromFile();
+                    return null;
+                };
+            }));
+        }
+
+        // The Lamport clock, alone and contended
+        for (int threads : new int[]{1, 4, 8}) {
+            benchmarks.add(new MicroBenchmark("LamportClock.update", threads, () -> {
+                LamportClock clock = new LamportClock("benchmark");
+                return clock::update;
+            }));
+        }
+        benchmarks.add(new MicroBenchmark("LamportClock.updateReceived", 4, () -> {
+            LamportClock clock = new LamportClock("benchmark");
+            return () -> clock.update(ThreadLocalRandom.current().nextLong(1_000_000));
+        }));
+
+        return benchmarks;
+    }
+
+    // A GET of a random station, and every tenth time a PUT that keeps the newer reading, like storeIfNewer
+    private static MicroBenchmark.Operation storeOperation(Map<String, WeatherData> store, int size) {
+        return () -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            String id = stationId(random.nextInt(size));
+            if (random.nextInt(10) != 0) {
+                return store.get(id);
+            }
+            WeatherData update = new WeatherData().fromJson(SAMPLE);
+            update.setId(id);
+            update.setLamportTimestamp(random.nextLong(1_000_000));
+            return store.compute(id, (key, current) ->
+                    (current != null && current.getLamportTimestamp() > update.getLamportTimestamp()) ? current : update);
+        };
+    }
+
+    // An index of stations at random places
+    private static GeoIndex geoIndex(int size) {
+        GeoIndex index = new GeoIndex(1);
+        Random random = new Random(3);
+        for (int i = 0; i < size; i++) {
+            index.put(stationId(i), random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+        }
+        return index;
+    }
+
+    // Puts the stations into the server's store through storeIfNewer, with the current time
+    private static void fillServer(int size) {
+        for (WeatherData weatherData : stations(size, System.currentTimeMillis()).values()) {
+            AggregationServer.storeIfNewer(weatherData);
+        }
+    }
+
+    static Map<String, WeatherData> stations(int size, long timestamp) {
+        Map<String, WeatherData> stations = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            WeatherData weatherData = new WeatherData().fromJson(SAMPLE);
+            weatherData.setId(stationId(i));
+            weatherData.setAirTemp(10 + i % 200 / 10.0);
+            weatherData.setLamportTimestamp(i + 1);
+            weatherData.setTimestamp(timestamp);
+            stations.put(weatherData.getId(), weatherData);
+        }
+        return stations;
+    }
+
+    private static String stationId(int i) {
+        return "IDS" + (60000 + i);
+    }
+}
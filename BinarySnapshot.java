@@ -0,0 +1,233 @@
+import com.google.gson.Gson;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary snapshot of the weather store.
+ *
+ * Layout (big-endian):
+ *   header        magic "WSNP", format version, record count, string count, creation time
+ *   string table  every distinct string once: length + UTF-8 bytes
+ *   records       RECORD_SIZE bytes each; strings are indexes into the string table (-1 for null)
+ *   trailer       CRC32 of everything before it
+ *
+ * Records have a fixed width, so loading is a straight walk over a memory-mapped file and repeated
+ * values such as state, time zone or cloud are stored and decoded only once.
+ */
+public class BinarySnapshot {
+    private static final int MAGIC = 0x57534E50;  // "WSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int RECORD_SIZE = 11 * Integer.BYTES + 6 * Double.BYTES + 2 * Long.BYTES;
+
+    /**
+     * Writes the readings to the file through a temporary file and an atomic move,
+     * so a crash never leaves a half-written snapshot behind.
+     */
+    public static void write(Path file, Collection<WeatherData> readings) throws IOException {
+        List<WeatherData> records = new ArrayList<>(readings);
+        Map<String, Integer> stringIndex = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        for (WeatherData data : records) {
+            for (String value : stringsOf(data)) {
+                if (value != null && !stringIndex.containsKey(value)) {
+                    stringIndex.put(value, strings.size());
+                    strings.add(value.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream stream = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(stream, crc), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(records.size());
+            out.writeInt(strings.size());
+            out.writeLong(System.currentTimeMillis());
+
+            for (byte[] value : strings) {
+                out.writeInt(value.length);
+                out.write(value);
+            }
+
+            for (WeatherData data : records) {
+                out.writeInt(indexOf(stringIndex, data.getId()));
+                out.writeInt(indexOf(stringIndex, data.getName()));
+                out.writeInt(indexOf(stringIndex, data.getState()));
+                out.writeInt(indexOf(stringIndex, data.getTimeZone()));
+                out.writeDouble(data.getLat());
+                out.writeDouble(data.getLon());
+                out.writeInt(indexOf(stringIndex, data.getLocalDateTime()));
+                out.writeInt(indexOf(stringIndex, data.getLocalDateTimeFull()));
+                out.writeDouble(data.getAirTemp());
+                out.writeDouble(data.getApparentT());
+                out.writeInt(indexOf(stringIndex, data.getCloud()));
+                out.writeDouble(data.getDewpt());
+                out.writeDouble(data.getPress());
+                out.writeInt(data.getRelHum());
+                out.writeInt(indexOf(stringIndex, data.getWindDir()));
+                out.writeInt(data.getWindSpdKmh());
+                out.writeInt(data.getWindSpdKt());
+                out.writeLong(data.getTimestamp());
+                out.writeLong(data.getLamportTimestamp());
+            }
+
+            out.flush();
+            // the trailer is not part of the checksum, so write it around the checked stream
+            new DataOutputStream(stream).writeLong(crc.getValue());
+            stream.getFD().sync();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Memory-maps the snapshot and passes every reading to the consumer.
+     */
+    public static void read(Path file, Consumer<WeatherData> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + Long.BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Unsupported snapshot size: " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            int bodyLength = (int) size - Long.BYTES;
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buffer.duplicate();
+            body.limit(bodyLength);
+            crc.update(body);
+            if (crc.getValue() != buffer.getLong(bodyLength)) {
+                throw new IOException("Snapshot checksum mismatch in " + file);
+            }
+
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is not a weather snapshot");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int recordCount = buffer.getInt();
+            int stringCount = buffer.getInt();
+            buffer.getLong();  // creation time
+
+            String[] strings = new String[stringCount];
+            byte[] scratch = new byte[256];
+            for (int i = 0; i < stringCount; i++) {
+                int length = buffer.getInt();
+                if (length > scratch.length) {
+                    scratch = new byte[length];
+                }
+                buffer.get(scratch, 0, length);
+                strings[i] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+
+            if (buffer.remaining() - Long.BYTES != (long) recordCount * RECORD_SIZE) {
+                throw new IOException("Snapshot record section has the wrong size in " + file);
+            }
+
+            for (int i = 0; i < recordCount; i++) {
+                WeatherData data = new WeatherData();
+                data.setId(stringAt(strings, buffer.getInt()));
+                data.setName(stringAt(strings, buffer.getInt()));
+                data.setState(stringAt(strings, buffer.getInt()));
+                data.setTimeZone(stringAt(strings, buffer.getInt()));
+                data.setLat(buffer.getDouble());
+                data.setLon(buffer.getDouble());
+                data.setLocalDateTime(stringAt(strings, buffer.getInt()));
+                data.setLocalDateTimeFull(stringAt(strings, buffer.getInt()));
+                data.setAirTemp(buffer.getDouble());
+                data.setApparentT(buffer.getDouble());
+                data.setCloud(stringAt(strings, buffer.getInt()));
+                data.setDewpt(buffer.getDouble());
+                data.setPress(buffer.getDouble());
+                data.setRelHum(buffer.getInt());
+                data.setWindDir(stringAt(strings, buffer.getInt()));
+                data.setWindSpdKmh(buffer.getInt());
+                data.setWindSpdKt(buffer.getInt());
+                data.setTimestamp(buffer.getLong());
+                data.setLamportTimestamp(buffer.getLong());
+                consumer.accept(data);
+            }
+        }
+    }
+
+    // Reads a snapshot in the JSON-lines format of File.json
+    public static List<WeatherData> importJson(Path file) throws IOException {
+        Gson gson = new Gson();
+        List<WeatherData> readings = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                WeatherData data = gson.fromJson(line, WeatherData.class);
+                if (data != null && data.getId() != null) {
+                    readings.add(data);
+                }
+            }
+        }
+        return readings;
+    }
+
+    // Writes readings in the JSON-lines format of File.json
+    public static void exportJson(Path file, Collection<WeatherData> readings) throws IOException {
+        Gson gson = new Gson();
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (WeatherData data : readings) {
+                writer.write(gson.toJson(data));
+                writer.newLine();
+            }
+        }
+    }
+
+    // Converts between the JSON and binary formats, e.g. BinarySnapshot import File.json File.snapshot
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.out.println("Usage: BinarySnapshot import <json file> <snapshot file>");
+            System.out.println("       BinarySnapshot export <snapshot file> <json file>");
+            return;
+        }
+
+        if (args[0].equals("import")) {
+            List<WeatherData> readings = importJson(Paths.get(args[1]));
+            write(Paths.get(args[2]), readings);
+            System.out.println("Wrote " + readings.size() + " readings to " + args[2]);
+        } else {
+            List<WeatherData> readings = new ArrayList<>();
+            read(Paths.get(args[1]), readings::add);
+            exportJson(Paths.get(args[2]), readings);
+            System.out.println("Wrote " + readings.size() + " readings to " + args[2]);
+        }
+    }
+
+    private static String[] stringsOf(WeatherData data) {
+        return new String[] {
+                data.getId(), data.getName(), data.getState(), data.getTimeZone(), data.getLocalDateTime(),
+                data.getLocalDateTimeFull(), data.getCloud(), data.getWindDir()
+        };
+    }
+
+    private static int indexOf(Map<String, Integer> stringIndex, String value) {
+        return (value == null) ? -1 : stringIndex.get(value);
+    }
+
+    private static String stringAt(String[] strings, int index) throws IOException {
+        if (index == -1) {
+            return null;
+        }
+        if (index < 0 || index >= strings.length) {
+            throw new IOException("Snapshot string index out of range: " + index);
+        }
+        return strings[index];
+    }
+}
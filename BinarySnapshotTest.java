@@ -0,0 +1,60 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+public class BinarySnapshotTest {
+
+    private static WeatherData reading(String id, String cloud) {
+        WeatherData data = new WeatherData();
+        data.setId(id);
+        data.setName("Adelaide (West Terrace /  ngayirdapira)");
+        data.setState("SA");
+        data.setTimeZone("CST");
+        data.setLat(-34.9);
+        data.setLon(138.6);
+        data.setLocalDateTime("15/04:00pm");
+        data.setAirTemp(13.3);
+        data.setCloud(cloud);
+        data.setPress(1023.9);
+        data.setRelHum(60);
+        data.setWindSpdKmh(15);
+        data.setTimestamp(1727943536434L);
+        data.setLamportTimestamp(42);
+        return data;
+    }
+
+    @Test
+    public void roundTripsAllFields() throws IOException {
+        Path file = Files.createTempDirectory("snapshot-test").resolve("File.snapshot");
+        List<WeatherData> readings = Arrays.asList(reading("IDS60901", "Partly cloudy"), reading("IDS60902", null));
+
+        BinarySnapshot.write(file, readings);
+        List<WeatherData> loaded = new ArrayList<>();
+        BinarySnapshot.read(file, loaded::add);
+
+        Assert.assertEquals(2, loaded.size());
+        for (int i = 0; i < readings.size(); i++) {
+            Assert.assertEquals(readings.get(i).toString(), loaded.get(i).toString());
+            Assert.assertEquals(readings.get(i).getTimestamp(), loaded.get(i).getTimestamp());
+            Assert.assertEquals(readings.get(i).getLamportTimestamp(), loaded.get(i).getLamportTimestamp());
+        }
+        // repeated strings come from the string table, so they are the same instance
+        Assert.assertSame(loaded.get(0).getState(), loaded.get(1).getState());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCorruptedSnapshot() throws IOException {
+        Path file = Files.createTempDirectory("snapshot-test").resolve("File.snapshot");
+        BinarySnapshot.write(file, Collections.singletonList(reading("IDS60901", "Sunny")));
+
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 0x5A;
+        Files.write(file, bytes);
+
+        BinarySnapshot.read(file, data -> { });
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.LongSupplier;
+
+/**
+ * Ordered index of the latest change of every station, kept next to weatherDataStore for
+ * GET /weather.json?since=<lamport>.
+ *
+ * Each station has one entry: the Lamport time of its stored reading, or a tombstone with the Lamport
+ * time at which it expired. The entries are sorted by Lamport time, so the changes after a given time are
+ * a tail of the index and a delta costs as much as the churn, not the store.
+ *
+ * Lamport times are handed out before a PUT is stored, so a reading with a lower time can still be on
+ * its way into the store while a higher one is already visible. begin() and end() track these writes,
+ * and a delta only reaches up to the watermark below the oldest unfinished one, so a client that asks
+ * again from that watermark never misses a change.
+ *
+ * Tombstones are kept for the retention time. A client asking from before the newest pruned tombstone
+ * may have missed a removal and is answered with the full store instead.
+ */
+public class ChangeIndex {
+
+    public static final class Change {
+        private final String id;
+        private final long lamportTimestamp;
+        private final boolean removed;
+        private final long removedAt;
+
+        Change(String id, long lamportTimestamp, boolean removed, long removedAt) {
+            this.id = id;
+            this.lamportTimestamp = lamportTimestamp;
+            this.removed = removed;
+            this.removedAt = removedAt;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getLamportTimestamp() {
+            return lamportTimestamp;
+        }
+
+        public boolean isRemoved() {
+            return removed;
+        }
+    }
+
+    // By Lamport time, then station id; a null id sorts first so it can be used as a search bound
+    private static final Comparator<Change> ORDER = Comparator.comparingLong((Change change) -> change.lamportTimestamp)
+            .thenComparing(change -> change.id, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private final long tombstoneRetentionMs;
+    private final ConcurrentSkipListSet<Change> changes = new ConcurrentSkipListSet<>(ORDER);
+    private final Map<String, Change> latest = new ConcurrentHashMap<>();
+    private final Queue<Change> tombstones = new ConcurrentLinkedQueue<>();
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+    private volatile long horizon;
+
+    public ChangeIndex(long tombstoneRetentionMs) {
+        this.tombstoneRetentionMs = tombstoneRetentionMs;
+    }
+
+    /**
+     * Takes a Lamport time for a write that is about to change the store and remembers it until end().
+     * The tick and the registration happen together, so the watermark can never pass the write.
+     */
+    public long begin(LongSupplier tick) {
+        synchronized (inFlight) {
+            long time = tick.getAsLong();
+            inFlight.add(time);
+            return time;
+        }
+    }
+
+    public void end(long time) {
+        inFlight.remove(time);
+    }
+
+    // The highest Lamport time up to which every change is in the index
+    public long watermark(LongSupplier clockTime) {
+        synchronized (inFlight) {
+            return inFlight.isEmpty() ? clockTime.getAsLong() : inFlight.first() - 1;
+        }
+    }
+
+    /**
+     * Records that the station now holds the reading with this Lamport time.
+     * Must be called while the store holds the station's entry, so the changes of one station are
+     * recorded in the order they are stored.
+     */
+    public void recordUpdate(String id, long lamportTimestamp) {
+        record(new Change(id, lamportTimestamp, false, 0));
+    }
+
+    // Records a tombstone for a station that was removed from the store, under the same rule as recordUpdate
+    public void recordRemoval(String id, long lamportTimestamp, long now) {
+        Change tombstone = new Change(id, lamportTimestamp, true, now);
+        record(tombstone);
+        tombstones.add(tombstone);
+    }
+
+    private void record(Change change) {
+        Change previous = latest.put(change.id, change);
+        if (previous != null) {
+            changes.remove(previous);
+        }
+        changes.add(change);
+    }
+
+    // Forgets tombstones older than the retention time; deltas from before them become full answers
+    public void pruneTombstones(long now) {
+        Change tombstone;
+        while ((tombstone = tombstones.peek()) != null && now - tombstone.removedAt > tombstoneRetentionMs) {
+            tombstones.poll();
+            if (latest.remove(tombstone.id, tombstone)) {
+                changes.remove(tombstone);
+            }
+            horizon = Math.max(horizon, tombstone.lamportTimestamp);
+        }
+    }
+
+    /**
+     * Changes with since < Lamport time <= upTo, oldest first.
+     * Returns null if removals after since may have been forgotten, the caller then sends the full store.
+     */
+    public List<Change> changesBetween(long since, long upTo) {
+        if (since < horizon) {
+            return null;
+        }
+        List<Change> result = new ArrayList<>();
+        for (Change change : changes.tailSet(new Change(null, since + 1, false, 0))) {
+            if (change.lamportTimestamp > upTo) {
+                break;
+            }
+            result.add(change);
+        }
+        return result;
+    }
+
+    /**
+     * Nothing before this Lamport time can be answered as a delta, e.g. after a restart when the
+     * tombstones of earlier runs are gone.
+     */
+    public void setHorizon(long lamportTimestamp) {
+        horizon = Math.max(horizon, lamportTimestamp);
+    }
+
+    public int size() {
+        return changes.size();
+    }
+
+    public int getTombstoneCount() {
+        return tombstones.size();
+    }
+}
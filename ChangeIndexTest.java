@@ -0,0 +1,73 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ChangeIndexTest {
+
+    private static List<String> describe(List<ChangeIndex.Change> changes) {
+        List<String> described = new ArrayList<>();
+        for (ChangeIndex.Change change : changes) {
+            described.add((change.isRemoved() ? "-" : "+") + change.getId() + "@" + change.getLamportTimestamp());
+        }
+        return described;
+    }
+
+    @Test
+    public void deltaHoldsTheLatestChangeOfEachStation() {
+        ChangeIndex index = new ChangeIndex(60000);
+        index.recordUpdate("IDS60901", 1);
+        index.recordUpdate("IDS60902", 2);
+        index.recordUpdate("IDS60901", 3);
+        index.recordRemoval("IDS60902", 4, System.currentTimeMillis());
+
+        Assert.assertEquals("[+IDS60901@3, -IDS60902@4]", describe(index.changesBetween(0, 10)).toString());
+        Assert.assertEquals("[-IDS60902@4]", describe(index.changesBetween(3, 10)).toString());
+        Assert.assertEquals("[+IDS60901@3]", describe(index.changesBetween(1, 3)).toString());
+        Assert.assertEquals(2, index.size());
+    }
+
+    @Test
+    public void watermarkStaysBelowUnfinishedWrites() {
+        ChangeIndex index = new ChangeIndex(60000);
+        long[] clock = {10};
+
+        long first = index.begin(() -> ++clock[0]);
+        long second = index.begin(() -> ++clock[0]);
+        Assert.assertEquals(10, index.watermark(() -> clock[0]));
+
+        index.end(second);
+        Assert.assertEquals(10, index.watermark(() -> clock[0]));
+        index.end(first);
+        Assert.assertEquals(12, index.watermark(() -> clock[0]));
+    }
+
+    @Test
+    public void prunedTombstonesTurnOldDeltasIntoFullAnswers() {
+        ChangeIndex index = new ChangeIndex(1000);
+        long now = System.currentTimeMillis();
+        index.recordUpdate("IDS60901", 1);
+        index.recordRemoval("IDS60902", 2, now);
+        index.recordUpdate("IDS60903", 3);
+
+        index.pruneTombstones(now + 500);
+        Assert.assertNotNull(index.changesBetween(0, 10));
+
+        index.pruneTombstones(now + 5000);
+        Assert.assertNull(index.changesBetween(1, 10));
+        Assert.assertEquals("[+IDS60903@3]", describe(index.changesBetween(2, 10)).toString());
+        Assert.assertEquals(0, index.getTombstoneCount());
+    }
+
+    @Test
+    public void readdedStationReplacesItsTombstone() {
+        ChangeIndex index = new ChangeIndex(1000);
+        long now = System.currentTimeMillis();
+        index.recordRemoval("IDS60901", 1, now);
+        index.recordUpdate("IDS60901", 2);
+        index.pruneTombstones(now + 5000);
+
+        Assert.assertEquals("[+IDS60901@2]", describe(index.changesBetween(1, 10)).toString());
+    }
+}
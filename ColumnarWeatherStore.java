@@ -0,0 +1,409 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Weather store that keeps readings in columns instead of one WeatherData object per station.
+ *
+ * Numeric fields live in primitive arrays, one slot per station (a "row"). Strings with few distinct
+ * values (state, time zone, cloud, wind direction and the day/time of the report) are dictionary-encoded
+ * as int codes, so a station costs a few dozen bytes of arrays plus its id and name instead of about ten
+ * objects. The id index maps a station id to its row; rows of removed stations are reused.
+ *
+ * It implements ConcurrentMap so it can replace the ConcurrentHashMap behind weatherDataStore.
+ * WeatherData objects are only created when a reading is read back out of the store.
+ */
+public class ColumnarWeatherStore extends AbstractMap<String, WeatherData> implements ConcurrentMap<String, WeatherData> {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> rowsById = new HashMap<>();
+    private final Deque<Integer> freeRows = new ArrayDeque<>();
+    private int rowCount;
+
+    // high-cardinality strings
+    private String[] ids = new String[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private String[] localDateTimesFull = new String[INITIAL_CAPACITY];
+
+    // dictionary-encoded strings
+    private final Dictionary states = new Dictionary();
+    private final Dictionary timeZones = new Dictionary();
+    private final Dictionary clouds = new Dictionary();
+    private final Dictionary windDirs = new Dictionary();
+    private final Dictionary localDateTimes = new Dictionary();
+    private int[] stateCodes = new int[INITIAL_CAPACITY];
+    private int[] timeZoneCodes = new int[INITIAL_CAPACITY];
+    private int[] cloudCodes = new int[INITIAL_CAPACITY];
+    private int[] windDirCodes = new int[INITIAL_CAPACITY];
+    private int[] localDateTimeCodes = new int[INITIAL_CAPACITY];
+
+    // numeric columns
+    private double[] lat = new double[INITIAL_CAPACITY];
+    private double[] lon = new double[INITIAL_CAPACITY];
+    private double[] airTemp = new double[INITIAL_CAPACITY];
+    private double[] apparentT = new double[INITIAL_CAPACITY];
+    private double[] dewpt = new double[INITIAL_CAPACITY];
+    private double[] press = new double[INITIAL_CAPACITY];
+    private int[] relHum = new int[INITIAL_CAPACITY];
+    private int[] windSpdKmh = new int[INITIAL_CAPACITY];
+    private int[] windSpdKt = new int[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private long[] lamportTimestamps = new long[INITIAL_CAPACITY];
+
+    @Override
+    public WeatherData get(Object key) {
+        lock.readLock().lock();
+        try {
+            Integer row = rowsById.get(key);
+            return (row == null) ? null : readRow(row);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        lock.readLock().lock();
+        try {
+            return rowsById.containsKey(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return rowsById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public WeatherData put(String id, WeatherData weatherData) {
+        lock.writeLock().lock();
+        try {
+            Integer row = rowsById.get(id);
+            WeatherData previous = (row == null) ? null : readRow(row);
+            writeRow(id, weatherData);
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public WeatherData remove(Object key) {
+        lock.writeLock().lock();
+        try {
+            Integer row = rowsById.remove(key);
+            if (row == null) {
+                return null;
+            }
+            WeatherData previous = readRow(row);
+            ids[row] = null;
+            names[row] = null;
+            localDateTimesFull[row] = null;
+            freeRows.push(row);
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Atomic, like ConcurrentHashMap.compute, because storeIfNewer relies on it
+    @Override
+    public WeatherData compute(String id, BiFunction<? super String, ? super WeatherData, ? extends WeatherData> remapping) {
+        lock.writeLock().lock();
+        try {
+            WeatherData current = get(id);
+            WeatherData updated = remapping.apply(id, current);
+            if (updated == null) {
+                if (current != null) {
+                    remove(id);
+                }
+            } else if (updated != current) {
+                writeRow(id, updated);
+            }
+            return updated;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // The ConcurrentMap defaults retry with get and replace, which can run the function twice or after
+    // a concurrent put; expiry and hand-offs have side effects in theirs, so these hold the lock as well
+    @Override
+    public WeatherData computeIfPresent(String id, BiFunction<? super String, ? super WeatherData, ? extends WeatherData> remapping) {
+        lock.writeLock().lock();
+        try {
+            return containsKey(id) ? compute(id, remapping) : null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public WeatherData computeIfAbsent(String id, Function<? super String, ? extends WeatherData> mapping) {
+        lock.writeLock().lock();
+        try {
+            WeatherData current = get(id);
+            if (current != null) {
+                return current;
+            }
+            WeatherData created = mapping.apply(id);
+            if (created != null) {
+                writeRow(id, created);
+            }
+            return created;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public WeatherData merge(String id, WeatherData value, BiFunction<? super WeatherData, ? super WeatherData, ? extends WeatherData> remapping) {
+        lock.writeLock().lock();
+        try {
+            return compute(id, (key, current) -> (current == null) ? value : remapping.apply(current, value));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public WeatherData putIfAbsent(String id, WeatherData weatherData) {
+        lock.writeLock().lock();
+        try {
+            WeatherData current = get(id);
+            if (current == null) {
+                writeRow(id, weatherData);
+            }
+            return current;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        lock.writeLock().lock();
+        try {
+            WeatherData current = get(key);
+            if (current != null && sameReading(current, value)) {
+                remove(key);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(String id, WeatherData oldValue, WeatherData newValue) {
+        lock.writeLock().lock();
+        try {
+            WeatherData current = get(id);
+            if (current != null && sameReading(current, oldValue)) {
+                writeRow(id, newValue);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public WeatherData replace(String id, WeatherData value) {
+        lock.writeLock().lock();
+        try {
+            return containsKey(id) ? put(id, value) : null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            rowsById.clear();
+            freeRows.clear();
+            rowCount = 0;
+            Arrays.fill(ids, null);
+            Arrays.fill(names, null);
+            Arrays.fill(localDateTimesFull, null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A snapshot of the entries. Removing through its iterator (or removeIf) removes the station
+     * from the store, which is how expireOldData evicts readings.
+     */
+    @Override
+    public Set<Entry<String, WeatherData>> entrySet() {
+        List<Entry<String, WeatherData>> entries = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, Integer> row : rowsById.entrySet()) {
+                entries.add(new SimpleImmutableEntry<>(row.getKey(), readRow(row.getValue())));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return new AbstractSet<Entry<String, WeatherData>>() {
+            @Override
+            public Iterator<Entry<String, WeatherData>> iterator() {
+                Iterator<Entry<String, WeatherData>> iterator = entries.iterator();
+                return new Iterator<Entry<String, WeatherData>>() {
+                    private Entry<String, WeatherData> last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, WeatherData> next() {
+                        last = iterator.next();
+                        return last;
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                        ColumnarWeatherStore.this.remove(last.getKey(), last.getValue());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return entries.size();
+            }
+        };
+    }
+
+    // Same Lamport and wall clock time means the same stored reading
+    private static boolean sameReading(WeatherData current, Object value) {
+        if (!(value instanceof WeatherData)) {
+            return false;
+        }
+        WeatherData other = (WeatherData) value;
+        return current.getLamportTimestamp() == other.getLamportTimestamp() && current.getTimestamp() == other.getTimestamp();
+    }
+
+    // Must be called with the write lock held
+    private void writeRow(String id, WeatherData data) {
+        Integer row = rowsById.get(id);
+        if (row == null) {
+            row = freeRows.isEmpty() ? rowCount++ : freeRows.pop();
+            ensureCapacity(row + 1);
+            rowsById.put(id, row);
+        }
+
+        ids[row] = id;
+        names[row] = data.getName();
+        stateCodes[row] = states.encode(data.getState());
+        timeZoneCodes[row] = timeZones.encode(data.getTimeZone());
+        cloudCodes[row] = clouds.encode(data.getCloud());
+        windDirCodes[row] = windDirs.encode(data.getWindDir());
+        localDateTimeCodes[row] = localDateTimes.encode(data.getLocalDateTime());
+        localDateTimesFull[row] = data.getLocalDateTimeFull();
+        lat[row] = data.getLat();
+        lon[row] = data.getLon();
+        airTemp[row] = data.getAirTemp();
+        apparentT[row] = data.getApparentT();
+        dewpt[row] = data.getDewpt();
+        press[row] = data.getPress();
+        relHum[row] = data.getRelHum();
+        windSpdKmh[row] = data.getWindSpdKmh();
+        windSpdKt[row] = data.getWindSpdKt();
+        timestamps[row] = data.getTimestamp();
+        lamportTimestamps[row] = data.getLamportTimestamp();
+    }
+
+    // Must be called with the read or write lock held
+    private WeatherData readRow(int row) {
+        WeatherData data = new WeatherData();
+        data.setId(ids[row]);
+        data.setName(names[row]);
+        data.setState(states.decode(stateCodes[row]));
+        data.setTimeZone(timeZones.decode(timeZoneCodes[row]));
+        data.setCloud(clouds.decode(cloudCodes[row]));
+        data.setWindDir(windDirs.decode(windDirCodes[row]));
+        data.setLocalDateTime(localDateTimes.decode(localDateTimeCodes[row]));
+        data.setLocalDateTimeFull(localDateTimesFull[row]);
+        data.setLat(lat[row]);
+        data.setLon(lon[row]);
+        data.setAirTemp(airTemp[row]);
+        data.setApparentT(apparentT[row]);
+        data.setDewpt(dewpt[row]);
+        data.setPress(press[row]);
+        data.setRelHum(relHum[row]);
+        data.setWindSpdKmh(windSpdKmh[row]);
+        data.setWindSpdKt(windSpdKt[row]);
+        data.setTimestamp(timestamps[row]);
+        data.setLamportTimestamp(lamportTimestamps[row]);
+        return data;
+    }
+
+    private void ensureCapacity(int rows) {
+        if (rows <= ids.length) {
+            return;
+        }
+        int capacity = Math.max(rows, ids.length * 2);
+        ids = Arrays.copyOf(ids, capacity);
+        names = Arrays.copyOf(names, capacity);
+        stateCodes = Arrays.copyOf(stateCodes, capacity);
+        timeZoneCodes = Arrays.copyOf(timeZoneCodes, capacity);
+        cloudCodes = Arrays.copyOf(cloudCodes, capacity);
+        windDirCodes = Arrays.copyOf(windDirCodes, capacity);
+        localDateTimeCodes = Arrays.copyOf(localDateTimeCodes, capacity);
+        localDateTimesFull = Arrays.copyOf(localDateTimesFull, capacity);
+        lat = Arrays.copyOf(lat, capacity);
+        lon = Arrays.copyOf(lon, capacity);
+        airTemp = Arrays.copyOf(airTemp, capacity);
+        apparentT = Arrays.copyOf(apparentT, capacity);
+        dewpt = Arrays.copyOf(dewpt, capacity);
+        press = Arrays.copyOf(press, capacity);
+        relHum = Arrays.copyOf(relHum, capacity);
+        windSpdKmh = Arrays.copyOf(windSpdKmh, capacity);
+        windSpdKt = Arrays.copyOf(windSpdKt, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        lamportTimestamps = Arrays.copyOf(lamportTimestamps, capacity);
+    }
+
+    // Maps each distinct string to a small int code; code -1 stands for null
+    private static class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int encode(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        String decode(int code) {
+            return (code < 0) ? null : values.get(code);
+        }
+    }
+}
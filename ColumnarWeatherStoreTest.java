@@ -0,0 +1,92 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ColumnarWeatherStoreTest {
+
+    private static WeatherData reading(String id, double airTemp, String cloud, int lamportTimestamp, long timestamp) {
+        String json = "{\"id\":\"" + id + "\",\"name\":\"Station " + id + "\",\"state\":\"SA\",\"time_zone\":\"CST\",\"lat\":-34.9,\"lon\":138.6,"
+                + "\"local_date_time\":\"15/04:00pm\",\"local_date_time_full\":\"20230715160000\",\"air_temp\":" + airTemp + ",\"apparent_t\":9.5,"
+                + "\"cloud\":\"" + cloud + "\",\"dewpt\":5.7,\"press\":1023.9,\"rel_hum\":60,\"wind_dir\":\"S\",\"wind_spd_kmh\":15,\"wind_spd_kt\":8}";
+        return new WeatherData(json, lamportTimestamp, timestamp);
+    }
+
+    @Test
+    public void storesAndReturnsEveryField() {
+        Map<String, WeatherData> store = new ColumnarWeatherStore();
+        WeatherData data = reading("IDS60901", 13.3, "Partly cloudy", 4, 1000L);
+
+        Assert.assertNull(store.put(data.getId(), data));
+        WeatherData loaded = store.get("IDS60901");
+
+        Assert.assertEquals(data.toString(), loaded.toString());
+        Assert.assertEquals(4, loaded.getLamportTimestamp());
+        Assert.assertEquals(1000L, loaded.getTimestamp());
+        Assert.assertNull(store.get("IDS60902"));
+    }
+
+    @Test
+    public void growsAndReusesRowsOfRemovedStations() {
+        Map<String, WeatherData> store = new ColumnarWeatherStore();
+        for (int i = 0; i < 3000; i++) {
+            store.put("station" + i, reading("station" + i, i, (i % 2 == 0) ? "Sunny" : "Cloudy", i, i));
+        }
+        Assert.assertEquals(3000, store.size());
+
+        store.entrySet().removeIf(entry -> entry.getValue().getTimestamp() < 1000);
+        Assert.assertEquals(2000, store.size());
+        Assert.assertNull(store.get("station10"));
+
+        store.put("new", reading("new", 99.5, "Rain", 5000, 5000));
+        Assert.assertEquals(2001, store.size());
+        Assert.assertEquals(99.5, store.get("new").getAirTemp(), 0.0);
+        Assert.assertEquals("Cloudy", store.get("station2999").getCloud());
+    }
+
+    @Test
+    public void computeKeepsTheNewerReading() {
+        Map<String, WeatherData> store = new ColumnarWeatherStore();
+        store.put("IDS60901", reading("IDS60901", 20.0, "Sunny", 10, 1000L));
+
+        WeatherData older = reading("IDS60901", 5.0, "Rain", 3, 2000L);
+        store.compute("IDS60901", (id, current) ->
+                current.getLamportTimestamp() > older.getLamportTimestamp() ? current : older);
+
+        Assert.assertEquals(20.0, store.get("IDS60901").getAirTemp(), 0.0);
+    }
+
+    @Test
+    public void computeIfPresentIsAtomicAgainstConcurrentPuts() throws InterruptedException {
+        ConcurrentMap<String, WeatherData> store = new ColumnarWeatherStore();
+        store.put("IDS60901", reading("IDS60901", 20.0, "Sunny", 0, 0));
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= 20000; i++) {
+                store.put("IDS60901", reading("IDS60901", 20.0, "Sunny", i, i));
+            }
+        });
+        writer.start();
+        int invocations = 0;
+        while (writer.isAlive()) {
+            // like expiry: the function has a side effect and removes only the reading it was given
+            AtomicInteger calls = new AtomicInteger();
+            long[] seen = new long[1];
+            store.computeIfPresent("IDS60901", (id, current) -> {
+                calls.incrementAndGet();
+                seen[0] = current.getLamportTimestamp();
+                return (current.getLamportTimestamp() % 2 == 0) ? null : current;
+            });
+            Assert.assertTrue("function ran " + calls.get() + " times", calls.get() <= 1);
+            WeatherData after = store.get("IDS60901");
+            if (calls.get() == 1 && seen[0] % 2 == 0 && after != null) {
+                // removed, so whatever is there now was put after the removal
+                Assert.assertTrue(after.getLamportTimestamp() > seen[0]);
+            }
+            invocations++;
+        }
+        writer.join();
+        Assert.assertTrue(invocations > 0);
+    }
+}
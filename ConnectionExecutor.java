@@ -0,0 +1,210 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs accepted connections for the AggregationServer.
+ *
+ * Two modes are supported:
+ *  - VIRTUAL: one virtual thread per connection (needs a JDK with virtual threads,
+ *    falls back to POOLED otherwise)
+ *  - POOLED: a fixed number of worker threads with a bounded queue of waiting connections
+ *
+ * Both modes keep track of how many connections are running and how many are waiting.
+ *
+ * A long-poll or event stream holds its connection's thread while it waits, and so does a keep-alive
+ * connection between its requests. Pooled workers are few, so only maxWaitingSubscribers of them may be
+ * held by subscribers and only maxKeepAliveConnections by persistent connections; the others stay free
+ * for new connections. Virtual threads are cheap to hold and are not limited.
+ */
+public class ConnectionExecutor {
+
+    public enum Mode { VIRTUAL, POOLED }
+
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final BlockingQueue<Runnable> queue;  // only used in POOLED mode
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger queuedConnections = new AtomicInteger();
+    private final Semaphore subscriberPermits;  // null when subscribers are not limited
+    private final AtomicInteger waitingSubscribers = new AtomicInteger();
+    private final Semaphore keepAlivePermits;  // null when persistent connections are not limited
+    private final AtomicInteger keepAliveConnections = new AtomicInteger();
+
+    public ConnectionExecutor(Mode mode, int poolSize, int queueLimit) {
+        this(mode, poolSize, queueLimit, Math.max(1, poolSize / 4));
+    }
+
+    public ConnectionExecutor(Mode mode, int poolSize, int queueLimit, int maxWaitingSubscribers) {
+        this(mode, poolSize, queueLimit, maxWaitingSubscribers, Math.max(1, poolSize / 2));
+    }
+
+    public ConnectionExecutor(Mode mode, int poolSize, int queueLimit, int maxWaitingSubscribers, int maxKeepAliveConnections) {
+        ExecutorService virtualExecutor = (mode == Mode.VIRTUAL) ? newVirtualThreadExecutor() : null;
+
+        if (virtualExecutor != null) {
+            this.mode = Mode.VIRTUAL;
+            this.executor = virtualExecutor;
+            this.queue = null;
+            this.subscriberPermits = null;
+            this.keepAlivePermits = null;
+        } else {
+            if (mode == Mode.VIRTUAL) {
+                System.err.println("Virtual threads are not available on this JVM, using a pooled executor instead.");
+            }
+            this.mode = Mode.POOLED;
+            this.queue = new ArrayBlockingQueue<>(queueLimit);
+            this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS, queue,
+                    new NamedThreadFactory("connection-worker"), new ThreadPoolExecutor.AbortPolicy());
+            this.subscriberPermits = new Semaphore(maxWaitingSubscribers);
+            this.keepAlivePermits = new Semaphore(maxKeepAliveConnections);
+        }
+    }
+
+    // Builds the executor from system properties, e.g. -Daggregation.executor=virtual
+    public static ConnectionExecutor fromSystemProperties() {
+        String modeName = System.getProperty("aggregation.executor", "pooled");
+        Mode mode = modeName.equalsIgnoreCase("virtual") ? Mode.VIRTUAL : Mode.POOLED;
+        int poolSize = Integer.getInteger("aggregation.poolSize", 200);
+        int queueLimit = Integer.getInteger("aggregation.queueLimit", 10000);
+        int maxWaitingSubscribers = Integer.getInteger("aggregation.maxWaitingSubscribers", Math.max(1, poolSize / 4));
+        int maxKeepAliveConnections = Integer.getInteger("aggregation.maxKeepAliveConnections", Math.max(1, poolSize / 2));
+        return new ConnectionExecutor(mode, poolSize, queueLimit, maxWaitingSubscribers, maxKeepAliveConnections);
+    }
+
+    /**
+     * Hands a connection to the executor.
+     * Returns false if the connection was rejected because the queue is full or the executor is shut down.
+     */
+    public boolean submit(Runnable connection) {
+        queuedConnections.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                queuedConnections.decrementAndGet();
+                activeConnections.incrementAndGet();
+                try {
+                    connection.run();
+                } finally {
+                    activeConnections.decrementAndGet();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            queuedConnections.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Lets the calling connection wait as a subscriber, holding its thread. Returns false if too many
+     * subscribers already wait on pooled workers; otherwise the caller must call releaseSubscriber when done.
+     */
+    public boolean tryHoldSubscriber() {
+        if (subscriberPermits != null && !subscriberPermits.tryAcquire()) {
+            return false;
+        }
+        waitingSubscribers.incrementAndGet();
+        return true;
+    }
+
+    public void releaseSubscriber() {
+        waitingSubscribers.decrementAndGet();
+        if (subscriberPermits != null) {
+            subscriberPermits.release();
+        }
+    }
+
+    public int getWaitingSubscribers() {
+        return waitingSubscribers.get();
+    }
+
+    /**
+     * Lets the calling connection stay open after its response, holding its thread while it waits for the
+     * next request. Returns false if too many persistent connections already hold pooled workers, in which
+     * case the connection should be closed; otherwise the caller must call releaseKeepAlive when it closes.
+     */
+    public boolean tryHoldKeepAlive() {
+        if (keepAlivePermits != null && !keepAlivePermits.tryAcquire()) {
+            return false;
+        }
+        keepAliveConnections.incrementAndGet();
+        return true;
+    }
+
+    public void releaseKeepAlive() {
+        keepAliveConnections.decrementAndGet();
+        if (keepAlivePermits != null) {
+            keepAlivePermits.release();
+        }
+    }
+
+    public int getKeepAliveConnections() {
+        return keepAliveConnections.get();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public int getQueuedConnections() {
+        return queuedConnections.get();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    // Stops accepting new connections and waits for the running ones to finish
+    public void shutdown(long timeoutMs) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionExecutor{" +
+                "mode=" + mode +
+                ", active=" + getActiveConnections() +
+                ", queued=" + getQueuedConnections() +
+                ", subscribers=" + getWaitingSubscribers() +
+                ", keepAlive=" + getKeepAliveConnections() +
+                '}';
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up by reflection so the code still runs on older JDKs
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
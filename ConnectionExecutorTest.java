@@ -0,0 +1,182 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConnectionExecutorTest {
+
+    @Test
+    public void fullQueueRejectsAndShutdownDrainsIt() throws Exception {
+        ConnectionExecutor executor = new ConnectionExecutor(ConnectionExecutor.Mode.POOLED, 1, 2);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger finished = new AtomicInteger();
+
+        Assert.assertTrue(executor.submit(() -> {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished.incrementAndGet();
+        }));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(executor.submit(finished::incrementAndGet));
+        Assert.assertTrue(executor.submit(finished::incrementAndGet));
+        Assert.assertFalse(executor.submit(finished::incrementAndGet));
+        Assert.assertEquals(1, executor.getActiveConnections());
+        Assert.assertEquals(2, executor.getQueuedConnections());
+
+        // the running and the queued connections are finished, new ones are refused
+        release.countDown();
+        executor.shutdown(5000);
+        Assert.assertEquals(3, finished.get());
+        Assert.assertEquals(0, executor.getActiveConnections());
+        Assert.assertEquals(0, executor.getQueuedConnections());
+        Assert.assertTrue(executor.isShutdown());
+        Assert.assertFalse(executor.submit(finished::incrementAndGet));
+    }
+
+    @Test
+    public void rejectedConnectionGetsA503() throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             Socket client = new Socket("localhost", server.getLocalPort())) {
+            client.setSoTimeout(5000);
+            AggregationServer.rejectConnection(server.accept());
+
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            InputStream in = client.getInputStream();
+            byte[] buffer = new byte[1024];
+            for (int count; (count = in.read(buffer)) >= 0; ) {
+                received.write(buffer, 0, count);
+            }
+            String response = new String(received.toByteArray(), StandardCharsets.US_ASCII);
+            Assert.assertTrue(response, response.startsWith("HTTP/1.1 503 Service Unavailable\r\nLamport-Clock: "));
+            Assert.assertTrue(response, response.contains("\r\nRetry-After: 1\r\n"));
+            Assert.assertTrue(response, response.contains("\r\nContent-Length: 0\r\n"));
+            Assert.assertTrue(response, response.endsWith("\r\nConnection: close\r\n\r\n"));
+        }
+    }
+
+    // Sends a GET and returns the response's head, reading past its body
+    private static String get(Socket socket) throws IOException {
+        socket.getOutputStream().write("GET /metrics HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        InputStream in = socket.getInputStream();
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("closed before the response");
+            }
+            head.append((char) b);
+        }
+        String text = head.toString();
+        int start = text.indexOf("Content-Length: ") + 16;
+        long length = Long.parseLong(text.substring(start, text.indexOf("\r\n", start)));
+        for (long skipped = 0; skipped < length; skipped++) {
+            in.read();
+        }
+        return text;
+    }
+
+    @Test
+    public void newClientIsServedWhilePoolSizeIdleConnectionsAreOpen() throws Exception {
+        ConnectionExecutor executor = new ConnectionExecutor(ConnectionExecutor.Mode.POOLED, 4, 16);
+        List<Socket> idle = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = server.accept();
+                        executor.submit(new AggregationServer.ClientHandler(socket, executor));
+                    }
+                } catch (IOException e) {
+                    // server closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            // as many clients as workers, all asking to stay open and then going quiet
+            int keptOpen = 0;
+            for (int i = 0; i < 4; i++) {
+                Socket socket = new Socket("localhost", server.getLocalPort());
+                socket.setSoTimeout(5000);
+                idle.add(socket);
+                if (get(socket).contains("Connection: keep-alive")) {
+                    keptOpen++;
+                }
+            }
+            Assert.assertEquals(2, keptOpen);
+            Assert.assertEquals(2, executor.getKeepAliveConnections());
+
+            try (Socket client = new Socket("localhost", server.getLocalPort())) {
+                client.setSoTimeout(2000);
+                Assert.assertTrue(get(client).startsWith("HTTP/1.1 200 OK\r\n"));
+            }
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+            executor.shutdown(1000);
+        }
+    }
+
+    @Test
+    public void pooledExecutorCapsWaitingSubscribers() {
+        ConnectionExecutor executor = new ConnectionExecutor(ConnectionExecutor.Mode.POOLED, 8, 16, 2);
+        try {
+            Assert.assertTrue(executor.tryHoldSubscriber());
+            Assert.assertTrue(executor.tryHoldSubscriber());
+            Assert.assertFalse(executor.tryHoldSubscriber());
+            Assert.assertEquals(2, executor.getWaitingSubscribers());
+
+            executor.releaseSubscriber();
+            Assert.assertEquals(1, executor.getWaitingSubscribers());
+            Assert.assertTrue(executor.tryHoldSubscriber());
+            Assert.assertFalse(executor.tryHoldSubscriber());
+        } finally {
+            executor.shutdown(1000);
+        }
+    }
+
+    @Test
+    public void defaultCapIsAQuarterOfThePool() {
+        ConnectionExecutor executor = new ConnectionExecutor(ConnectionExecutor.Mode.POOLED, 200, 16);
+        try {
+            int held = 0;
+            while (executor.tryHoldSubscriber()) {
+                held++;
+            }
+            Assert.assertEquals(50, held);
+        } finally {
+            executor.shutdown(1000);
+        }
+    }
+
+    @Test
+    public void virtualThreadsDoNotCapSubscribers() {
+        ConnectionExecutor executor = new ConnectionExecutor(ConnectionExecutor.Mode.VIRTUAL, 4, 16, 1);
+        try {
+            if (executor.getMode() == ConnectionExecutor.Mode.VIRTUAL) {
+                for (int i = 0; i < 100; i++) {
+                    Assert.assertTrue(executor.tryHoldSubscriber());
+                }
+                Assert.assertEquals(100, executor.getWaitingSubscribers());
+            }
+        } finally {
+            executor.shutdown(1000);
+        }
+    }
+}
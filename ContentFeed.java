@@ -0,0 +1,368 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Long-running feed for the ContentServer: keeps the stations of a file or directory current on the
+ * AggregationServer over one persistent connection.
+ *
+ * The source is polled for changes. A file is sent again when it changes, and also when its last
+ * upload is older than the refresh interval, so its stations never reach the server's expiry. Pending
+ * uploads are pipelined: up to PIPELINE requests are written before their responses are read back in
+ * order. If the server cannot be reached, answers 503 or drops the connection, the unanswered uploads
+ * are queued again and the feed reconnects after an exponential backoff with jitter.
+ */
+public class ContentFeed {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private final String host;
+    private final int port;
+    private final Path source;
+    private final int pipeline;
+    private final long refreshMs;
+    private final long backoffBaseMs;
+    private final long backoffMaxMs;
+    private final LamportClock lamportClock;
+
+    // Files waiting to be sent, and when each file was last acknowledged
+    private final Deque<Path> queue = new ArrayDeque<>();
+    private final Map<Path, Long> sentModified = new HashMap<>();
+    private final Map<Path, Long> sentAt = new HashMap<>();
+
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+    private int failedAttempts;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong latencyTotalNanos = new AtomicLong();
+    private final AtomicLong latencyMaxNanos = new AtomicLong();
+
+    public ContentFeed(String host, int port, Path source, int pipeline, long refreshMs,
+                       long backoffBaseMs, long backoffMaxMs, LamportClock lamportClock) {
+        this.host = host.startsWith("http://") ? host.substring("http://".length()) : host;
+        this.port = port;
+        this.source = source;
+        this.pipeline = Math.max(1, pipeline);
+        this.refreshMs = refreshMs;
+        this.backoffBaseMs = backoffBaseMs;
+        this.backoffMaxMs = backoffMaxMs;
+        this.lamportClock = lamportClock;
+    }
+
+    // Builds the feed from system properties, e.g. -Dcontent.pipeline=64
+    public static ContentFeed fromSystemProperties(String host, int port, Path source, LamportClock lamportClock) {
+        int pipeline = Integer.getInteger("content.pipeline", 32);
+        long refreshMs = Long.getLong("content.refreshMs", 15000);
+        long backoffBaseMs = Long.getLong("content.backoffBaseMs", 100);
+        long backoffMaxMs = Long.getLong("content.backoffMaxMs", 30000);
+        return new ContentFeed(host, port, source, pipeline, refreshMs, backoffBaseMs, backoffMaxMs, lamportClock);
+    }
+
+    /**
+     * Runs until the process is stopped: checks the source every poll interval, sends what is due and
+     * prints the counters every stats interval.
+     */
+    public void run(long pollMs, long statsMs) throws InterruptedException {
+        long lastStats = System.currentTimeMillis();
+        while (true) {
+            runOnce();
+            if (System.currentTimeMillis() - lastStats >= statsMs) {
+                System.out.println(this);
+                lastStats = System.currentTimeMillis();
+            }
+            Thread.sleep(pollMs);
+        }
+    }
+
+    // Queues the files that are due and sends them, retrying until every one of them was answered
+    public void runOnce() throws InterruptedException {
+        scan();
+        while (!queue.isEmpty()) {
+            sendWindow();
+        }
+    }
+
+    // Stops using the connection, e.g. before the process exits
+    public void close() {
+        closeConnection();
+    }
+
+    private void scan() {
+        long now = System.currentTimeMillis();
+        for (Path file : listSource()) {
+            long modified;
+            try {
+                modified = Files.getLastModifiedTime(file).toMillis();
+            } catch (IOException e) {
+                continue;  // removed since it was listed
+            }
+            Long lastModified = sentModified.get(file);
+            Long lastSent = sentAt.get(file);
+            boolean due = lastModified == null || lastModified != modified || now - lastSent >= refreshMs;
+            if (due && !queue.contains(file)) {
+                queue.add(file);
+            }
+        }
+    }
+
+    private List<Path> listSource() {
+        if (!Files.isDirectory(source)) {
+            return Files.isRegularFile(source) ? Collections.singletonList(source) : Collections.emptyList();
+        }
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> entries = Files.list(source)) {
+            entries.filter(Files::isRegularFile)
+                    .filter(path -> !path.getFileName().toString().startsWith("."))
+                    .sorted()
+                    .forEach(files::add);
+        } catch (IOException e) {
+            System.err.println("Error listing " + source + ": " + e.getMessage());
+        }
+        return files;
+    }
+
+    /**
+     * Writes up to PIPELINE uploads on the connection, then reads their responses in order.
+     * Whatever was not answered goes back to the front of the queue.
+     */
+    private void sendWindow() throws InterruptedException {
+        List<Path> window = new ArrayList<>();
+        List<Long> modified = new ArrayList<>();
+        List<byte[]> bodies = new ArrayList<>();
+        while (window.size() < pipeline && !queue.isEmpty()) {
+            Path file = queue.poll();
+            try {
+                long lastModified = Files.getLastModifiedTime(file).toMillis();
+                bodies.add(Files.readAllBytes(file));
+                modified.add(lastModified);
+                window.add(file);
+            } catch (IOException e) {
+                // removed from the source, its stations will expire on the server
+                sentModified.remove(file);
+                sentAt.remove(file);
+            }
+        }
+
+        int answered = 0;
+        try {
+            connectIfNeeded();
+            long[] startNanos = new long[window.size()];
+            for (int i = 0; i < window.size(); i++) {
+                writeRequest(window.get(i), bodies.get(i));
+                startNanos[i] = System.nanoTime();
+                sent.incrementAndGet();
+            }
+            out.flush();
+
+            while (answered < window.size()) {
+                Response response = readResponse();
+                if (response.statusCode >= 500) {
+                    throw new IOException("Server answered " + response.statusCode);
+                }
+                recordLatency(System.nanoTime() - startNanos[answered]);
+
+                Path file = window.get(answered);
+                if (response.statusCode >= 200 && response.statusCode < 300) {
+                    acked.incrementAndGet();
+                } else {
+                    // the server will not accept this content, so wait until the file changes
+                    rejected.incrementAndGet();
+                    System.err.println("Server rejected " + file + " with " + response.statusCode);
+                }
+                sentModified.put(file, modified.get(answered));
+                sentAt.put(file, System.currentTimeMillis());
+                answered++;
+
+                if (response.close) {
+                    closeConnection();
+                    break;
+                }
+            }
+            failedAttempts = 0;
+        } catch (IOException e) {
+            System.err.println("Error sending weather data: " + e.getMessage());
+            closeConnection();
+            backoff();
+        } finally {
+            // unanswered uploads are sent again, in their original order
+            for (int i = window.size() - 1; i >= answered; i--) {
+                queue.addFirst(window.get(i));
+                retried.incrementAndGet();
+            }
+        }
+    }
+
+    private void connectIfNeeded() throws IOException {
+        if (socket != null) {
+            return;
+        }
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            s.setSoTimeout(READ_TIMEOUT_MS);
+            s.setTcpNoDelay(true);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        socket = s;
+        out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+        in = new BufferedInputStream(s.getInputStream());
+    }
+
+    private void closeConnection() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+        socket = null;
+        out = null;
+        in = null;
+    }
+
+    private void writeRequest(Path file, byte[] body) throws IOException {
+        String name = file.getFileName().toString();
+        String contentType = (name.endsWith(".jsonl") || name.endsWith(".ndjson")) ? WeatherBatch.NDJSON : "application/json";
+
+        String head = "PUT /weather.json HTTP/1.1\r\n"
+                + "Host: " + host + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Lamport-Clock: " + lamportClock.update() + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "\r\n";
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+    }
+
+    private static class Response {
+        int statusCode;
+        boolean close;
+    }
+
+    // Reads one response, merging the server's Lamport clock; the body is read and dropped
+    private Response readResponse() throws IOException {
+        String statusLine = readLine();
+        String[] parts = statusLine.split(" ");
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        Response response = new Response();
+        try {
+            response.statusCode = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+
+        // without a Content-Length (e.g. the 503 of a full server) there is no body and the connection ends
+        int contentLength = 0;
+        response.close = true;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Integer.parseInt(value);
+            } else if (name.equalsIgnoreCase("Connection")) {
+                response.close = value.equalsIgnoreCase("close");
+            } else if (name.equalsIgnoreCase("Lamport-Clock")) {
+                try {
+                    lamportClock.update(Long.parseLong(value));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Ignoring invalid Lamport-Clock header: " + value);
+                }
+            }
+        }
+        for (int i = 0; i < contentLength; i++) {
+            if (in.read() < 0) {
+                throw new EOFException("Connection closed in the middle of a response");
+            }
+        }
+        return response;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Connection closed by the server");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private void backoff() throws InterruptedException {
+        long delay = backoffDelay(failedAttempts++, backoffBaseMs, backoffMaxMs, ThreadLocalRandom.current());
+        System.err.println("Retrying in " + delay + " ms");
+        Thread.sleep(delay);
+    }
+
+    /**
+     * Exponential backoff with jitter: the ceiling doubles with every failed attempt up to the maximum,
+     * and the delay is picked at random from the upper half of it, so many feeds that lost the same
+     * server do not all come back at the same moment.
+     */
+    static long backoffDelay(int attempt, long baseMs, long maxMs, Random random) {
+        long ceiling = Math.min(maxMs, baseMs << Math.min(attempt, 30));
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half + 1));
+    }
+
+    private void recordLatency(long nanos) {
+        latencyTotalNanos.addAndGet(nanos);
+        latencyMaxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getAckedCount() {
+        return acked.get();
+    }
+
+    // Uploads that were sent again because the server was unavailable or closed the connection
+    public long getRetriedCount() {
+        return retried.get();
+    }
+
+    // Uploads the server refused, e.g. 400 for malformed data
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        long answered = acked.get() + rejected.get();
+        double averageMs = (answered == 0) ? 0 : latencyTotalNanos.get() / 1e6 / answered;
+        return "ContentFeed{" +
+                "sent=" + sent.get() +
+                ", acked=" + acked.get() +
+                ", retried=" + retried.get() +
+                ", rejected=" + rejected.get() +
+                String.format(", avgLatencyMs=%.2f, maxLatencyMs=%.2f", averageMs, latencyMaxNanos.get() / 1e6) +
+                '}';
+    }
+}
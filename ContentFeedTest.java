@@ -0,0 +1,84 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+public class ContentFeedTest {
+
+    @Test
+    public void backoffGrowsWithJitterUpToTheMaximum() {
+        Random random = new Random(42);
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long ceiling = Math.min(1000, 10L << Math.min(attempt, 30));
+            long delay = ContentFeed.backoffDelay(attempt, 10, 1000, random);
+            Assert.assertTrue(delay >= ceiling / 2);
+            Assert.assertTrue(delay <= ceiling);
+        }
+    }
+
+    @Test
+    public void pipelinedPutsAreSentAgainAfterTheServerWasUnavailable() throws Exception {
+        Path directory = Files.createTempDirectory("feed-test");
+        for (int i = 1; i <= 3; i++) {
+            Files.write(directory.resolve("station" + i + ".json"),
+                    ("{\"id\":\"IDS6090" + i + "\"}").getBytes(StandardCharsets.UTF_8));
+        }
+
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread fakeServer = new Thread(() -> {
+                try {
+                    // the first connection is turned away like a server with a full queue
+                    try (Socket socket = server.accept()) {
+                        socket.getInputStream().read(new byte[1024]);
+                        socket.getOutputStream().write("HTTP/1.1 503 Service Unavailable\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    }
+                    // the second one answers every pipelined request on the same connection
+                    try (Socket socket = server.accept()) {
+                        InputStream in = socket.getInputStream();
+                        OutputStream out = socket.getOutputStream();
+                        HttpRequestParser parser = new HttpRequestParser();
+                        byte[] bytes = new byte[8192];
+                        while (received.size() < 3) {
+                            int count = in.read(bytes);
+                            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, Math.max(count, 0));
+                            HttpRequest request;
+                            while ((request = parser.parse(buffer)) != null) {
+                                received.add(request.getBody());
+                                new HttpResponse(201).writeTo(out, true, 100);
+                            }
+                            out.flush();
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            fakeServer.start();
+
+            LamportClock clock = new LamportClock("test");
+            ContentFeed feed = new ContentFeed("localhost", server.getLocalPort(), directory, 8, 60000, 1, 10, clock);
+            feed.runOnce();
+            feed.close();
+            fakeServer.join(5000);
+
+            Assert.assertEquals(3, feed.getAckedCount());
+            Assert.assertEquals(3, feed.getRetriedCount());
+            Assert.assertEquals(6, feed.getSentCount());
+            Assert.assertEquals(Arrays.asList("{\"id\":\"IDS60901\"}", "{\"id\":\"IDS60902\"}", "{\"id\":\"IDS60903\"}"), received);
+            Assert.assertTrue(clock.getTime() > 100);
+
+            // nothing changed and the refresh interval has not passed, so there is nothing to send
+            feed.runOnce();
+            Assert.assertEquals(6, feed.getSentCount());
+        }
+    }
+}
@@ -1,7 +1,18 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 public class ContentServer {
 
@@ -10,58 +21,206 @@ public class ContentServer {
     public static void main(String[] args) {
         if (args.length < 3) {
             System.out.println("Usage: ContentServer <server> <port> <filepath>");
+            System.out.println("       ContentServer <server> <port> --batch <filepath> [<filepath> ...]");
+            System.out.println("       ContentServer <server> <port> --watch <file or directory>");
+            System.out.println("With -Dcontent.ring=host:port,... stations are sent to their node of a sharded cluster");
             return;
         }
 
         String server = args[0];
         int port = Integer.parseInt(args[1]);
-        String filepath = args[2];
+        boolean batch = args[2].equals("--batch");
 
-        try (Socket socket = new Socket(server, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+        if (args[2].equals("--watch") && args.length > 3) {
+            watch(server, port, Paths.get(args[3]));
+            return;
+        }
+
+        // Read weather data from the specified file, or all files of the batch
+        String jsonData = batch
+                ? readBatchFromFiles(Arrays.asList(args).subList(3, args.length))
+                : readWeatherDataFromFile(args[2]);
 
-            // Read weather data from the specified file
-            String jsonData = readWeatherDataFromFile(filepath);
+        if (jsonData == null || jsonData.isEmpty()) {
+            System.err.println("Failed to read weather data from file.");
+            return;
+        }
 
-            if (jsonData == null || jsonData.isEmpty()) {
-                System.err.println("Failed to read weather data from file.");
-                return;
+        // with -Dcontent.ring every station goes straight to its node of the sharded cluster
+        HashRing ring;
+        try {
+            ring = HashRing.parse(System.getProperty("content.ring"));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid content.ring: " + e.getMessage());
+            return;
+        }
+        if (ring == null) {
+            sendPut(server, port, jsonData, batch);
+        } else if (batch) {
+            for (Map.Entry<String, String> node : splitBatch(jsonData, ring).entrySet()) {
+                System.out.println("Sending to " + node.getKey());
+                sendPut(HashRing.host(node.getKey()), HashRing.port(node.getKey()), node.getValue(), true);
+            }
+        } else {
+            String node = nodeOf(jsonData, ring);
+            if (node == null) {
+                sendPut(server, port, jsonData, false);
+            } else {
+                sendPut(HashRing.host(node), HashRing.port(node), jsonData, false);
             }
+        }
+    }
+
+    // Sends one PUT, a single station or a batch, and prints the server's answer
+    private static void sendPut(String server, int port, String jsonData, boolean batch) {
+        try (Socket socket = new Socket(server, port);
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
 
-            // Update Lamport Clock
-            lamportClock.update();
+            // Update Lamport Clock (send event), the returned time is the one that goes out
+            long sendTime = lamportClock.update();
 
             // Send PUT request with JSON data
             out.println("PUT /weather.json HTTP/1.1");
             out.println("Host: " + server); // Optional but good practice
             out.println("Content-Type: application/json");
-            out.println("Lamport-Clock: " + lamportClock.getTime());
-            out.println("Content-Length: " + jsonData.length());
+            out.println("Lamport-Clock: " + sendTime);
+            out.println("Content-Length: " + jsonData.getBytes(StandardCharsets.UTF_8).length);
+            out.println("Connection: close");
             out.println();  // Important: A blank line between headers and the actual JSON data
-            out.println(jsonData); // Now send the JSON data
+            out.print(jsonData); // Now send the JSON data, the server reads exactly Content-Length bytes
             out.flush();
 
             // Read and display the response from the server
-            handleServerResponse(in);
+            if (batch) {
+                handleBatchResponse(in);
+            } else {
+                handleServerResponse(in);
+            }
 
         } catch (IOException e) {
             System.err.println("Error communicating with server: " + e.getMessage());
         }
     }
 
+    // The node of the station in a single-station file, or null if it has no readable id (the server reports that)
+    private static String nodeOf(String jsonData, HashRing ring) {
+        try {
+            JsonElement id = JsonParser.parseString(jsonData).getAsJsonObject().get("id");
+            return (id == null || !id.isJsonPrimitive()) ? null : ring.nodeFor(id.getAsString());
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Splits a batch into one JSON array per node. Records without a readable id go to the first node,
+     * which reports them as failed.
+     */
+    private static Map<String, String> splitBatch(String jsonData, HashRing ring) {
+        Map<String, StringJoiner> batches = new LinkedHashMap<>();
+        for (JsonElement record : JsonParser.parseString(jsonData).getAsJsonArray()) {
+            JsonElement id = record.isJsonObject() ? record.getAsJsonObject().get("id") : null;
+            String node = (id == null || !id.isJsonPrimitive()) ? ring.getNodes().get(0) : ring.nodeFor(id.getAsString());
+            batches.computeIfAbsent(node, key -> new StringJoiner(",\n", "[", "]")).add(record.toString());
+        }
+        Map<String, String> split = new LinkedHashMap<>();
+        for (Map.Entry<String, StringJoiner> batch : batches.entrySet()) {
+            split.put(batch.getKey(), batch.getValue().toString());
+        }
+        return split;
+    }
+
+    /**
+     * Keeps the stations of a file or directory current on the server until the process is stopped,
+     * see ContentFeed. Configured with -Dcontent.pollMs, -Dcontent.statsMs, -Dcontent.pipeline, ...
+     */
+    private static void watch(String server, int port, Path source) {
+        long pollMs = Long.getLong("content.pollMs", 1000);
+        long statsMs = Long.getLong("content.statsMs", 10000);
+        ContentFeed feed = ContentFeed.fromSystemProperties(server, port, source, lamportClock);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println("Stopping, " + feed)));
+
+        System.out.println("Watching " + source + " for weather data");
+        try {
+            feed.run(pollMs, statsMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            feed.close();
+        }
+    }
+
     // Reads weather data dynamically from the file in one go (improved reading method)
     private static String readWeatherDataFromFile(String filepath) {
         try {
-            return new String(Files.readAllBytes(Paths.get(filepath))); // Read the entire file content
+            return new String(Files.readAllBytes(Paths.get(filepath)), StandardCharsets.UTF_8); // Read the entire file content
         } catch (IOException e) {
             System.err.println("Error reading weather data file: " + e.getMessage());
             return null;
         }
     }
 
-    // Handles the server's response, logging errors if they occur
-    private static void handleServerResponse(BufferedReader in) throws IOException {
+    /**
+     * Builds one JSON array out of several files for a batch PUT. A file can hold a single station
+     * object, a JSON array of stations, or one station per line (.jsonl / .ndjson).
+     */
+    private static String readBatchFromFiles(List<String> filepaths) {
+        StringJoiner records = new StringJoiner(",\n", "[", "]");
+        for (String filepath : filepaths) {
+            String content = readWeatherDataFromFile(filepath);
+            if (content == null) {
+                return null;
+            }
+            content = content.trim();
+            if (filepath.endsWith(".jsonl") || filepath.endsWith(".ndjson")) {
+                for (String line : content.split("\n")) {
+                    if (!line.trim().isEmpty()) {
+                        records.add(line.trim());
+                    }
+                }
+            } else if (content.startsWith("[") && content.endsWith("]")) {
+                String elements = content.substring(1, content.length() - 1).trim();
+                if (!elements.isEmpty()) {
+                    records.add(elements);
+                }
+            } else if (!content.isEmpty()) {
+                records.add(content);
+            }
+        }
+        return records.toString();
+    }
+
+    // Prints the per-record results of a batch PUT
+    private static void handleBatchResponse(BufferedReader in) throws IOException {
+        int statusCode = handleServerResponse(in);
+        if (statusCode != 200) {
+            return;
+        }
+
+        // the server closes the connection after the response, so the body runs to the end of the stream
+        StringBuilder body = new StringBuilder();
+        char[] buffer = new char[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            body.append(buffer, 0, count);
+        }
+
+        JsonObject results = JsonParser.parseString(body.toString()).getAsJsonObject();
+        for (JsonElement element : results.getAsJsonArray("results")) {
+            JsonObject result = element.getAsJsonObject();
+            if (result.get("status").getAsInt() == 400) {
+                System.err.println("Record " + result.get("index").getAsInt() + " rejected: " + result.get("error").getAsString());
+            }
+        }
+        System.out.println("Batch of " + results.get("records").getAsInt() + " records: "
+                + results.get("created").getAsInt() + " created, "
+                + results.get("updated").getAsInt() + " updated, "
+                + results.get("failed").getAsInt() + " failed");
+    }
+
+    // Handles the server's response, logging errors if they occur, and returns the status code
+    private static int handleServerResponse(BufferedReader in) throws IOException {
         String responseLine;
         int statusCode = 0;
 
@@ -74,6 +233,15 @@ public class ContentServer {
                 String[] statusParts = responseLine.split(" ");
                 statusCode = Integer.parseInt(statusParts[1]);
             }
+
+            // Merge the server's clock (receive event)
+            if (responseLine.regionMatches(true, 0, "Lamport-Clock:", 0, 14)) {
+                try {
+                    lamportClock.update(Long.parseLong(responseLine.substring(14).trim()));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Ignoring invalid Lamport-Clock header: " + responseLine);
+                }
+            }
         }
 
         // Handle error cases based on the status code
@@ -90,5 +258,6 @@ public class ContentServer {
         } else {
             System.err.println("Error: Unexpected response code " + statusCode);
         }
+        return statusCode;
     }
 }
@@ -0,0 +1,130 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing wheel that tells the AggregationServer which stations are due to expire.
+ *
+ * Time is divided into ticks of the configured resolution. Every PUT schedules its station in the slot of
+ * the tick in which its reading becomes older than the TTL. Each call to advance() only looks at the slots
+ * of the ticks that have passed since the previous call, so the cost of a tick depends on how many entries
+ * are due, not on how many stations are stored.
+ *
+ * A station that is refreshed before it expires leaves its old entry behind; when that entry comes due the
+ * expiry callback sees the newer reading and keeps the station (a "stale" entry).
+ */
+public class ExpirationWheel {
+
+    // Decides whether a due station really expires, returns true if it was removed
+    public interface ExpiryCallback {
+        boolean expireIfDue(String id, long now);
+    }
+
+    private static final class Entry {
+        final String id;
+        final long deadline;
+
+        Entry(String id, long deadline) {
+            this.id = id;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long ttlMs;
+    private final long resolutionMs;
+    private final Queue<Entry>[] slots;
+    private volatile long lastTick;
+
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ExpirationWheel(long ttlMs, long resolutionMs, long now) {
+        this.ttlMs = ttlMs;
+        this.resolutionMs = Math.max(1, resolutionMs);
+        // one rotation covers the whole TTL, plus room for the tick being processed
+        int slotCount = (int) (ttlMs / this.resolutionMs) + 2;
+        this.slots = new Queue[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.lastTick = now / this.resolutionMs;
+    }
+
+    /**
+     * Schedules a station whose reading was received at the given time.
+     * The station is due once the reading is older than the TTL.
+     */
+    public void schedule(String id, long timestamp) {
+        long deadline = timestamp + ttlMs;
+        // a reading that is already due goes into the next tick to be processed
+        long tick = Math.max(deadline / resolutionMs + 1, lastTick + 1);
+        slots[(int) (tick % slots.length)].add(new Entry(id, deadline));
+        scheduled.incrementAndGet();
+    }
+
+    /**
+     * Processes every tick up to the given time and hands the due stations to the callback.
+     * Entries that belong to a later rotation of the wheel are put back.
+     * Must only be called from one thread at a time.
+     */
+    public void advance(long now, ExpiryCallback callback) {
+        long currentTick = now / resolutionMs;
+        // after a long pause there is no need to visit the same slot more than once
+        long firstTick = Math.max(lastTick + 1, currentTick - slots.length + 1);
+
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            Queue<Entry> slot = slots[(int) (tick % slots.length)];
+            int count = slot.size();
+            for (int i = 0; i < count; i++) {
+                Entry entry = slot.poll();
+                if (entry == null) {
+                    break;
+                }
+                if (entry.deadline >= now) {
+                    slot.add(entry);  // not due yet, belongs to a later rotation
+                } else if (callback.expireIfDue(entry.id, now)) {
+                    expired.incrementAndGet();
+                } else {
+                    stale.incrementAndGet();
+                }
+            }
+        }
+        lastTick = Math.max(lastTick, currentTick);
+    }
+
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    public long getResolutionMs() {
+        return resolutionMs;
+    }
+
+    // Number of PUTs that scheduled an expiry
+    public long getScheduledCount() {
+        return scheduled.get();
+    }
+
+    // Number of stations removed because their reading expired
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    // Number of due entries whose station had been refreshed or removed in the meantime
+    public long getStaleCount() {
+        return stale.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ExpirationWheel{" +
+                "ttlMs=" + ttlMs +
+                ", resolutionMs=" + resolutionMs +
+                ", scheduled=" + getScheduledCount() +
+                ", expired=" + getExpiredCount() +
+                ", stale=" + getStaleCount() +
+                '}';
+    }
+}
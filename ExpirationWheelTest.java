@@ -0,0 +1,79 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class ExpirationWheelTest {
+
+    @Test
+    public void expiresOnlyDueStations() {
+        Map<String, Long> store = new HashMap<>();
+        ExpirationWheel wheel = new ExpirationWheel(30000, 100, 0);
+        store.put("a", 0L);
+        wheel.schedule("a", 0);
+        store.put("b", 10000L);
+        wheel.schedule("b", 10000);
+
+        List<String> expired = new ArrayList<>();
+        ExpirationWheel.ExpiryCallback callback = (id, now) -> {
+            if (now - store.get(id) > 30000) {
+                store.remove(id);
+                expired.add(id);
+                return true;
+            }
+            return false;
+        };
+
+        wheel.advance(30000, callback);
+        Assert.assertTrue(expired.isEmpty());
+
+        wheel.advance(30100, callback);
+        Assert.assertEquals(Collections.singletonList("a"), expired);
+
+        wheel.advance(40100, callback);
+        Assert.assertEquals(Arrays.asList("a", "b"), expired);
+        Assert.assertEquals(2, wheel.getExpiredCount());
+    }
+
+    @Test
+    public void refreshedStationsAreKept() {
+        Map<String, Long> store = new HashMap<>();
+        ExpirationWheel wheel = new ExpirationWheel(30000, 100, 0);
+        store.put("a", 0L);
+        wheel.schedule("a", 0);
+        store.put("a", 20000L);
+        wheel.schedule("a", 20000);
+
+        ExpirationWheel.ExpiryCallback callback = (id, now) -> {
+            if (store.containsKey(id) && now - store.get(id) > 30000) {
+                store.remove(id);
+                return true;
+            }
+            return false;
+        };
+
+        wheel.advance(35000, callback);
+        Assert.assertTrue(store.containsKey("a"));
+        Assert.assertEquals(1, wheel.getStaleCount());
+
+        wheel.advance(50100, callback);
+        Assert.assertFalse(store.containsKey("a"));
+        Assert.assertEquals(1, wheel.getExpiredCount());
+    }
+
+    @Test
+    public void entriesBeyondOneRotationWaitForTheirDeadline() {
+        ExpirationWheel wheel = new ExpirationWheel(1000, 100, 0);
+        List<String> expired = new ArrayList<>();
+        // a reading stamped in the future is due after more than one rotation of the wheel
+        wheel.schedule("future", 5000);
+
+        for (long now = 100; now <= 6100; now += 100) {
+            wheel.advance(now, (id, time) -> {
+                expired.add(id + "@" + time);
+                return true;
+            });
+        }
+        Assert.assertEquals(Collections.singletonList("future@6100"), expired);
+    }
+}
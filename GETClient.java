@@ -1,6 +1,13 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
 
 public class GETClient {
 
@@ -14,27 +21,70 @@ public class GETClient {
         int port = Integer.parseInt(args[1]);
         String stationID = (args.length == 3) ? args[2] : null;
 
-        try (Socket socket = new Socket(server, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+        // with -Dclient.ring a station is fetched from its own node of a sharded cluster;
+        // the whole store comes from the given server, which gathers it from all nodes
+        if (stationID != null && System.getProperty("client.ring") != null) {
+            try {
+                String node = HashRing.parse(System.getProperty("client.ring")).nodeFor(stationID);
+                server = HashRing.host(node);
+                port = HashRing.port(node);
+            } catch (RuntimeException e) {
+                System.err.println("Invalid client.ring: " + e.getMessage());
+                return;
+            }
+        }
 
-            // Send GET request, optionally with a station ID
-            if (stationID != null) {
-                out.println("GET /weather.json?id=" + stationID + " HTTP/1.1");
-            } else {
-                out.println("GET /weather.json HTTP/1.1");
+        String target = (stationID != null) ? "/weather.json?id=" + stationID : "/weather.json";
+        // with -Dclient.pollMs the store is fetched again and again, and only printed when it has changed
+        long pollMs = Long.getLong("client.pollMs", 0);
+        String etag = null;
+        while (true) {
+            try {
+                etag = fetch(server, port, target, stationID, etag);
+            } catch (ConnectException e) {
+                System.err.println("Error: Could not connect to the server at " + server + ":" + port);
+            } catch (IOException e) {
+                System.err.println("Error: IO exception while communicating with the server - " + e.getMessage());
+            }
+            if (pollMs <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(pollMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends one GET and prints the response. The request accepts a gzip-compressed body and, with the
+     * ETag of an earlier response, asks the server to answer 304 Not Modified if nothing has changed since.
+     * Returns the ETag to send next time.
+     */
+    static String fetch(String server, int port, String target, String stationID, String etag) throws IOException {
+        try (Socket socket = new Socket(server, port)) {
+            OutputStream out = socket.getOutputStream();
+            StringBuilder request = new StringBuilder();
+            request.append("GET ").append(target).append(" HTTP/1.1\r\n");
+            request.append("Host: ").append(server).append("\r\n");
+            request.append("Accept-Encoding: gzip\r\n");
+            if (etag != null) {
+                request.append("If-None-Match: ").append(etag).append("\r\n");
             }
-            out.println("Host: " + server);
-            out.println("Connection: close");
-            out.println();
+            request.append("Connection: close\r\n\r\n");
+            out.write(request.toString().getBytes(StandardCharsets.US_ASCII));
             out.flush();
 
             // Read and display response headers
+            InputStream in = new BufferedInputStream(socket.getInputStream());
             String responseLine;
             boolean isJson = false;
+            boolean gzip = false;
+            String responseETag = null;
             int statusCode = 0;
 
-            while ((responseLine = in.readLine()) != null && !responseLine.isEmpty()) {
+            while ((responseLine = readLine(in)) != null && !responseLine.isEmpty()) {
                 System.out.println(responseLine);
 
                 // Check for the HTTP status code
@@ -43,60 +93,148 @@ public class GETClient {
                     statusCode = Integer.parseInt(statusParts[1]);
                 }
 
-                // Check if content type is JSON
+                // Check if content type is JSON, and how the body is encoded
                 if (responseLine.contains("Content-Type: application/json")) {
                     isJson = true;
                 }
+                if (responseLine.equalsIgnoreCase("Content-Encoding: gzip")) {
+                    gzip = true;
+                }
+                if (responseLine.regionMatches(true, 0, "ETag:", 0, 5)) {
+                    responseETag = responseLine.substring(5).trim();
+                }
             }
 
             // Handle different status codes
-            if (statusCode == 400) {
+            if (statusCode == 304) {
+                System.out.println("Not modified since the last request.");
+                return etag;
+            } else if (statusCode == 400) {
                 System.out.println("Error: 400 Bad Request - The server could not understand the request.");
-                return;
+                return etag;
+            } else if (statusCode == 404) {
+                System.out.println("Error: 404 Not Found - The server has no weather data for station " + stationID + ".");
+                return null;
             } else if (statusCode == 500) {
                 System.out.println("Error: 500 Internal Server Error - The server encountered an unexpected condition.");
-                return;
+                return etag;
             } else if (statusCode != 200) {
                 System.out.println("Error: Unexpected response code " + statusCode);
-                return;
+                return etag;
             }
 
-            // Read the body of the response if it is JSON
+            // Read the body of the response if it is JSON, printing every station as soon as it is parsed
             if (isJson) {
-                StringBuilder jsonResponse = new StringBuilder();
-                String bodyLine;
-                while ((bodyLine = in.readLine()) != null) {
-                    jsonResponse.append(bodyLine);
-                }
-
-                // Parse the JSON response using GSON
-                Gson gson = new Gson();
-                WeatherData[] weatherDataArray = gson.fromJson(jsonResponse.toString(), WeatherData[].class);
-
-                // Display the weather data
                 System.out.println("Weather Data:");
-                for (WeatherData weatherData : weatherDataArray) {
-                    System.out.println("ID: " + weatherData.id);
-                    System.out.println("Name: " + weatherData.name);
-                    System.out.println("Air Temperature: " + weatherData.air_temp);
-                    System.out.println("Apparent Temperature: " + weatherData.apparent_t);
-                    System.out.println("Cloud: " + weatherData.cloud);
-                    System.out.println("Dew Point: " + weatherData.dewpt);
-                    System.out.println("Pressure: " + weatherData.press);
-                    System.out.println("Relative Humidity: " + weatherData.rel_hum);
-                    System.out.println("Wind Direction: " + weatherData.wind_dir);
-                    System.out.println("Wind Speed (km/h): " + weatherData.wind_spd_kmh);
-                    System.out.println("Wind Speed (knots): " + weatherData.wind_spd_kt);
-                    System.out.println("---------------------------");
-                }
+                InputStream body = gzip ? new GZIPInputStream(in) : in;
+                readStations(new InputStreamReader(body, StandardCharsets.UTF_8), GETClient::printStation);
             } else {
                 System.out.println("No JSON data received.");
             }
+            return responseETag;
+        }
+    }
+
+    // Reads a header line of the response, without its line ending; null at the end of the stream
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return (line.length() == 0) ? null : line.toString();
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reads a JSON array of stations from the response body and passes each station to the consumer
+     * as soon as it has been parsed, so only one station is held in memory at a time.
+     * Returns the number of stations read.
+     */
+    public static int readStations(Reader body, Consumer<WeatherData> consumer) throws IOException {
+        int count = 0;
+        try (StationIterator stations = new StationIterator(body)) {
+            while (stations.hasNext()) {
+                consumer.accept(stations.next());
+                count++;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return count;
+    }
+
+    public static void printStation(WeatherData weatherData) {
+        System.out.println("ID: " + weatherData.id);
+        System.out.println("Name: " + weatherData.name);
+        System.out.println("Air Temperature: " + weatherData.air_temp);
+        System.out.println("Apparent Temperature: " + weatherData.apparent_t);
+        System.out.println("Cloud: " + weatherData.cloud);
+        System.out.println("Dew Point: " + weatherData.dewpt);
+        System.out.println("Pressure: " + weatherData.press);
+        System.out.println("Relative Humidity: " + weatherData.rel_hum);
+        System.out.println("Wind Direction: " + weatherData.wind_dir);
+        System.out.println("Wind Speed (km/h): " + weatherData.wind_spd_kmh);
+        System.out.println("Wind Speed (knots): " + weatherData.wind_spd_kt);
+        System.out.println("---------------------------");
+    }
+
+    /**
+     * Iterates over a JSON array of stations with Gson's JsonReader, parsing one station per next() call.
+     * Errors while reading are thrown as UncheckedIOException (JsonSyntaxException for malformed JSON).
+     * Closing the iterator closes the underlying reader.
+     */
+    public static class StationIterator implements Iterator<WeatherData>, Closeable {
+        private static final TypeAdapter<WeatherData> ADAPTER = new Gson().getAdapter(WeatherData.class);
+
+        private final JsonReader reader;
+        private boolean started;
+        private boolean finished;
+
+        public StationIterator(Reader body) {
+            this.reader = new JsonReader(body);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (finished) {
+                return false;
+            }
+            try {
+                if (!started) {
+                    reader.beginArray();
+                    started = true;
+                }
+                if (reader.hasNext()) {
+                    return true;
+                }
+                reader.endArray();
+                finished = true;
+                return false;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public WeatherData next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return ADAPTER.read(reader);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
 
-        } catch (ConnectException e) {
-            System.err.println("Error: Could not connect to the server at " + server + ":" + port);
-        } catch (IOException e) {
-            System.err.println("Error: IO exception while communicating with the server - " + e.getMessage());
+        @Override
+        public void close() throws IOException {
+            reader.close();
         }
     }
 
@@ -0,0 +1,123 @@
+import com.google.gson.JsonSyntaxException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPOutputStream;
+
+public class GETClientTest {
+
+    // Produces "[{...},{...},...]" with the given number of stations without ever holding it in memory
+    private static class GeneratedArray extends Reader {
+        private final int stations;
+        private int next;
+        private String chunk = "[";
+        private int position;
+
+        GeneratedArray(int stations) {
+            this.stations = stations;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position == chunk.length()) {
+                if (next > stations) {
+                    return -1;
+                }
+                chunk = (next == stations) ? "]" : (next > 0 ? "," : "")
+                        + "{\"id\":\"IDS" + next + "\",\"name\":\"Station " + next + "\",\"air_temp\":13.3,\"rel_hum\":60}";
+                next++;
+                position = 0;
+            }
+            int count = Math.min(length, chunk.length() - position);
+            chunk.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void streamsEveryStationInOrder() throws IOException {
+        List<String> ids = new ArrayList<>();
+        int count = GETClient.readStations(new GeneratedArray(3), station -> ids.add(station.id));
+
+        Assert.assertEquals(3, count);
+        Assert.assertEquals("[IDS0, IDS1, IDS2]", ids.toString());
+    }
+
+    @Test
+    public void largeResponsesAreReadOneStationAtATime() throws IOException {
+        long[] humidity = new long[1];
+        int count = GETClient.readStations(new GeneratedArray(500_000), station -> humidity[0] += station.rel_hum);
+
+        Assert.assertEquals(500_000, count);
+        Assert.assertEquals(500_000L * 60, humidity[0]);
+    }
+
+    @Test
+    public void iteratorReadsLazily() throws IOException {
+        try (GETClient.StationIterator stations = new GETClient.StationIterator(new GeneratedArray(1_000_000))) {
+            Assert.assertEquals("IDS0", stations.next().id);
+            Assert.assertEquals("Station 1", stations.next().name);
+            Assert.assertTrue(stations.hasNext());
+        }
+        Assert.assertFalse(new GETClient.StationIterator(new StringReader(" [ ] ")).hasNext());
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void malformedStationIsReported() throws IOException {
+        GETClient.readStations(new StringReader("[{\"id\":\"IDS60901\"},{\"rel_hum\":\"x\"}]"), station -> { });
+    }
+
+    // Answers one connection with the response and completes with the request head it got
+    private static CompletableFuture<String> answerOnce(ServerSocket server, byte[] response) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Socket socket = server.accept()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                StringBuilder head = new StringBuilder();
+                String line;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    head.append(line).append('\n');
+                }
+                socket.getOutputStream().write(response);
+                return head.toString();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Test
+    public void readsGzippedBodiesAndSendsTheETagBack() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(body)) {
+            gzip.write("[{\"id\":\"IDS60901\",\"air_temp\":13.3}]".getBytes(StandardCharsets.UTF_8));
+        }
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(("HTTP/1.1 200 OK\r\nETag: W/\"abc-7\"\r\nContent-Type: application/json\r\n"
+                + "Content-Encoding: gzip\r\nContent-Length: " + body.size() + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.writeTo(response);
+
+        try (ServerSocket server = new ServerSocket(0)) {
+            CompletableFuture<String> request = answerOnce(server, response.toByteArray());
+            String etag = GETClient.fetch("localhost", server.getLocalPort(), "/weather.json", null, null);
+            Assert.assertEquals("W/\"abc-7\"", etag);
+            Assert.assertTrue(request.get().contains("Accept-Encoding: gzip"));
+            Assert.assertFalse(request.get().contains("If-None-Match"));
+
+            request = answerOnce(server, "HTTP/1.1 304 Not Modified\r\nETag: W/\"abc-7\"\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            Assert.assertEquals(etag, GETClient.fetch("localhost", server.getLocalPort(), "/weather.json", null, etag));
+            Assert.assertTrue(request.get().contains("If-None-Match: W/\"abc-7\""));
+        }
+    }
+}
@@ -0,0 +1,277 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Grid index of the stations' positions, for GET /weather.json?near=lat,lon&k=5 and ?bbox=.
+ *
+ * The globe is cut into cells of cellDegrees by cellDegrees, and every station is listed in the cell
+ * of its lat/lon. A bounding box only looks at the cells it covers, and a nearest-station query at the
+ * cells around the point, widening the search until it has found k stations and no station outside it
+ * can be nearer. Distances are great-circle distances in kilometres.
+ *
+ * A station is moved to its new cell when a PUT changes its position and taken out when it expires.
+ */
+public class GeoIndex {
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+
+    // A station's position as indexed, also as a point on the unit sphere for comparing distances
+    public static final class Point {
+        private final String id;
+        private final double lat;
+        private final double lon;
+        private final long cell;
+        private final double x;
+        private final double y;
+        private final double z;
+
+        Point(String id, double lat, double lon, long cell) {
+            this.id = id;
+            this.lat = lat;
+            this.lon = lon;
+            this.cell = cell;
+            double cosLat = Math.cos(Math.toRadians(lat));
+            this.x = cosLat * Math.cos(Math.toRadians(lon));
+            this.y = cosLat * Math.sin(Math.toRadians(lon));
+            this.z = Math.sin(Math.toRadians(lat));
+        }
+
+        // The square of the straight-line distance through the unit sphere, which grows with the great-circle distance
+        double chordSquared(Point other) {
+            double dx = x - other.x;
+            double dy = y - other.y;
+            double dz = z - other.z;
+            return dx * dx + dy * dy + dz * dz;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public double getLat() {
+            return lat;
+        }
+
+        public double getLon() {
+            return lon;
+        }
+    }
+
+    private final double cellDegrees;
+    private final int rows;
+    private final int columns;
+    private final Map<Long, Map<String, Point>> cells = new ConcurrentHashMap<>();
+    private final Map<String, Point> points = new ConcurrentHashMap<>();
+
+    public GeoIndex(double cellDegrees) {
+        if (!(cellDegrees > 0 && cellDegrees <= 90)) {
+            throw new IllegalArgumentException("Cell size must be between 0 and 90 degrees: " + cellDegrees);
+        }
+        this.cellDegrees = cellDegrees;
+        this.rows = (int) Math.ceil(180 / cellDegrees);
+        this.columns = (int) Math.ceil(360 / cellDegrees);
+    }
+
+    // -Daggregation.geoCellDegrees=1 (about 111 km north to south)
+    public static GeoIndex fromSystemProperties() {
+        return new GeoIndex(Double.parseDouble(System.getProperty("aggregation.geoCellDegrees", "1")));
+    }
+
+    // Indexes the station at its position, moving it if it was somewhere else; called in store order per station
+    public void put(String id, double lat, double lon) {
+        if (Double.isNaN(lat) || Double.isNaN(lon) || lat < -90 || lat > 90) {
+            remove(id);
+            return;
+        }
+        lon = normalizeLon(lon);
+        Point previous = points.get(id);
+        if (previous != null && previous.lat == lat && previous.lon == lon) {
+            return;
+        }
+        Point point = new Point(id, lat, lon, cell(row(lat), column(lon)));
+        if (previous != null && previous.cell != point.cell) {
+            removeFromCell(previous);
+        }
+        cells.computeIfAbsent(point.cell, key -> new ConcurrentHashMap<>()).put(id, point);
+        points.put(id, point);
+    }
+
+    public void remove(String id) {
+        Point point = points.remove(id);
+        if (point != null) {
+            removeFromCell(point);
+        }
+    }
+
+    private void removeFromCell(Point point) {
+        cells.computeIfPresent(point.cell, (key, cell) -> {
+            cell.remove(point.id, point);
+            return cell.isEmpty() ? null : cell;
+        });
+    }
+
+    public int size() {
+        return points.size();
+    }
+
+    public int getCellCount() {
+        return cells.size();
+    }
+
+    /**
+     * The k stations nearest to the point, nearest first. Looks at the cells that cover a circle around the
+     * point, starting with a radius of one cell and doubling it until the circle holds k stations.
+     */
+    public List<Point> nearest(double lat, double lon, int k) {
+        lon = normalizeLon(lon);
+        if (k <= 0 || points.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Point query = new Point(null, lat, lon, -1);
+        for (double radiusKm = cellDegrees * KM_PER_DEGREE; ; radiusKm *= 2) {
+            // farthest first, so the k-th nearest is at the head
+            PriorityQueue<double[]> best = new PriorityQueue<>(k + 1, (a, b) -> Double.compare(b[0], a[0]));
+            List<Point> found = new ArrayList<>();
+            double latDegrees = radiusKm / KM_PER_DEGREE;
+            double lonDegrees = lonRadius(lat, radiusKm);
+            int firstColumn = (lonDegrees >= 180) ? 0 : column(normalizeLon(lon - lonDegrees));
+            int columnCount = (lonDegrees >= 180) ? columns
+                    : Math.floorMod(column(normalizeLon(lon + lonDegrees)) - firstColumn, columns) + 1;
+            boolean everyStation = forEachCell(row(lat - latDegrees), row(lat + latDegrees), firstColumn, columnCount, cell -> {
+                for (Point point : cell.values()) {
+                    double distance = query.chordSquared(point);
+                    if (best.size() < k || distance < best.peek()[0]) {
+                        best.add(new double[]{distance, found.size()});
+                        found.add(point);
+                        if (best.size() > k) {
+                            best.poll();
+                        }
+                    }
+                }
+            });
+
+            // every station that was not looked at is farther away than the radius
+            if ((best.size() == k && best.peek()[0] <= chordSquared(radiusKm)) || everyStation || latDegrees >= 180) {
+                double[][] ranked = best.toArray(new double[0][]);
+                Arrays.sort(ranked, (a, b) -> Double.compare(a[0], b[0]));
+                List<Point> nearest = new ArrayList<>(ranked.length);
+                for (double[] entry : ranked) {
+                    nearest.add(found.get((int) entry[1]));
+                }
+                return nearest;
+            }
+        }
+    }
+
+    // The chordSquared of two points this far apart on the earth
+    private static double chordSquared(double distanceKm) {
+        double halfChord = Math.sin(Math.min(Math.PI, distanceKm / EARTH_RADIUS_KM) / 2);
+        return 4 * halfChord * halfChord;
+    }
+
+    /**
+     * How many degrees of longitude east and west of the point a circle of the radius reaches, 180 if it
+     * covers a pole. This is the widest point of the circle, which is nearer to the pole than its center.
+     */
+    private static double lonRadius(double lat, double radiusKm) {
+        double latDegrees = radiusKm / KM_PER_DEGREE;
+        if (lat + latDegrees >= 90 || lat - latDegrees <= -90) {
+            return 180;
+        }
+        double sine = Math.sin(radiusKm / EARTH_RADIUS_KM) / Math.cos(Math.toRadians(lat));
+        return (sine >= 1) ? 180 : Math.toDegrees(Math.asin(sine));
+    }
+
+    /**
+     * The stations inside the box, edges included. A box whose minLon is greater than its maxLon crosses
+     * the 180th meridian.
+     */
+    public List<Point> within(double minLat, double minLon, double maxLat, double maxLon) {
+        double west = normalizeLon(minLon);
+        double east = normalizeLon(maxLon);
+        boolean crossesAntimeridian = west > east;
+        int firstColumn = column(west);
+        int columnCount = crossesAntimeridian ? columns - firstColumn + column(east) + 1 : column(east) - firstColumn + 1;
+
+        List<Point> inside = new ArrayList<>();
+        forEachCell(row(minLat), row(maxLat), firstColumn, columnCount,
+                cell -> addInside(cell, minLat, west, maxLat, east, crossesAntimeridian, inside));
+        return inside;
+    }
+
+    /**
+     * Calls the visitor with every non-empty cell of the rows and columns, columns counted eastwards from
+     * firstColumn and around the 180th meridian. It may be called with other cells as well; returns true
+     * if it was called with every cell.
+     */
+    private boolean forEachCell(int firstRow, int lastRow, int firstColumn, int columnCount, Consumer<Map<String, Point>> visitor) {
+        if ((long) (lastRow - firstRow + 1) * columnCount > cells.size()) {
+            // fewer cells hold stations than the range covers, so look at those instead
+            for (Map<String, Point> cell : cells.values()) {
+                visitor.accept(cell);
+            }
+            return true;
+        }
+        for (int r = firstRow; r <= lastRow; r++) {
+            for (int i = 0; i < columnCount; i++) {
+                Map<String, Point> cell = cells.get(cell(r, (firstColumn + i) % columns));
+                if (cell != null) {
+                    visitor.accept(cell);
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void addInside(Map<String, Point> cell, double minLat, double minLon, double maxLat, double maxLon,
+                                  boolean crossesAntimeridian, List<Point> inside) {
+        for (Point point : cell.values()) {
+            boolean latInside = point.lat >= minLat && point.lat <= maxLat;
+            boolean lonInside = crossesAntimeridian
+                    ? point.lon >= minLon || point.lon <= maxLon
+                    : point.lon >= minLon && point.lon <= maxLon;
+            if (latInside && lonInside) {
+                inside.add(point);
+            }
+        }
+    }
+
+    // Great-circle distance by the haversine formula
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    // Brings a longitude past the 180th meridian back into -180..180; 180 itself stays, so a box can end there
+    private static double normalizeLon(double lon) {
+        if (lon >= -180 && lon <= 180) {
+            return lon;
+        }
+        return ((lon + 180) % 360 + 360) % 360 - 180;
+    }
+
+    private int row(double lat) {
+        return Math.min(rows - 1, Math.max(0, (int) Math.floor((lat + 90) / cellDegrees)));
+    }
+
+    private int column(double lon) {
+        return Math.min(columns - 1, Math.max(0, (int) Math.floor((lon + 180) / cellDegrees)));
+    }
+
+    private long cell(int row, int column) {
+        return (long) row * columns + column;
+    }
+
+    @Override
+    public String toString() {
+        return "GeoIndex{" +
+                "cellDegrees=" + cellDegrees +
+                ", stations=" + points.size() +
+                ", cells=" + cells.size() +
+                '}';
+    }
+}
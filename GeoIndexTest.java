@@ -0,0 +1,95 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class GeoIndexTest {
+
+    private static List<String> ids(List<GeoIndex.Point> points) {
+        List<String> ids = new ArrayList<>();
+        for (GeoIndex.Point point : points) {
+            ids.add(point.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void nearestMatchesBruteForce() {
+        GeoIndex index = new GeoIndex(1);
+        Random random = new Random(5);
+        Map<String, double[]> positions = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            // half the stations clustered around Adelaide, the rest anywhere, including near the poles
+            double lat = (i % 2 == 0) ? -35 + random.nextGaussian() : random.nextDouble() * 180 - 90;
+            double lon = (i % 2 == 0) ? 138.6 + random.nextGaussian() : random.nextDouble() * 360 - 180;
+            index.put("IDS" + i, lat, lon);
+            positions.put("IDS" + i, new double[]{lat, lon});
+        }
+
+        double[][] queries = {{-34.9, 138.6}, {0, 179.9}, {0, -179.9}, {89.5, 10}, {-90, 0}, {51.5, -0.1}};
+        for (double[] query : queries) {
+            for (int k : new int[]{1, 5, 50}) {
+                List<String> expected = new ArrayList<>(positions.keySet());
+                expected.sort(Comparator.comparingDouble(id ->
+                        GeoIndex.distanceKm(query[0], query[1], positions.get(id)[0], positions.get(id)[1])));
+                Assert.assertEquals(expected.subList(0, k), ids(index.nearest(query[0], query[1], k)));
+            }
+        }
+    }
+
+    @Test
+    public void bboxMatchesBruteForce() {
+        GeoIndex index = new GeoIndex(2.5);
+        Random random = new Random(9);
+        Map<String, double[]> positions = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            double lat = random.nextDouble() * 180 - 90;
+            double lon = random.nextDouble() * 360 - 180;
+            index.put("IDS" + i, lat, lon);
+            positions.put("IDS" + i, new double[]{lat, lon});
+        }
+
+        // small, whole-world and across the 180th meridian
+        double[][] boxes = {{-36, 137, -34, 140}, {-90, -180, 90, 180}, {-20, 170, 20, -170}, {10, 10, 10.5, 10.5}};
+        for (double[] box : boxes) {
+            Set<String> expected = new HashSet<>();
+            for (Map.Entry<String, double[]> station : positions.entrySet()) {
+                double lat = station.getValue()[0];
+                double lon = station.getValue()[1];
+                boolean lonInside = (box[1] > box[3]) ? lon >= box[1] || lon <= box[3] : lon >= box[1] && lon <= box[3];
+                if (lat >= box[0] && lat <= box[2] && lonInside) {
+                    expected.add(station.getKey());
+                }
+            }
+            Assert.assertEquals(expected, new HashSet<>(ids(index.within(box[0], box[1], box[2], box[3]))));
+        }
+    }
+
+    @Test
+    public void movedAndRemovedStationsLeaveTheirCell() {
+        GeoIndex index = new GeoIndex(1);
+        index.put("IDS60901", -34.9, 138.6);
+        index.put("IDS60902", -33.9, 151.2);
+        index.put("IDS60901", -37.8, 145.0);
+
+        Assert.assertEquals(2, index.size());
+        Assert.assertEquals(2, index.getCellCount());
+        Assert.assertTrue(index.within(-35.5, 138, -34.5, 139).isEmpty());
+        Assert.assertEquals(Collections.singletonList("IDS60901"), ids(index.within(-38, 144, -37, 146)));
+        Assert.assertEquals(Arrays.asList("IDS60901", "IDS60902"), ids(index.nearest(-38, 145, 5)));
+
+        index.remove("IDS60901");
+        Assert.assertEquals(1, index.getCellCount());
+        Assert.assertEquals(Collections.singletonList("IDS60902"), ids(index.nearest(-38, 145, 5)));
+        index.remove("IDS60902");
+        Assert.assertTrue(index.nearest(0, 0, 5).isEmpty());
+        Assert.assertEquals(0, index.getCellCount());
+    }
+
+    @Test
+    public void distanceIsGreatCircle() {
+        // Adelaide to Melbourne is about 654 km
+        Assert.assertEquals(654, GeoIndex.distanceKm(-34.93, 138.6, -37.81, 144.96), 5);
+        Assert.assertEquals(GeoIndex.distanceKm(0, 179.5, 0, -179.5), GeoIndex.distanceKm(0, 0, 0, 1), 1e-9);
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.*;
+
+/**
+ * Consistent-hash ring that places station ids on aggregation nodes ("host:port").
+ *
+ * Every node is put on the ring VIRTUAL_NODES times, and a station belongs to the first node point at or
+ * after the hash of its id. Adding a node only takes over the stations between its points and their
+ * predecessors, and removing one only hands its own stations to the next points, so on a change of
+ * membership roughly 1/N of the stations move and all others stay where they are.
+ *
+ * A ring is immutable, with() and without() return a new one. Servers, ContentServer and GETClient all
+ * build it from the same node list and therefore agree on the owner of every station.
+ */
+public class HashRing {
+    // Points per node; more points spread the stations more evenly. Must be the same everywhere.
+    public static final int VIRTUAL_NODES = 128;
+
+    private final List<String> nodes;
+    private final long[] points;
+    private final String[] owners;
+
+    public HashRing(Collection<String> nodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(nodes)));
+        if (this.nodes.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one node");
+        }
+
+        TreeMap<Long, String> ring = new TreeMap<>(Long::compareUnsigned);
+        for (String node : this.nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                // on the rare collision the smaller node name wins, so every ring built from these nodes is equal
+                ring.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+        points = new long[ring.size()];
+        owners = new String[ring.size()];
+        int index = 0;
+        for (Map.Entry<Long, String> point : ring.entrySet()) {
+            points[index] = point.getKey();
+            owners[index] = point.getValue();
+            index++;
+        }
+    }
+
+    /**
+     * Builds a ring from a comma-separated node list such as "localhost:4567,localhost:4568".
+     * Returns null if the list is null or empty; throws IllegalArgumentException for a malformed node.
+     */
+    public static HashRing parse(String nodeList) {
+        if (nodeList == null) {
+            return null;
+        }
+        List<String> nodes = new ArrayList<>();
+        for (String node : nodeList.split(",")) {
+            node = node.trim();
+            if (node.isEmpty()) {
+                continue;
+            }
+            port(node);
+            nodes.add(node);
+        }
+        return nodes.isEmpty() ? null : new HashRing(nodes);
+    }
+
+    // The node that owns the station
+    public String nodeFor(String id) {
+        long hash = hash(id);
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(points[middle], hash) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        // past the last point the ring wraps around to the first
+        return owners[(low == points.length) ? 0 : low];
+    }
+
+    // Splits the station ids by owner, keeping their order within each node
+    public Map<String, List<String>> groupByNode(Collection<String> ids) {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String id : ids) {
+            groups.computeIfAbsent(nodeFor(id), node -> new ArrayList<>()).add(id);
+        }
+        return groups;
+    }
+
+    public HashRing with(String node) {
+        List<String> changed = new ArrayList<>(nodes);
+        changed.add(node);
+        return new HashRing(changed);
+    }
+
+    public HashRing without(String node) {
+        List<String> changed = new ArrayList<>(nodes);
+        changed.remove(node);
+        return new HashRing(changed);
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public boolean contains(String node) {
+        return nodes.contains(node);
+    }
+
+    public static String host(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    public static int port(String node) {
+        int colon = node.lastIndexOf(':');
+        try {
+            if (colon <= 0) {
+                throw new NumberFormatException();
+            }
+            return Integer.parseInt(node.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected host:port but got " + node);
+        }
+    }
+
+    // 64-bit FNV-1a, mixed with the MurmurHash3 finalizer so that similar ids land far apart
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", nodes);
+    }
+}
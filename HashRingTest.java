@@ -0,0 +1,87 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class HashRingTest {
+
+    private static final List<String> NODES = Arrays.asList("localhost:4567", "localhost:4568", "localhost:4569", "localhost:4570");
+
+    private static List<String> stations(int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add("IDS" + (60000 + i));
+        }
+        return ids;
+    }
+
+    @Test
+    public void stationsAreSpreadEvenly() {
+        HashRing ring = new HashRing(NODES);
+        Map<String, List<String>> groups = ring.groupByNode(stations(100_000));
+        Assert.assertEquals(new HashSet<>(NODES), groups.keySet());
+        for (List<String> ids : groups.values()) {
+            // a quarter each, give or take a fifth
+            Assert.assertEquals(25_000, ids.size(), 5_000);
+        }
+    }
+
+    @Test
+    public void ringsFromTheSameNodesAgree() {
+        HashRing ring = new HashRing(NODES);
+        List<String> reversed = new ArrayList<>(NODES);
+        Collections.reverse(reversed);
+        HashRing other = HashRing.parse(String.join(" , ", reversed));
+        for (String id : stations(10_000)) {
+            Assert.assertEquals(ring.nodeFor(id), other.nodeFor(id));
+        }
+    }
+
+    @Test
+    public void addingANodeOnlyMovesStationsToIt() {
+        HashRing ring = new HashRing(NODES);
+        HashRing grown = ring.with("localhost:4571");
+        int moved = 0;
+        for (String id : stations(100_000)) {
+            String before = ring.nodeFor(id);
+            String after = grown.nodeFor(id);
+            if (!before.equals(after)) {
+                Assert.assertEquals("localhost:4571", after);
+                moved++;
+            }
+        }
+        // about a fifth of the stations
+        Assert.assertEquals(20_000, moved, 5_000);
+    }
+
+    @Test
+    public void removingANodeOnlyMovesItsStations() {
+        HashRing ring = new HashRing(NODES);
+        HashRing shrunk = ring.without("localhost:4568");
+        Assert.assertFalse(shrunk.contains("localhost:4568"));
+        for (String id : stations(100_000)) {
+            String before = ring.nodeFor(id);
+            if (!before.equals("localhost:4568")) {
+                Assert.assertEquals(before, shrunk.nodeFor(id));
+            } else {
+                Assert.assertFalse("localhost:4568".equals(shrunk.nodeFor(id)));
+            }
+        }
+    }
+
+    @Test
+    public void parsesNodeLists() {
+        Assert.assertNull(HashRing.parse(null));
+        Assert.assertNull(HashRing.parse(" , "));
+        HashRing ring = HashRing.parse("localhost:4567,127.0.0.1:4568,localhost:4567");
+        Assert.assertEquals(Arrays.asList("localhost:4567", "127.0.0.1:4568"), ring.getNodes());
+        Assert.assertEquals("127.0.0.1", HashRing.host("127.0.0.1:4568"));
+        Assert.assertEquals(4568, HashRing.port("127.0.0.1:4568"));
+        try {
+            HashRing.parse("localhost");
+            Assert.fail("A node without a port is not valid");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
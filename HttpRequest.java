@@ -0,0 +1,141 @@
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A parsed HTTP request as seen by the AggregationServer.
+ * Header names are case-insensitive.
+ */
+public class HttpRequest {
+    private final String method;
+    private final String target;
+    private final String version;
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private String body = "";
+    private Map<String, List<String>> queryParameters;
+
+    public HttpRequest(String method, String target, String version) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+    }
+
+    // Parses a request line such as "GET /weather.json HTTP/1.1", returns null if it is malformed
+    public static HttpRequest fromRequestLine(String requestLine) {
+        String[] parts = requestLine.trim().split(" +");
+        if (parts.length < 2) {
+            return null;
+        }
+        String version = (parts.length > 2) ? parts[2] : "HTTP/1.0";
+        return new HttpRequest(parts[0], parts[1], version);
+    }
+
+    public void addHeader(String name, String value) {
+        headers.put(name.trim(), value.trim());
+    }
+
+    // Adds a raw "Name: value" header line, lines without a colon are ignored
+    public void addHeaderLine(String line) {
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+            addHeader(line.substring(0, colon), line.substring(colon + 1));
+        }
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    // The target without its query string, e.g. "/weather.json"
+    public String getPath() {
+        int query = target.indexOf('?');
+        return (query >= 0) ? target.substring(0, query) : target;
+    }
+
+    /**
+     * Values of a query parameter. Both repeated parameters (id=a&id=b) and comma-separated values (id=a,b)
+     * are returned as separate values. Returns an empty list if the parameter is missing.
+     */
+    public List<String> getQueryParameters(String name) {
+        if (queryParameters == null) {
+            queryParameters = parseQuery(target);
+        }
+        return queryParameters.getOrDefault(name, Collections.emptyList());
+    }
+
+    // The first value of a query parameter, or null if it is missing
+    public String getQueryParameter(String name) {
+        List<String> values = getQueryParameters(name);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    private static Map<String, List<String>> parseQuery(String target) {
+        Map<String, List<String>> parameters = new HashMap<>();
+        int start = target.indexOf('?');
+        if (start < 0) {
+            return parameters;
+        }
+        for (String pair : target.substring(start + 1).split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String key = decode(equals >= 0 ? pair.substring(0, equals) : pair);
+            String value = (equals >= 0) ? pair.substring(equals + 1) : "";
+            List<String> values = parameters.computeIfAbsent(key, k -> new ArrayList<>());
+            for (String item : value.split(",")) {
+                if (!item.isEmpty()) {
+                    values.add(decode(item));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static String decode(String text) {
+        try {
+            return URLDecoder.decode(text, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return text;
+        }
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    // HTTP/1.1 connections stay open unless the client asks to close them, HTTP/1.0 ones only if asked to keep them
+    public boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+        if ("HTTP/1.1".equals(version)) {
+            return connection == null || !connection.trim().equalsIgnoreCase("close");
+        }
+        return connection != null && connection.trim().equalsIgnoreCase("keep-alive");
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public void setBody(String body) {
+        this.body = (body == null) ? "" : body;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + target + " " + version;
+    }
+}
@@ -0,0 +1,193 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental HTTP request parser.
+ *
+ * Bytes can be fed in any chunk size; the parser keeps its position between calls so that a request
+ * split over many reads (slow clients) is assembled without blocking a thread.
+ * The body is framed by Content-Length. Requests without a Content-Length keep the old behaviour of
+ * reading the body until an empty line.
+ * The body buffer grows as the bytes arrive, so a Content-Length alone does not reserve memory.
+ */
+public class HttpRequestParser {
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADERS = 100;
+    private static final int MAX_BODY_LENGTH = 16 * 1024 * 1024;
+    private static final int INITIAL_BODY_CAPACITY = 8192;
+
+    private enum State { REQUEST_LINE, HEADERS, BODY, BODY_UNTIL_EMPTY_LINE }
+
+    private State state = State.REQUEST_LINE;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private HttpRequest request;
+    private int headerCount;
+    private byte[] body;
+    private int bodyLength;
+    private int expectedBodyLength;
+    private StringBuilder legacyBody;
+
+    /**
+     * Consumes bytes from the buffer until one request is complete.
+     * Returns the request, leaving any following (pipelined) bytes in the buffer,
+     * or null if all bytes were consumed and the request is still incomplete.
+     */
+    public HttpRequest parse(ByteBuffer buffer) throws ProtocolException {
+        while (buffer.hasRemaining()) {
+            if (state == State.BODY) {
+                if (bodyLength == body.length) {
+                    body = Arrays.copyOf(body, (int) Math.min(expectedBodyLength, 2L * body.length));
+                }
+                int count = Math.min(buffer.remaining(), body.length - bodyLength);
+                buffer.get(body, bodyLength, count);
+                bodyLength += count;
+                if (bodyLength == expectedBodyLength) {
+                    request.setBody(new String(body, 0, bodyLength, StandardCharsets.UTF_8));
+                    return complete();
+                }
+                continue;
+            }
+
+            byte b = buffer.get();
+            if (b != '\n') {
+                appendToLine(b);
+                continue;
+            }
+
+            String text = takeLine();
+            HttpRequest completed = onLine(text);
+            if (completed != null) {
+                return completed;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called when the client closed its side of the connection.
+     * A legacy body that was not terminated by an empty line is accepted as it is.
+     */
+    public HttpRequest finish() {
+        if (state == State.BODY_UNTIL_EMPTY_LINE) {
+            if (lineLength > 0) {
+                legacyBody.append(takeLine());
+            }
+            request.setBody(legacyBody.toString());
+            return complete();
+        }
+        return null;
+    }
+
+    // Bytes currently reserved for the body being read
+    int getBodyCapacity() {
+        return body == null ? 0 : body.length;
+    }
+
+    // True if part of a request has been read but not all of it
+    public boolean isInProgress() {
+        return state != State.REQUEST_LINE || lineLength > 0;
+    }
+
+    private HttpRequest onLine(String text) throws ProtocolException {
+        switch (state) {
+            case REQUEST_LINE:
+                if (text.isEmpty()) {
+                    return null;  // tolerate blank lines between requests
+                }
+                request = HttpRequest.fromRequestLine(text);
+                if (request == null) {
+                    throw new ProtocolException("Malformed request line: " + text);
+                }
+                state = State.HEADERS;
+                return null;
+
+            case HEADERS:
+                if (!text.isEmpty()) {
+                    if (++headerCount > MAX_HEADERS) {
+                        throw new ProtocolException("Too many headers");
+                    }
+                    request.addHeaderLine(text);
+                    return null;
+                }
+                return startBody();
+
+            case BODY_UNTIL_EMPTY_LINE:
+                if (text.isEmpty()) {
+                    request.setBody(legacyBody.toString());
+                    return complete();
+                }
+                if (legacyBody.length() + text.length() > MAX_BODY_LENGTH) {
+                    throw new ProtocolException("Body too long");
+                }
+                legacyBody.append(text);
+                return null;
+
+            default:
+                throw new IllegalStateException("Unexpected parser state " + state);
+        }
+    }
+
+    private HttpRequest startBody() throws ProtocolException {
+        String contentLength = request.getHeader("Content-Length");
+        if (contentLength != null) {
+            int length;
+            try {
+                length = Integer.parseInt(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+            if (length < 0 || length > MAX_BODY_LENGTH) {
+                throw new ProtocolException("Unsupported Content-Length: " + length);
+            }
+            if (length == 0) {
+                return complete();
+            }
+            body = new byte[Math.min(length, INITIAL_BODY_CAPACITY)];
+            bodyLength = 0;
+            expectedBodyLength = length;
+            state = State.BODY;
+            return null;
+        }
+
+        if ("PUT".equals(request.getMethod())) {
+            legacyBody = new StringBuilder();
+            state = State.BODY_UNTIL_EMPTY_LINE;
+            return null;
+        }
+        return complete();
+    }
+
+    private HttpRequest complete() {
+        HttpRequest completed = request;
+        request = null;
+        body = null;
+        legacyBody = null;
+        headerCount = 0;
+        state = State.REQUEST_LINE;
+        return completed;
+    }
+
+    private void appendToLine(byte b) throws ProtocolException {
+        if (lineLength == line.length) {
+            if (line.length >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("Line too long");
+            }
+            byte[] bigger = new byte[Math.min(line.length * 2, MAX_LINE_LENGTH)];
+            System.arraycopy(line, 0, bigger, 0, lineLength);
+            line = bigger;
+        }
+        line[lineLength++] = b;
+    }
+
+    private String takeLine() {
+        int length = lineLength;
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        lineLength = 0;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class HttpRequestParserTest {
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void parsesRequestSplitOverManyReads() throws ProtocolException {
+        String raw = "PUT /weather.json HTTP/1.1\r\nContent-Type: application/json\r\nContent-Length: 16\r\n\r\n{\"id\":\"IDS6090\"}";
+        HttpRequestParser parser = new HttpRequestParser();
+
+        HttpRequest request = null;
+        for (int i = 0; i < raw.length(); i++) {
+            HttpRequest parsed = parser.parse(bytes(raw.substring(i, i + 1)));
+            if (parsed != null) {
+                Assert.assertEquals(raw.length() - 1, i);
+                request = parsed;
+            }
+        }
+
+        Assert.assertNotNull(request);
+        Assert.assertEquals("PUT", request.getMethod());
+        Assert.assertEquals("/weather.json", request.getPath());
+        Assert.assertEquals("application/json", request.getHeader("content-type"));
+        Assert.assertEquals("{\"id\":\"IDS6090\"}", request.getBody());
+    }
+
+    @Test
+    public void readsBodyUntilEmptyLineWithoutContentLength() throws ProtocolException {
+        HttpRequestParser parser = new HttpRequestParser();
+        HttpRequest request = parser.parse(bytes("PUT /weather.json HTTP/1.1\n\n{\"id\":\n\"IDS6090\"}\n\n"));
+
+        Assert.assertNotNull(request);
+        Assert.assertEquals("{\"id\":\"IDS6090\"}", request.getBody());
+    }
+
+    @Test
+    public void leavesPipelinedRequestsInTheBuffer() throws ProtocolException {
+        HttpRequestParser parser = new HttpRequestParser();
+        ByteBuffer buffer = bytes("PUT /weather.json HTTP/1.1\r\nContent-Length: 2\r\n\r\n{}"
+                + "GET /weather.json HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        HttpRequest first = parser.parse(buffer);
+        HttpRequest second = parser.parse(buffer);
+
+        Assert.assertEquals("PUT", first.getMethod());
+        Assert.assertEquals("{}", first.getBody());
+        Assert.assertTrue(first.isKeepAlive());
+        Assert.assertEquals("GET", second.getMethod());
+        Assert.assertFalse(second.isKeepAlive());
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void splitsQueryParameters() {
+        HttpRequest request = HttpRequest.fromRequestLine("GET /weather.json?id=IDS60901,IDS60902&id=IDS60903&fields=air_temp&name=a%20b HTTP/1.1");
+
+        Assert.assertEquals("/weather.json", request.getPath());
+        Assert.assertEquals(java.util.Arrays.asList("IDS60901", "IDS60902", "IDS60903"), request.getQueryParameters("id"));
+        Assert.assertEquals("air_temp", request.getQueryParameter("fields"));
+        Assert.assertEquals("a b", request.getQueryParameter("name"));
+        Assert.assertTrue(request.getQueryParameters("since").isEmpty());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsInvalidContentLength() throws ProtocolException {
+        new HttpRequestParser().parse(bytes("PUT /weather.json HTTP/1.1\r\nContent-Length: abc\r\n\r\n"));
+    }
+
+    @Test
+    public void bodyBufferGrowsWithTheBytesReceived() throws ProtocolException {
+        HttpRequestParser parser = new HttpRequestParser();
+        Assert.assertNull(parser.parse(bytes("PUT /weather.json HTTP/1.1\r\nContent-Length: 16000000\r\n\r\n{\"id\":")));
+        Assert.assertTrue(parser.getBodyCapacity() < 64 * 1024);
+
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < 5000; i++) {
+            body.append(i == 0 ? "" : ",").append("{\"id\":\"IDS").append(i).append("\"}");
+        }
+        String json = body.append("]").toString();
+        parser = new HttpRequestParser();
+        ByteBuffer buffer = bytes("PUT /weather.json HTTP/1.1\r\nContent-Length: " + json.length() + "\r\n\r\n" + json);
+        HttpRequest request = null;
+        while (request == null && buffer.hasRemaining()) {
+            ByteBuffer chunk = buffer.slice();
+            chunk.limit(Math.min(chunk.remaining(), 1000));
+            request = parser.parse(chunk);
+            buffer.position(buffer.position() + chunk.position());
+        }
+        Assert.assertNotNull(request);
+        Assert.assertEquals(json, request.getBody());
+    }
+
+    @Test
+    public void legacyBodyIsLimitedLikeAContentLengthBody() throws ProtocolException {
+        HttpRequestParser parser = new HttpRequestParser();
+        Assert.assertNull(parser.parse(bytes("PUT /weather.json HTTP/1.1\r\n\r\n")));
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 4000; i++) {
+            lines.append("\"padding\":\"0123456789\",\n");
+        }
+        ByteBuffer chunk = bytes(lines.toString());
+        try {
+            // about 100 KB per chunk, the limit is 16 MB
+            for (int i = 0; i < 200; i++) {
+                Assert.assertNull(parser.parse(chunk.duplicate()));
+            }
+            Assert.fail("body without Content-Length was not limited");
+        } catch (ProtocolException expected) {
+            Assert.assertEquals("Body too long", expected.getMessage());
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An HTTP response produced by the AggregationServer, independent of how it is written to the client.
+ */
+public class HttpResponse {
+    private static final byte[] LAMPORT_CLOCK_PREFIX = "Lamport-Clock: ".getBytes(StandardCharsets.US_ASCII);
+
+    private final int statusCode;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private byte[] body;
+
+    // Set for responses that are cached and sent to many clients
+    private volatile boolean shared;
+
+    // A long-poll answer that is not known yet, or the subscription behind an event stream
+    private CompletableFuture<HttpResponse> deferred;
+    private SubscriptionHub.Subscription eventStream;
+
+    // Encoded forms, filled in on first use
+    private volatile byte[] keepAliveBytes;
+    private volatile byte[] closeBytes;
+    private volatile ByteBuffer keepAliveBuffer;
+    private volatile ByteBuffer closeBuffer;
+
+    public HttpResponse(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    public HttpResponse header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public HttpResponse body(String contentType, String body) {
+        return body(contentType, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public HttpResponse body(String contentType, byte[] body) {
+        headers.put("Content-Type", contentType);
+        this.body = body;
+        return this;
+    }
+
+    /**
+     * A response that is only complete later, e.g. a long-poll that waits for updates.
+     * The engine writes the response the future completes with; until then the connection reads no more requests.
+     */
+    public static HttpResponse deferred(CompletableFuture<HttpResponse> response) {
+        HttpResponse placeholder = new HttpResponse(200);
+        placeholder.deferred = response;
+        return placeholder;
+    }
+
+    /**
+     * Turns the response into the head of a server-sent event stream. The engine writes the head, then
+     * the deliveries of the subscription for as long as the client stays connected.
+     */
+    public HttpResponse eventStream(SubscriptionHub.Subscription subscription) {
+        headers.put("Content-Type", "text/event-stream");
+        headers.put("Cache-Control", "no-cache");
+        eventStream = subscription;
+        subscription.setStreaming(true);
+        return this;
+    }
+
+    // A copy of the response with the body compressed with gzip and marked with Content-Encoding
+    public HttpResponse gzipped() {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed, 8192)) {
+            out.write(body);
+        } catch (IOException e) {
+            throw new IllegalStateException("ByteArrayOutputStream does not throw", e);
+        }
+        HttpResponse response = new HttpResponse(statusCode);
+        response.headers.putAll(headers);
+        response.headers.put("Content-Encoding", "gzip");
+        response.body = compressed.toByteArray();
+        return response;
+    }
+
+    public CompletableFuture<HttpResponse> getDeferred() {
+        return deferred;
+    }
+
+    public SubscriptionHub.Subscription getEventStream() {
+        return eventStream;
+    }
+
+    // Marks the response as sent to many clients and encodes it up front
+    public HttpResponse share() {
+        shared = true;
+        toBuffer(true);
+        toBuffer(false);
+        return this;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Encodes the status line, headers and body the way they are sent on the wire,
+     * with a Connection header telling the client whether the connection stays open.
+     * The encoding is kept, so a response that is cached and sent many times is only encoded once.
+     * Headers must not be changed after the first call.
+     */
+    public byte[] toBytes(boolean keepAlive) {
+        byte[] bytes = keepAlive ? keepAliveBytes : closeBytes;
+        if (bytes == null) {
+            bytes = encode(keepAlive);
+            if (keepAlive) {
+                keepAliveBytes = bytes;
+            } else {
+                closeBytes = bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The encoded response as a buffer for a SocketChannel.
+     * Shared responses are kept in a read-only direct buffer, which the channel can write without copying.
+     */
+    public ByteBuffer toBuffer(boolean keepAlive) {
+        if (!shared) {
+            return ByteBuffer.wrap(toBytes(keepAlive));
+        }
+        ByteBuffer buffer = keepAlive ? keepAliveBuffer : closeBuffer;
+        if (buffer == null) {
+            byte[] bytes = toBytes(keepAlive);
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes).flip();
+            buffer = direct.asReadOnlyBuffer();
+            if (keepAlive) {
+                keepAliveBuffer = buffer;
+            } else {
+                closeBuffer = buffer;
+            }
+        }
+        return buffer.duplicate();
+    }
+
+    // Writes the response without flushing, so pipelined responses can share one flush
+    public void writeTo(OutputStream out, boolean keepAlive) throws IOException {
+        out.write(toBytes(keepAlive));
+    }
+
+    /**
+     * Writes the response with a Lamport-Clock header right after the status line.
+     * The header is spliced in at write time, so the cached encoding stays the same for every client.
+     */
+    public void writeTo(OutputStream out, boolean keepAlive, long lamportClock) throws IOException {
+        byte[] bytes = toBytes(keepAlive);
+        int split = statusLineLength();
+        out.write(bytes, 0, split);
+        out.write(lamportClockHeader(lamportClock));
+        out.write(bytes, split, bytes.length - split);
+    }
+
+    // Same as writeTo with a Lamport clock, as buffers for a SocketChannel
+    public List<ByteBuffer> toBuffers(boolean keepAlive, long lamportClock) {
+        ByteBuffer encoded = toBuffer(keepAlive);
+        int split = statusLineLength();
+        ByteBuffer statusLine = encoded.duplicate();
+        statusLine.limit(split);
+        encoded.position(split);
+        return Arrays.asList(statusLine, ByteBuffer.wrap(lamportClockHeader(lamportClock)), encoded);
+    }
+
+    private int statusLineLength() {
+        // "HTTP/1.1 " + three digit code + ' ' + reason phrase + CRLF, all ASCII
+        return 9 + 3 + 1 + reasonPhrase(statusCode).length() + 2;
+    }
+
+    // "Lamport-Clock: <time>\r\n" without going through a String
+    static byte[] lamportClockHeader(long time) {
+        int digits = 1;
+        for (long rest = time / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        byte[] header = new byte[LAMPORT_CLOCK_PREFIX.length + digits + 2];
+        System.arraycopy(LAMPORT_CLOCK_PREFIX, 0, header, 0, LAMPORT_CLOCK_PREFIX.length);
+        int end = LAMPORT_CLOCK_PREFIX.length + digits;
+        for (int i = end - 1; i >= LAMPORT_CLOCK_PREFIX.length; i--) {
+            header[i] = (byte) ('0' + time % 10);
+            time /= 10;
+        }
+        header[end] = '\r';
+        header[end + 1] = '\n';
+        return header;
+    }
+
+    private byte[] encode(boolean keepAlive) {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(statusCode).append(' ').append(reasonPhrase(statusCode)).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (body != null) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        } else if (statusCode != 204 && statusCode != 304 && eventStream == null) {
+            // without it a client on a persistent connection cannot tell where the empty response ends
+            head.append("Content-Length: 0\r\n");
+        }
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        head.append("\r\n");
+
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.US_ASCII);
+        if (body == null) {
+            return headBytes;
+        }
+        byte[] bytes = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+        System.arraycopy(body, 0, bytes, headBytes.length, body.length);
+        return bytes;
+    }
+
+    static String reasonPhrase(int statusCode) {
+        switch (statusCode) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 409: return "Conflict";
+            case 500: return "Internal Server Error";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            default: return "Unknown";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HTTP/1.1 " + statusCode + " " + reasonPhrase(statusCode);
+    }
+}
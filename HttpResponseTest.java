@@ -0,0 +1,47 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class HttpResponseTest {
+
+    @Test
+    public void responsesCarryTheClockWithoutChangingTheCachedEncoding() throws IOException {
+        HttpResponse response = new HttpResponse(200).body("application/json", "[]").share();
+        byte[] cached = response.toBytes(true);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.writeTo(out, true, 42);
+        String text = out.toString("UTF-8");
+        Assert.assertTrue(text.startsWith("HTTP/1.1 200 OK\r\nLamport-Clock: 42\r\nContent-Type: application/json\r\n"));
+        Assert.assertTrue(text.endsWith("\r\n\r\n[]"));
+
+        ByteArrayOutputStream buffers = new ByteArrayOutputStream();
+        List<ByteBuffer> parts = response.toBuffers(true, 42);
+        for (ByteBuffer part : parts) {
+            byte[] bytes = new byte[part.remaining()];
+            part.get(bytes);
+            buffers.write(bytes);
+        }
+        Assert.assertEquals(text, buffers.toString("UTF-8"));
+        Assert.assertSame(cached, response.toBytes(true));
+        Assert.assertFalse(new String(cached, StandardCharsets.US_ASCII).contains("Lamport-Clock"));
+    }
+
+    @Test
+    public void emptyResponsesSayWhereTheyEnd() {
+        Assert.assertTrue(new String(new HttpResponse(201).toBytes(true), StandardCharsets.US_ASCII).contains("\r\nContent-Length: 0\r\n"));
+        Assert.assertFalse(new String(new HttpResponse(204).toBytes(true), StandardCharsets.US_ASCII).contains("Content-Length"));
+        Assert.assertFalse(new String(new HttpResponse(304).toBytes(true), StandardCharsets.US_ASCII).contains("Content-Length"));
+    }
+
+    @Test
+    public void statusLinesHaveTheirReasonPhrase() {
+        Assert.assertTrue(new String(new HttpResponse(409).toBytes(false), StandardCharsets.US_ASCII).startsWith("HTTP/1.1 409 Conflict\r\n"));
+        Assert.assertTrue(new String(new HttpResponse(502).toBytes(false), StandardCharsets.US_ASCII).startsWith("HTTP/1.1 502 Bad Gateway\r\n"));
+    }
+}
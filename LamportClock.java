@@ -1,26 +1,46 @@
+import java.util.concurrent.atomic.AtomicLong;
+
 public class LamportClock {
-    private int time;
+    // Largest time accepted from elsewhere; leaves room for ticking on, so the clock never wraps to negative
+    public static final long MAX_RECEIVED_TIME = Long.MAX_VALUE / 2;
+
+    private final AtomicLong time;
     private final String identifier;  // A unique identifier for each clock (could be client/server ID)
 
     // Constructor with an identifier (client/server ID)
     public LamportClock(String identifier) {
-        this.time = 0;
+        this.time = new AtomicLong(0);
         this.identifier = identifier;
     }
 
-    // Synchronized method to update the local clock
-    public synchronized void update() {
-        time++;
+    // Ticks the clock for a local or send event and returns the new time, without taking a lock
+    public long update() {
+        return time.incrementAndGet();
     }
 
-    // Synchronized method to update the clock based on a received timestamp and its own time
-    public synchronized void update(int receivedTime) {
-        time = Math.max(time, receivedTime) + 1;
+    // Merges a received timestamp: the clock moves past both its own time and the received one.
+    // Returns the new time, so the caller does not need a separate (racy) getTime() call.
+    // Throws IllegalArgumentException for a negative time or one beyond MAX_RECEIVED_TIME.
+    public long update(long receivedTime) {
+        if (!isValidTime(receivedTime)) {
+            throw new IllegalArgumentException("Lamport time out of range: " + receivedTime);
+        }
+        while (true) {
+            long current = time.get();
+            long next = Math.max(current, receivedTime) + 1;
+            if (time.compareAndSet(current, next)) {
+                return next;
+            }
+        }
     }
 
-    // Synchronized method to get the current time
-    public synchronized int getTime() {
-        return time;
+    public static boolean isValidTime(long time) {
+        return time >= 0 && time <= MAX_RECEIVED_TIME;
+    }
+
+    // Get the current time
+    public long getTime() {
+        return time.get();
     }
 
     // Get the clock's unique identifier
@@ -33,8 +53,7 @@ public class LamportClock {
     public String toString() {
         return "LamportClock{" +
                 "identifier='" + identifier + '\'' +
-                ", time=" + time +
+                ", time=" + time.get() +
                 '}';
     }
 }
-
@@ -0,0 +1,76 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LamportClockTest {
+
+    @Test
+    public void mergeMovesPastTheReceivedTime() {
+        LamportClock clock = new LamportClock("test");
+        Assert.assertEquals(1, clock.update());
+        Assert.assertEquals(6, clock.update(5));
+        Assert.assertEquals(7, clock.update(3));
+        Assert.assertEquals(7, clock.getTime());
+    }
+
+    @Test
+    public void receivedTimesThatWouldOverflowAreRefused() {
+        LamportClock clock = new LamportClock("test");
+        clock.update(5);
+        for (long received : new long[]{Long.MAX_VALUE, LamportClock.MAX_RECEIVED_TIME + 1, -1, Long.MIN_VALUE}) {
+            try {
+                clock.update(received);
+                Assert.fail("accepted " + received);
+            } catch (IllegalArgumentException expected) {
+                Assert.assertEquals(6, clock.getTime());
+            }
+        }
+        Assert.assertEquals(LamportClock.MAX_RECEIVED_TIME + 1, clock.update(LamportClock.MAX_RECEIVED_TIME));
+        Assert.assertTrue(clock.update() > 0);
+    }
+
+    @Test
+    public void serverAnswersTheMaximumClockWith400() throws Exception {
+        for (String header : new String[]{String.valueOf(Long.MAX_VALUE), "-1", "abc"}) {
+            HttpRequest request = new HttpRequestParser().parse(ByteBuffer.wrap(
+                    ("PUT /weather.json HTTP/1.1\r\nLamport-Clock: " + header + "\r\nContent-Length: 2\r\n\r\n{}")
+                            .getBytes(StandardCharsets.US_ASCII)));
+            Assert.assertEquals(400, AggregationServer.handleRequest(request).getStatusCode());
+        }
+        Assert.assertTrue(AggregationServer.sendClock() > 0);
+    }
+
+    @Test
+    public void concurrentUpdatesNeverReturnTheSameTime() throws InterruptedException {
+        LamportClock clock = new LamportClock("test");
+        Set<Long> seen = ConcurrentHashMap.newKeySet();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int n = 0; n < 10_000; n++) {
+                        long time = (n % 2 == 0) ? clock.update() : clock.update(n + offset);
+                        Assert.assertTrue("time " + time + " returned twice", seen.add(time));
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("worker thread failed", failure.get());
+        }
+        Assert.assertEquals(threads.length * 10_000, seen.size());
+    }
+}
@@ -0,0 +1,473 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for the AggregationServer: a mix of PUTs (as the ContentServer sends them) and GETs
+ * (as the GETClient sends them) for a set of simulated stations, over persistent connections.
+ *
+ * Closed loop (the default): every connection sends its next request as soon as the previous one is
+ * answered. Open loop (--rate): requests are due at a fixed total rate, spread over the connections,
+ * whether or not the server keeps up.
+ *
+ * A closed loop stops sending while the server is stalled, so the stall itself shows up in only one
+ * sample (coordinated omission). The report therefore corrects for it: in the open loop a request's
+ * latency is counted from the time it was due, not from when it was sent; in the closed loop every
+ * sample that is longer than the expected interval between requests is backfilled with the samples the
+ * connection would have taken in the meantime. The service time (send to response) is shown as well.
+ *
+ * java -cp ".:lib/*" LoadGenerator --port 4567 --stations 1000 --connections 16 --puts 20 --rate 5000 --duration 30
+ */
+public class LoadGenerator {
+
+    static final class Options {
+        String host = "localhost";
+        int port = 4567;
+        int stations = 1000;
+        int connections = 8;
+        int putPercent = 20;
+        double rate;            // requests per second in total, 0 for a closed loop
+        long durationSeconds = 30;
+        long warmupSeconds = 5;
+        boolean getAll;         // GET the whole store instead of one station
+        long expectedIntervalMicros;  // closed loop only, 0 takes the median service time of the warmup
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String value = (i + 1 < args.length) ? args[i + 1] : null;
+                switch (args[i]) {
+                    case "--host": options.host = value; i++; break;
+                    case "--port": options.port = Integer.parseInt(value); i++; break;
+                    case "--stations": options.stations = Integer.parseInt(value); i++; break;
+                    case "--connections": options.connections = Integer.parseInt(value); i++; break;
+                    case "--puts": options.putPercent = Integer.parseInt(value); i++; break;
+                    case "--rate": options.rate = Double.parseDouble(value); i++; break;
+                    case "--duration": options.durationSeconds = Long.parseLong(value); i++; break;
+                    case "--warmup": options.warmupSeconds = Long.parseLong(value); i++; break;
+                    case "--expected-interval-us": options.expectedIntervalMicros = Long.parseLong(value); i++; break;
+                    case "--get-all": options.getAll = true; break;
+                    default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (options.stations < 1 || options.connections < 1 || options.putPercent < 0 || options.putPercent > 100) {
+                throw new IllegalArgumentException("Need at least one station and connection, and --puts between 0 and 100");
+            }
+            return options;
+        }
+    }
+
+    /**
+     * Latency histogram with 64 buckets per power of two, so every recorded value is kept with an error
+     * below 1.6% from nanoseconds up to minutes, in a fixed 18 KB. Not thread-safe: every connection
+     * records into its own histograms, which are added up at the end.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 6;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int MAX_MAGNITUDE = 40;  // 2^40 ns, about 18 minutes
+        private final long[] counts = new long[(MAX_MAGNITUDE - SUB_BITS + 2) * SUB_BUCKETS];
+        private long total;
+        private long max;
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts[index(value)]++;
+            total++;
+            max = Math.max(max, value);
+        }
+
+        /**
+         * Records the sample, and if it is longer than the expected interval between requests, also the
+         * shorter samples the requests that could not be sent in the meantime would have seen.
+         */
+        void recordCorrected(long nanos, long expectedIntervalNanos) {
+            record(nanos);
+            if (expectedIntervalNanos <= 0) {
+                return;
+            }
+            for (long missed = nanos - expectedIntervalNanos; missed >= expectedIntervalNanos; missed -= expectedIntervalNanos) {
+                record(missed);
+            }
+        }
+
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        long getCount() {
+            return total;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        // The smallest recorded value (within the bucket precision) that percentile % of the samples do not exceed
+        long valueAtPercentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_MAGNITUDE);
+            int shift = magnitude - SUB_BITS;
+            long top = Math.min(value >>> shift, 2 * SUB_BUCKETS - 1);
+            return (shift + 1) * SUB_BUCKETS + (int) (top - SUB_BUCKETS);
+        }
+
+        static long highestValue(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long top = index % SUB_BUCKETS + SUB_BUCKETS;
+            return ((top + 1) << shift) - 1;
+        }
+    }
+
+    // What one connection measured
+    static final class Worker implements Runnable {
+        private final Options options;
+        private final int number;
+        private final long startNanos;
+        private final long measureFromNanos;
+        private final long endNanos;
+        private final AtomicBoolean running;
+        private final LamportClock lamportClock;
+
+        final LatencyHistogram puts = new LatencyHistogram();
+        final LatencyHistogram gets = new LatencyHistogram();
+        final LatencyHistogram service = new LatencyHistogram();
+        private final LatencyHistogram warmupService = new LatencyHistogram();
+        long putCount;
+        long getCount;
+        long notFound;
+        long errors;
+        long reconnects;
+
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+
+        Worker(Options options, int number, long startNanos, AtomicBoolean running, LamportClock lamportClock) {
+            this.options = options;
+            this.number = number;
+            this.startNanos = startNanos;
+            this.measureFromNanos = startNanos + options.warmupSeconds * 1_000_000_000L;
+            this.endNanos = measureFromNanos + options.durationSeconds * 1_000_000_000L;
+            this.running = running;
+            this.lamportClock = lamportClock;
+        }
+
+        @Override
+        public void run() {
+            // in the open loop every connection takes an equal share of the rate, offset so they do not send together
+            long periodNanos = (options.rate > 0) ? (long) (1e9 * options.connections / options.rate) : 0;
+            long due = startNanos + periodNanos * number / options.connections;
+            long expectedIntervalNanos = options.expectedIntervalMicros * 1000;
+            boolean intervalChosen = periodNanos > 0 || expectedIntervalNanos > 0;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            while (running.get()) {
+                long intended;
+                if (periodNanos > 0) {
+                    intended = due;
+                    due += periodNanos;
+                    long wait;
+                    while ((wait = intended - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    intended = System.nanoTime();
+                }
+                if (intended >= endNanos) {
+                    break;
+                }
+
+                boolean put = random.nextInt(100) < options.putPercent;
+                String station = stationId(random.nextInt(options.stations));
+                long sent = System.nanoTime();
+                int status;
+                try {
+                    status = send(put, station);
+                } catch (IOException e) {
+                    errors++;
+                    closeConnection();
+                    reconnects++;
+                    LockSupport.parkNanos(10_000_000L);  // do not hammer a server that is down
+                    continue;
+                }
+                long done = System.nanoTime();
+                if (status == 404) {
+                    notFound++;  // a GET for a station that has not been PUT yet
+                } else if (status < 200 || status >= 300) {
+                    errors++;
+                }
+
+                if (done < measureFromNanos) {
+                    warmupService.record(done - sent);
+                    continue;
+                }
+                if (!intervalChosen) {
+                    // closed loop: the typical service time is the interval the connection would keep;
+                    // without a warmup there is nothing to go by, and the samples are not corrected
+                    expectedIntervalNanos = warmupService.valueAtPercentile(50);
+                    intervalChosen = true;
+                }
+                long latency = done - intended;
+                LatencyHistogram histogram = put ? puts : gets;
+                if (put) {
+                    putCount++;
+                } else {
+                    getCount++;
+                }
+                if (periodNanos > 0) {
+                    histogram.record(latency);
+                } else {
+                    histogram.recordCorrected(latency, expectedIntervalNanos);
+                }
+                service.record(done - sent);
+            }
+            closeConnection();
+        }
+
+        private int send(boolean put, String station) throws IOException {
+            if (socket == null) {
+                Socket s = new Socket();
+                s.connect(new InetSocketAddress(options.host, options.port), 5000);
+                s.setTcpNoDelay(true);
+                s.setSoTimeout(30000);
+                socket = s;
+                out = new BufferedOutputStream(s.getOutputStream(), 16 * 1024);
+                in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+            }
+
+            StringBuilder head = new StringBuilder(256);
+            byte[] body = null;
+            if (put) {
+                body = WeatherJson.toJson(reading(station)).getBytes(StandardCharsets.UTF_8);
+                head.append("PUT /weather.json HTTP/1.1\r\n")
+                        .append("Content-Type: application/json\r\n")
+                        .append("Content-Length: ").append(body.length).append("\r\n");
+            } else {
+                head.append("GET /weather.json").append(options.getAll ? "" : "?id=" + station).append(" HTTP/1.1\r\n");
+            }
+            head.append("Host: ").append(options.host).append("\r\n")
+                    .append("Lamport-Clock: ").append(lamportClock.update()).append("\r\n")
+                    .append("\r\n");
+            out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+            if (body != null) {
+                out.write(body);
+            }
+            out.flush();
+            return readResponse();
+        }
+
+        // Reads the status line and headers, merges the Lamport clock and skips the body
+        private int readResponse() throws IOException {
+            String statusLine = readLine();
+            String[] parts = statusLine.split(" ");
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            int status = Integer.parseInt(parts[1]);
+            long contentLength = 0;
+            boolean close = false;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    close = value.equalsIgnoreCase("close");
+                } else if (name.equalsIgnoreCase("Lamport-Clock")) {
+                    lamportClock.update(Long.parseLong(value));
+                }
+            }
+            while (contentLength > 0) {
+                long skipped = in.skip(contentLength);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException("Connection closed in the middle of a response");
+                    }
+                    skipped = 1;
+                }
+                contentLength -= skipped;
+            }
+            if (close) {
+                closeConnection();
+            }
+            return status;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("Connection closed by the server");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+
+        private void closeConnection() {
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+            socket = null;
+            out = null;
+            in = null;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (RuntimeException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: LoadGenerator [--host localhost] [--port 4567] [--stations 1000] [--connections 8]"
+                    + " [--puts 20] [--rate requestsPerSecond] [--duration 30] [--warmup 5] [--get-all]"
+                    + " [--expected-interval-us micros]");
+            return;
+        }
+        System.out.println(describe(options));
+        System.out.println(report(run(options), options));
+    }
+
+    // Runs the load for the warmup and measurement time and returns the workers with their results
+    static List<Worker> run(Options options) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LamportClock lamportClock = new LamportClock("LoadGenerator");
+        long start = System.nanoTime();
+        List<Worker> workers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < options.connections; i++) {
+            Worker worker = new Worker(options, i, start, running, lamportClock);
+            Thread thread = new Thread(worker, "load-" + (i + 1));
+            workers.add(worker);
+            threads.add(thread);
+            thread.start();
+        }
+        long end = start + (options.warmupSeconds + options.durationSeconds) * 1_000_000_000L;
+        long wait;
+        while ((wait = end - System.nanoTime()) > 0) {
+            Thread.sleep(Math.max(1, wait / 1_000_000));
+        }
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return workers;
+    }
+
+    static String describe(Options options) {
+        String mode = (options.rate > 0)
+                ? String.format("open loop at %.0f requests/s", options.rate)
+                : "closed loop";
+        return String.format("%s, %d connections, %d stations, %d%% PUTs, GET %s, %ds warmup + %ds against %s:%d",
+                mode, options.connections, options.stations, options.putPercent,
+                options.getAll ? "all stations" : "one station", options.warmupSeconds, options.durationSeconds,
+                options.host, options.port);
+    }
+
+    static String report(List<Worker> workers, Options options) {
+        LatencyHistogram puts = new LatencyHistogram();
+        LatencyHistogram gets = new LatencyHistogram();
+        LatencyHistogram service = new LatencyHistogram();
+        long putCount = 0;
+        long getCount = 0;
+        long notFound = 0;
+        long errors = 0;
+        long reconnects = 0;
+        for (Worker worker : workers) {
+            putCount += worker.putCount;
+            getCount += worker.getCount;
+            notFound += worker.notFound;
+            puts.add(worker.puts);
+            gets.add(worker.gets);
+            service.add(worker.service);
+            errors += worker.errors;
+            reconnects += worker.reconnects;
+        }
+        LatencyHistogram all = new LatencyHistogram();
+        all.add(puts);
+        all.add(gets);
+
+        StringBuilder text = new StringBuilder();
+        long requests = putCount + getCount;
+        text.append(String.format("Requests: %d (PUT %d, GET %d), not found %d, errors %d, reconnects %d, throughput %.1f requests/s%n",
+                requests, putCount, getCount, notFound, errors, reconnects, requests / (double) options.durationSeconds));
+        text.append(String.format("%-34s %9s %9s %9s %9s %9s%n", "Latency (ms)", "p50", "p90", "p99", "p99.9", "max"));
+        appendRow(text, "PUT", puts);
+        appendRow(text, "GET", gets);
+        appendRow(text, "all", all);
+        appendRow(text, "service time (not corrected)", service);
+        return text.toString();
+    }
+
+    private static void appendRow(StringBuilder text, String label, LatencyHistogram histogram) {
+        text.append(String.format("%-34s %9.3f %9.3f %9.3f %9.3f %9.3f%n", label,
+                histogram.valueAtPercentile(50) / 1e6, histogram.valueAtPercentile(90) / 1e6,
+                histogram.valueAtPercentile(99) / 1e6, histogram.valueAtPercentile(99.9) / 1e6,
+                histogram.getMax() / 1e6));
+    }
+
+    static String stationId(int i) {
+        return String.format("LOAD%05d", i);
+    }
+
+    // A plausible reading for the station; the temperature changes so that every PUT is a real update
+    private static WeatherData reading(String station) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        WeatherData weatherData = new WeatherData();
+        weatherData.setId(station);
+        weatherData.setName("Load " + station);
+        weatherData.setState("SA");
+        weatherData.setTimeZone("CST");
+        weatherData.setLat(-34.9);
+        weatherData.setLon(138.6);
+        weatherData.setAirTemp(Math.round(random.nextDouble(-5, 40) * 10) / 10.0);
+        weatherData.setPress(Math.round(random.nextDouble(990, 1030) * 10) / 10.0);
+        weatherData.setRelHum(random.nextInt(100));
+        weatherData.setWindDir("S");
+        return weatherData;
+    }
+}
@@ -0,0 +1,128 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LoadGeneratorTest {
+
+    @Test
+    public void histogramKeepsValuesWithinItsPrecision() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            // up to about 500 seconds, within the range of the histogram
+            long value = (long) Math.exp(random.nextDouble() * 26.9);
+            long reported = LoadGenerator.LatencyHistogram.highestValue(LoadGenerator.LatencyHistogram.index(value));
+            Assert.assertTrue(reported >= value);
+            Assert.assertTrue(value + " reported as " + reported, reported - value <= Math.max(1, value / 64));
+        }
+    }
+
+    @Test
+    public void percentilesOfAUniformDistribution() {
+        LoadGenerator.LatencyHistogram histogram = new LoadGenerator.LatencyHistogram();
+        for (long micros = 1; micros <= 10_000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        Assert.assertEquals(10_000, histogram.getCount());
+        Assert.assertEquals(5_000_000, histogram.valueAtPercentile(50), 5_000_000 / 64.0);
+        Assert.assertEquals(9_900_000, histogram.valueAtPercentile(99), 9_900_000 / 64.0);
+        Assert.assertEquals(9_990_000, histogram.valueAtPercentile(99.9), 9_990_000 / 64.0);
+        Assert.assertEquals(10_000_000, histogram.valueAtPercentile(100));
+        Assert.assertEquals(10_000_000, histogram.getMax());
+    }
+
+    @Test
+    public void stallIsBackfilledWithTheRequestsThatWereNotSent() {
+        // 1 ms per request, then a single 100 ms stall
+        LoadGenerator.LatencyHistogram raw = new LoadGenerator.LatencyHistogram();
+        LoadGenerator.LatencyHistogram corrected = new LoadGenerator.LatencyHistogram();
+        for (int i = 0; i < 1000; i++) {
+            raw.record(1_000_000);
+            corrected.recordCorrected(1_000_000, 1_000_000);
+        }
+        raw.record(100_000_000);
+        corrected.recordCorrected(100_000_000, 1_000_000);
+
+        // uncorrected the stall is one sample in a thousand and invisible at p99
+        Assert.assertTrue(raw.valueAtPercentile(99) < 1_100_000);
+        // corrected, the 99 requests stuck behind it are counted with 99 ms down to 1 ms
+        Assert.assertEquals(1000 + 100, corrected.getCount());
+        Assert.assertTrue(corrected.valueAtPercentile(99) > 80_000_000);
+    }
+
+    @Test
+    public void closedAndOpenLoopAgainstAServer() throws Exception {
+        AtomicInteger puts = new AtomicInteger();
+        AtomicInteger gets = new AtomicInteger();
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        Thread handler = new Thread(() -> answer(socket, puts, gets));
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (Exception e) {
+                        return;
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            LoadGenerator.Options closed = LoadGenerator.Options.parse(new String[]{
+                    "--port", String.valueOf(server.getLocalPort()), "--connections", "2", "--stations", "10",
+                    "--puts", "50", "--warmup", "0", "--duration", "1"});
+            String report = LoadGenerator.report(LoadGenerator.run(closed), closed);
+            Assert.assertTrue(report, report.contains("errors 0"));
+            Assert.assertTrue(puts.get() > 0);
+            Assert.assertTrue(gets.get() > 0);
+
+            // 200 requests per second for one second, the fake server keeps up easily
+            int before = puts.get() + gets.get();
+            LoadGenerator.Options open = LoadGenerator.Options.parse(new String[]{
+                    "--port", String.valueOf(server.getLocalPort()), "--connections", "4", "--rate", "200",
+                    "--warmup", "0", "--duration", "1"});
+            List<LoadGenerator.Worker> workers = LoadGenerator.run(open);
+            long sent = 0;
+            for (LoadGenerator.Worker worker : workers) {
+                sent += worker.putCount + worker.getCount;
+            }
+            Assert.assertEquals(200, sent, 4);
+            Assert.assertEquals(sent, puts.get() + gets.get() - before);
+        }
+    }
+
+    private static void answer(Socket socket, AtomicInteger puts, AtomicInteger gets) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            HttpRequestParser parser = new HttpRequestParser();
+            byte[] bytes = new byte[8192];
+            int count;
+            while ((count = in.read(bytes)) > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, count);
+                HttpRequest request;
+                while ((request = parser.parse(buffer)) != null) {
+                    if ("PUT".equals(request.getMethod())) {
+                        puts.incrementAndGet();
+                        new HttpResponse(200).writeTo(out, true, 1);
+                    } else {
+                        gets.incrementAndGet();
+                        new HttpResponse(200).body("application/json", "[]").writeTo(out, true, 1);
+                    }
+                }
+                out.flush();
+            }
+        } catch (Exception e) {
+            // the load generator closed the connection
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters and latency histograms for GET /metrics.
+ *
+ * Everything is recorded into LongAdders, which spread concurrent updates over striped cells instead of
+ * contending on one value, and histograms have fixed bucket bounds, so recording never locks or allocates
+ * and can stay on under load. The output uses the Prometheus text format.
+ */
+public class Metrics {
+
+    // The parts of a request that are timed
+    public enum Stage {
+        ACCEPT,     // accepted connection waiting for a handler or event loop
+        PARSE,      // HTTP request parsing
+        DECODE,     // reading WeatherData out of a PUT body
+        STORE,      // updating weatherDataStore
+        PERSIST,    // write-ahead log commit (or snapshot) of a PUT
+        SERIALIZE,  // building a GET response body
+        REQUEST     // handleRequest as a whole, until a long-poll is answered
+    }
+
+    /**
+     * Latency histogram with fixed bucket bounds from 10 microseconds to 10 seconds.
+     * Each recording adds to one bucket, the count and the sum.
+     */
+    public static class Histogram {
+        static final long[] BOUNDS_NANOS = {
+                10_000L, 25_000L, 50_000L, 100_000L, 250_000L, 500_000L,
+                1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+                100_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 10_000_000_000L
+        };
+
+        // one more bucket than bounds, for everything above the last bound
+        private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            int low = 0;
+            int high = BOUNDS_NANOS.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (nanos <= BOUNDS_NANOS[middle]) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            buckets[low].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSumNanos() {
+            return sumNanos.sum();
+        }
+
+        // Number of recordings in each bucket (not cumulative), the last one is above the last bound
+        public long[] getBucketCounts() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+    }
+
+    // Request counters by method and status; anything else shares the last, OTHER, row or column
+    private static final String[] METHODS = {"GET", "PUT", "OTHER"};
+    private static final int[] STATUSES = {200, 201, 204, 304, 400, 404, 409, 500, 502, 503};
+
+    private final Histogram[] stages = new Histogram[Stage.values().length];
+    private final LongAdder[][] requests = new LongAdder[METHODS.length][STATUSES.length + 1];
+
+    public Metrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Histogram();
+        }
+        for (LongAdder[] byStatus : requests) {
+            for (int i = 0; i < byStatus.length; i++) {
+                byStatus[i] = new LongAdder();
+            }
+        }
+    }
+
+    public void record(Stage stage, long nanos) {
+        stages[stage.ordinal()].record(nanos);
+    }
+
+    // Records the time since startNanos, taken with System.nanoTime()
+    public void recordSince(Stage stage, long startNanos) {
+        record(stage, System.nanoTime() - startNanos);
+    }
+
+    public Histogram histogram(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    public void countRequest(String method, int statusCode) {
+        // unknown methods and statuses share one counter each, so a client cannot create counters at will
+        requests[methodIndex(method)][statusIndex(statusCode)].increment();
+    }
+
+    public long getRequestCount(String method, int statusCode) {
+        return requests[methodIndex(method)][statusIndex(statusCode)].sum();
+    }
+
+    private static int methodIndex(String method) {
+        if ("GET".equals(method)) {
+            return 0;
+        }
+        return "PUT".equals(method) ? 1 : 2;
+    }
+
+    private static int statusIndex(int statusCode) {
+        for (int i = 0; i < STATUSES.length; i++) {
+            if (STATUSES[i] == statusCode) {
+                return i;
+            }
+        }
+        return STATUSES.length;
+    }
+
+    /**
+     * Renders the counters, histograms and the given gauges (name to current value) in the
+     * Prometheus text format. Gauge names ending in _total are reported as counters.
+     */
+    public String render(Map<String, Number> gauges) {
+        StringBuilder out = new StringBuilder();
+
+        out.append("# TYPE aggregation_requests_total counter\n");
+        for (int m = 0; m < METHODS.length; m++) {
+            for (int s = 0; s <= STATUSES.length; s++) {
+                long count = requests[m][s].sum();
+                if (count == 0) {
+                    continue;  // only the combinations that occurred
+                }
+                out.append("aggregation_requests_total{method=\"").append(METHODS[m])
+                        .append("\",status=\"").append(s < STATUSES.length ? String.valueOf(STATUSES[s]) : "other")
+                        .append("\"} ").append(count).append('\n');
+            }
+        }
+
+        out.append("# TYPE aggregation_latency_seconds histogram\n");
+        for (Stage stage : Stage.values()) {
+            String label = stage.name().toLowerCase(Locale.ROOT);
+            Histogram histogram = histogram(stage);
+            long[] counts = histogram.getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String bound = (i < Histogram.BOUNDS_NANOS.length) ? seconds(Histogram.BOUNDS_NANOS[i]) : "+Inf";
+                out.append("aggregation_latency_seconds_bucket{stage=\"").append(label)
+                        .append("\",le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append("aggregation_latency_seconds_sum{stage=\"").append(label).append("\"} ")
+                    .append(seconds(histogram.getSumNanos())).append('\n');
+            out.append("aggregation_latency_seconds_count{stage=\"").append(label).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+
+        for (Map.Entry<String, Number> gauge : gauges.entrySet()) {
+            String type = gauge.getKey().endsWith("_total") ? "counter" : "gauge";
+            out.append("# TYPE ").append(gauge.getKey()).append(' ').append(type).append('\n');
+            out.append(gauge.getKey()).append(' ').append(gauge.getValue()).append('\n');
+        }
+        return out.toString();
+    }
+
+    // Nanoseconds as a plain decimal number of seconds, e.g. 2500000 -> 0.0025
+    static String seconds(long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,83 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class MetricsTest {
+
+    @Test
+    public void histogramPutsRecordingsInTheirBucket() {
+        Metrics metrics = new Metrics();
+        Metrics.Histogram histogram = metrics.histogram(Metrics.Stage.PARSE);
+        histogram.record(5_000);           // below the first bound
+        histogram.record(10_000);          // exactly on the first bound
+        histogram.record(10_001);          // just above it
+        histogram.record(20_000_000_000L); // above the last bound
+
+        long[] counts = histogram.getBucketCounts();
+        Assert.assertEquals(Metrics.Histogram.BOUNDS_NANOS.length + 1, counts.length);
+        Assert.assertEquals(2, counts[0]);
+        Assert.assertEquals(1, counts[1]);
+        Assert.assertEquals(1, counts[counts.length - 1]);
+        Assert.assertEquals(4, histogram.getCount());
+        Assert.assertEquals(5_000 + 10_000 + 10_001 + 20_000_000_000L, histogram.getSumNanos());
+    }
+
+    @Test
+    public void rendersPrometheusText() {
+        Metrics metrics = new Metrics();
+        metrics.countRequest("GET", 200);
+        metrics.countRequest("GET", 200);
+        metrics.countRequest("PUT", 201);
+        metrics.countRequest("DELETE", 400);
+        metrics.countRequest("GET", 418);
+        metrics.record(Metrics.Stage.STORE, 2_500_000);
+
+        Map<String, Number> gauges = new LinkedHashMap<>();
+        gauges.put("aggregation_store_size", 3);
+        gauges.put("aggregation_expired_total", 7L);
+        String text = metrics.render(gauges);
+
+        Assert.assertTrue(text.contains("aggregation_requests_total{method=\"GET\",status=\"200\"} 2\n"));
+        Assert.assertTrue(text.contains("aggregation_requests_total{method=\"PUT\",status=\"201\"} 1\n"));
+        Assert.assertTrue(text.contains("aggregation_requests_total{method=\"OTHER\",status=\"400\"} 1\n"));
+        Assert.assertTrue(text.contains("aggregation_requests_total{method=\"GET\",status=\"other\"} 1\n"));
+        Assert.assertFalse(text.contains("status=\"404\""));
+        Assert.assertTrue(text.contains("aggregation_latency_seconds_bucket{stage=\"store\",le=\"0.001\"} 0\n"));
+        Assert.assertTrue(text.contains("aggregation_latency_seconds_bucket{stage=\"store\",le=\"0.0025\"} 1\n"));
+        Assert.assertTrue(text.contains("aggregation_latency_seconds_bucket{stage=\"store\",le=\"+Inf\"} 1\n"));
+        Assert.assertTrue(text.contains("aggregation_latency_seconds_sum{stage=\"store\"} 0.0025\n"));
+        Assert.assertTrue(text.contains("aggregation_latency_seconds_count{stage=\"parse\"} 0\n"));
+        Assert.assertTrue(text.contains("# TYPE aggregation_store_size gauge\naggregation_store_size 3\n"));
+        Assert.assertTrue(text.contains("# TYPE aggregation_expired_total counter\naggregation_expired_total 7\n"));
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws InterruptedException {
+        Metrics metrics = new Metrics();
+        int threads = 8;
+        int perThread = 100_000;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    metrics.record(Metrics.Stage.REQUEST, i);
+                    metrics.countRequest("GET", 200);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Assert.assertEquals((long) threads * perThread, metrics.histogram(Metrics.Stage.REQUEST).getCount());
+        Assert.assertEquals((long) threads * perThread, metrics.getRequestCount("GET", 200));
+        long total = 0;
+        for (long count : metrics.histogram(Metrics.Stage.REQUEST).getBucketCounts()) {
+            total += count;
+        }
+        Assert.assertEquals((long) threads * perThread, total);
+    }
+}
@@ -0,0 +1,292 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * A small benchmark harness for Benchmarks, in the spirit of JMH: every benchmark runs in a fresh JVM
+ * (fork) with its own temporary working directory, first for some warmup iterations that are thrown
+ * away, then for the measured iterations. An iteration calls the operation for a fixed time, from one
+ * or more threads, and results go into a sink so the JIT cannot remove the work.
+ *
+ * Command line: [-wi warmupIterations] [-i iterations] [-r iterationMs] [-f forks] [regex]
+ * The defaults are 5 warmup and 5 measured iterations of one second each, in one fork.
+ */
+public class MicroBenchmark {
+
+    // The measured code; its result is consumed so it has to be computed
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    // Builds the state of a benchmark in the JVM that measures it, and returns the operation to measure
+    public interface Setup {
+        Operation prepare() throws Exception;
+    }
+
+    public static final class Options {
+        int warmupIterations = 5;
+        int iterations = 5;
+        long iterationMs = 1000;
+        int forks = 1;
+    }
+
+    // Average time per operation of every measured iteration
+    public static final class Result {
+        private final String name;
+        private final int threads;
+        private final double[] nanosPerOp;
+
+        Result(String name, int threads, double[] nanosPerOp) {
+            this.name = name;
+            this.threads = threads;
+            this.nanosPerOp = nanosPerOp;
+        }
+
+        public double getMean() {
+            double sum = 0;
+            for (double value : nanosPerOp) {
+                sum += value;
+            }
+            return sum / nanosPerOp.length;
+        }
+
+        public double getStandardDeviation() {
+            if (nanosPerOp.length < 2) {
+                return 0;
+            }
+            double mean = getMean();
+            double squares = 0;
+            for (double value : nanosPerOp) {
+                squares += (value - mean) * (value - mean);
+            }
+            return Math.sqrt(squares / (nanosPerOp.length - 1));
+        }
+
+        @Override
+        public String toString() {
+            double mean = getMean();
+            double opsPerSecond = (mean == 0) ? 0 : threads * 1e9 / mean;
+            return String.format("%-58s %7d %14.1f %12.1f %16.0f", name, threads, mean, getStandardDeviation(), opsPerSecond);
+        }
+    }
+
+    private static final String CHILD_FLAG = "--child";
+    private static final String RESULT_PREFIX = "RESULT ";
+
+    // Target of consume(); never equal to a result, but the JIT cannot know that
+    private Object bait = new Object();
+    private volatile Object sink;
+
+    private final String name;
+    private final int threads;
+    private final Setup setup;
+
+    public MicroBenchmark(String name, int threads, Setup setup) {
+        this.name = name;
+        this.threads = threads;
+        this.setup = setup;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Runs the benchmarks whose names match the command line filter and prints a table of the results.
+     * mainClass is started again for every fork, with the arguments of one benchmark.
+     */
+    public static void runAll(List<MicroBenchmark> benchmarks, String[] args, String mainClass) throws Exception {
+        Options options = new Options();
+        Pattern filter = Pattern.compile(".*");
+        String child = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi": options.warmupIterations = Integer.parseInt(args[++i]); break;
+                case "-i": options.iterations = Integer.parseInt(args[++i]); break;
+                case "-r": options.iterationMs = Long.parseLong(args[++i]); break;
+                case "-f": options.forks = Integer.parseInt(args[++i]); break;
+                case CHILD_FLAG: child = args[++i]; break;
+                default: filter = Pattern.compile(args[i]);
+            }
+        }
+
+        if (child != null) {
+            for (MicroBenchmark benchmark : benchmarks) {
+                if (benchmark.name.equals(child)) {
+                    Result result = benchmark.measure(options);
+                    StringBuilder line = new StringBuilder(RESULT_PREFIX);
+                    for (double value : result.nanosPerOp) {
+                        line.append(value).append(' ');
+                    }
+                    System.out.println(line.toString().trim());
+                    System.out.flush();
+                    // the benchmarked code may have left non-daemon threads behind
+                    System.exit(0);
+                }
+            }
+            throw new IllegalArgumentException("Unknown benchmark: " + child);
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (MicroBenchmark benchmark : benchmarks) {
+            if (!filter.matcher(benchmark.name).find()) {
+                continue;
+            }
+            System.out.println("# " + benchmark.name + " (" + benchmark.threads + " threads)");
+            Result result = (options.forks == 0) ? benchmark.measure(options) : benchmark.fork(options, mainClass);
+            System.out.println(result);
+            results.add(result);
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-58s %7s %14s %12s %16s", "Benchmark", "Threads", "ns/op", "stdev", "ops/s"));
+        for (Result result : results) {
+            System.out.println(result);
+        }
+    }
+
+    // Runs the warmup and measured iterations in this JVM
+    Result measure(Options options) throws Exception {
+        Operation operation = setup.prepare();
+        long batch = 1;
+        for (int i = 0; i < options.warmupIterations; i++) {
+            double nanos = iteration(operation, options.iterationMs, batch);
+            System.out.println(String.format("Warmup %d: %.1f ns/op", i + 1, nanos));
+            // time is checked once per batch, about every 10 microseconds
+            batch = Math.max(1, (long) (10_000 / Math.max(1, nanos)));
+        }
+        double[] measured = new double[options.iterations];
+        for (int i = 0; i < options.iterations; i++) {
+            measured[i] = iteration(operation, options.iterationMs, batch);
+            System.out.println(String.format("Iteration %d: %.1f ns/op", i + 1, measured[i]));
+        }
+        return new Result(name, threads, measured);
+    }
+
+    // Runs every fork in its own JVM and temporary directory and collects their iterations
+    private Result fork(Options options, String mainClass) throws Exception {
+        List<Double> measured = new ArrayList<>();
+        for (int f = 0; f < options.forks; f++) {
+            Path directory = Files.createTempDirectory("benchmark");
+            try {
+                List<String> command = new ArrayList<>(Arrays.asList(
+                        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                        "-cp", absoluteClassPath(), mainClass,
+                        "-wi", String.valueOf(options.warmupIterations),
+                        "-i", String.valueOf(options.iterations),
+                        "-r", String.valueOf(options.iterationMs),
+                        CHILD_FLAG, name));
+                Process process = new ProcessBuilder(command)
+                        .directory(directory.toFile())
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith(RESULT_PREFIX)) {
+                            for (String value : line.substring(RESULT_PREFIX.length()).split(" ")) {
+                                measured.add(Double.parseDouble(value));
+                            }
+                        } else if (line.startsWith("Warmup ") || line.startsWith("Iteration ")) {
+                            System.out.println("Fork " + (f + 1) + ": " + line);
+                        }
+                    }
+                }
+                if (process.waitFor() != 0) {
+                    throw new IOException("Fork of " + name + " failed with exit code " + process.exitValue());
+                }
+            } finally {
+                deleteRecursively(directory);
+            }
+        }
+        double[] values = new double[measured.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = measured.get(i);
+        }
+        return new Result(name, threads, values);
+    }
+
+    /**
+     * Calls the operation from all threads until the iteration time is over.
+     * Returns the average time of one call on one thread, in nanoseconds.
+     */
+    private double iteration(Operation operation, long iterationMs, long batch) throws Exception {
+        long[] operations = new long[threads];
+        Exception[] failure = new Exception[1];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    long deadline = System.nanoTime() + iterationMs * 1_000_000L;
+                    long count = 0;
+                    do {
+                        for (long i = 0; i < batch; i++) {
+                            consume(operation.run());
+                        }
+                        count += batch;
+                    } while (System.nanoTime() < deadline);
+                    operations[index] = count;
+                } catch (Exception e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+            }, "benchmark-" + (t + 1));
+            workers.add(worker);
+            worker.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+
+        long total = 0;
+        for (long count : operations) {
+            total += count;
+        }
+        return (double) elapsed * threads / total;
+    }
+
+    private void consume(Object value) {
+        if (value == bait) {
+            sink = value;
+        }
+    }
+
+    // The children run in another directory, so relative class path entries (e.g. ".:lib/*") are made absolute
+    private static String absoluteClassPath() {
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (classPath.length() > 0) {
+                classPath.append(File.pathSeparator);
+            }
+            if (entry.endsWith("*")) {
+                classPath.append(new File(entry.substring(0, entry.length() - 1)).getAbsolutePath()).append(File.separator).append('*');
+            } else {
+                classPath.append(new File(entry).getAbsolutePath());
+            }
+        }
+        return classPath.toString();
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
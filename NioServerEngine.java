@@ -0,0 +1,428 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Non-blocking server engine for the AggregationServer.
+ *
+ * One acceptor thread hands new connections to a fixed number of event loops. Each event loop owns a
+ * Selector and one direct read buffer that is shared by all of its connections, so an idle or slow
+ * connection only costs its parser state instead of a thread stack.
+ * Requests are handled by AggregationServer.handleRequest, the same as in the blocking engine, but on a
+ * pool of worker threads: a PUT waits for its write-ahead log commit and a sharded request for other
+ * nodes, and the event loop must not wait with it. The connection pauses while its request is handled
+ * and the answer is handed back to the event loop, the same way as the answer of a long-poll.
+ * Connections are kept alive between requests and pipelined requests are answered in order.
+ * An event stream is written to whenever its subscription has a delivery.
+ */
+public class NioServerEngine {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_CHECK_INTERVAL_MS = 1000;
+    private static final int KEEP_ALIVE_TIMEOUT_MS = Integer.getInteger("aggregation.keepAliveTimeoutMs", 15000);
+    private static final int MAX_REQUESTS_PER_CONNECTION = Integer.getInteger("aggregation.maxRequestsPerConnection", 10000);
+
+    private final int port;
+    private final Function<HttpRequest, HttpResponse> handler;
+    private final ExecutorService workers;
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private volatile boolean running;
+    private ServerSocketChannel serverChannel;
+
+    public NioServerEngine(int port, int eventLoopCount) {
+        this(port, eventLoopCount, Integer.getInteger("aggregation.nioWorkers", 64), AggregationServer::handleRequest);
+    }
+
+    NioServerEngine(int port, int eventLoopCount, int workerCount, Function<HttpRequest, HttpResponse> handler) {
+        this.port = port;
+        this.handler = handler;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        AtomicInteger workerNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workerCount), runnable -> {
+            Thread thread = new Thread(runnable, "nio-worker-" + workerNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Opens the selectors and starts the event loop threads, then accepts connections on the calling thread
+    public void run() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+            Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        running = true;
+        System.out.println("Aggregation Server running on port " + getPort() + " (NIO, " + eventLoops.length + " event loops)");
+
+        int next = 0;
+        try {
+            while (running) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                openConnections.incrementAndGet();
+                eventLoops[next].register(new Connection(channel));
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (ClosedChannelException e) {
+            // shutdown() closed the server channel
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        workers.shutdownNow();
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing server channel: " + e.getMessage());
+        }
+        for (EventLoop loop : eventLoops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+    }
+
+    // The port the server listens on, also when it was started on port 0; 0 until it is listening
+    public int getPort() {
+        ServerSocketChannel channel = serverChannel;
+        try {
+            return (channel == null || !channel.isOpen()) ? 0 : ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    // State kept for one client connection
+    private static class Connection {
+        final SocketChannel channel;
+        final HttpRequestParser parser = new HttpRequestParser();
+        final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        boolean closeAfterWrite;
+        int served;
+        long lastActive = System.currentTimeMillis();
+        final long acceptedNanos = System.nanoTime();
+
+        // A request is being handled or a long-poll is waiting for its answer; requests that arrived
+        // behind it are kept in leftover
+        boolean waiting;
+        ByteBuffer leftover;
+
+        // Set once the connection has turned into an event stream
+        SubscriptionHub.Subscription subscription;
+        boolean eventsRequested;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Connection> newConnections = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(Connection connection) {
+            newConnections.add(connection);
+            selector.wakeup();
+        }
+
+        // Runs the task on this event loop, e.g. when a long-poll answer completes on another thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void close() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                // already closed
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select(IDLE_CHECK_INTERVAL_MS);
+                    registerNewConnections();
+                    runTasks();
+                    closeIdleConnections();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                read(key, connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key, connection);
+                            }
+                        } catch (IOException e) {
+                            close(key);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    System.err.println("NIO event loop stopped: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerNewConnections() throws ClosedChannelException {
+            Connection connection;
+            while ((connection = newConnections.poll()) != null) {
+                connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                AggregationServer.getMetrics().recordSince(Metrics.Stage.ACCEPT, connection.acceptedNanos);
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void read(SelectionKey key, Connection connection) throws IOException {
+            readBuffer.clear();
+            int count = connection.channel.read(readBuffer);
+            if (connection.subscription != null) {
+                // an event stream only listens for the client going away
+                if (count < 0) {
+                    close(key);
+                }
+                return;
+            }
+            if (count < 0) {
+                HttpRequest last = connection.parser.finish();
+                connection.closeAfterWrite = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                if (last != null) {
+                    respond(key, connection, last);
+                }
+                if (!connection.waiting) {
+                    write(key, connection);
+                }
+                return;
+            }
+            connection.lastActive = System.currentTimeMillis();
+
+            readBuffer.flip();
+            handleRequests(key, connection, readBuffer);
+            write(key, connection);
+        }
+
+        // Answers every pipelined request in the buffer, in order, so they can be written together
+        private void handleRequests(SelectionKey key, Connection connection, ByteBuffer buffer) {
+            try {
+                HttpRequest request;
+                long parseStart = System.nanoTime();
+                while (!connection.closeAfterWrite && !connection.waiting && connection.subscription == null
+                        && (request = connection.parser.parse(buffer)) != null) {
+                    AggregationServer.getMetrics().recordSince(Metrics.Stage.PARSE, parseStart);
+                    respond(key, connection, request);
+                    parseStart = System.nanoTime();
+                }
+            } catch (ProtocolException e) {
+                AggregationServer.getLog().warn("invalid_request", "error", e.getMessage());
+                connection.closeAfterWrite = true;
+                connection.pendingWrites.addAll(new HttpResponse(400).toBuffers(false, AggregationServer.sendClock()));
+            }
+
+            if (connection.waiting && buffer.hasRemaining()) {
+                // the read buffer is shared with other connections, keep what follows the long-poll
+                ByteBuffer kept = ByteBuffer.allocate(buffer.remaining() + (connection.leftover == null ? 0 : connection.leftover.remaining()));
+                kept.put(buffer);
+                if (connection.leftover != null) {
+                    kept.put(connection.leftover);
+                }
+                kept.flip();
+                connection.leftover = kept;
+            }
+            if (connection.closeAfterWrite || connection.waiting || connection.subscription != null) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        private void respond(SelectionKey key, Connection connection, HttpRequest request) {
+            boolean keepAlive = request.isKeepAlive() && ++connection.served < MAX_REQUESTS_PER_CONNECTION;
+            if (!keepAlive) {
+                connection.closeAfterWrite = true;
+            }
+            connection.waiting = true;
+            try {
+                workers.execute(() -> {
+                    HttpResponse response;
+                    try {
+                        response = handler.apply(request);
+                    } catch (RuntimeException e) {
+                        AggregationServer.getLog().error("request_failed", "error", String.valueOf(e));
+                        response = new HttpResponse(500);
+                    }
+                    if (response.getDeferred() != null) {
+                        response.getDeferred().whenComplete((answer, error) ->
+                                execute(() -> resume(key, connection, (error == null) ? answer : new HttpResponse(500), keepAlive)));
+                    } else {
+                        HttpResponse answer = response;
+                        execute(() -> resume(key, connection, answer, keepAlive));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                connection.waiting = false;
+                connection.closeAfterWrite = true;
+            }
+        }
+
+        private void send(Connection connection, HttpResponse response, boolean keepAlive) {
+            if (response.getEventStream() != null) {
+                // the stream has no length, it ends when the connection does
+                connection.subscription = response.getEventStream();
+                connection.pendingWrites.addAll(response.toBuffers(false, AggregationServer.sendClock()));
+                return;
+            }
+            connection.pendingWrites.addAll(response.toBuffers(keepAlive, AggregationServer.sendClock()));
+        }
+
+        // Writes the answer of a request or long-poll, then carries on with the requests that arrived behind it
+        private void resume(SelectionKey key, Connection connection, HttpResponse response, boolean keepAlive) {
+            if (!key.isValid()) {
+                return;
+            }
+            connection.waiting = false;
+            connection.lastActive = System.currentTimeMillis();
+            send(connection, response, keepAlive);
+
+            ByteBuffer leftover = connection.leftover;
+            connection.leftover = null;
+            if (leftover != null) {
+                handleRequests(key, connection, leftover);
+            }
+            try {
+                write(key, connection);
+            } catch (IOException e) {
+                close(key);
+            }
+        }
+
+        // Asks the subscription for its next delivery once everything before it has been written
+        private void requestEvents(SelectionKey key, Connection connection) {
+            connection.eventsRequested = true;
+            connection.subscription.next(SubscriptionHub.STREAM_PING_MS).whenComplete((delivery, error) -> execute(() -> {
+                connection.eventsRequested = false;
+                if (!key.isValid()) {
+                    return;
+                }
+                if (error != null) {
+                    close(key);
+                    return;
+                }
+                connection.pendingWrites.add(ByteBuffer.wrap(SubscriptionHub.toEventStream(delivery)));
+                connection.lastActive = System.currentTimeMillis();
+                try {
+                    write(key, connection);
+                } catch (IOException e) {
+                    close(key);
+                }
+            }));
+        }
+
+        private void write(SelectionKey key, Connection connection) throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = connection.pendingWrites.peek()) != null) {
+                connection.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // the client is not reading, stop reading its next requests until it catches up
+                    key.interestOps((key.interestOps() | SelectionKey.OP_WRITE) & ~SelectionKey.OP_READ);
+                    return;
+                }
+                connection.pendingWrites.poll();
+            }
+
+            if (connection.subscription != null) {
+                // a slow stream only asks for more once it has caught up, meanwhile the subscription coalesces
+                key.interestOps((key.interestOps() & ~SelectionKey.OP_WRITE) | SelectionKey.OP_READ);
+                if (!connection.eventsRequested) {
+                    requestEvents(key, connection);
+                }
+            } else if (connection.closeAfterWrite && !connection.waiting) {
+                close(key);
+            } else if (connection.waiting) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps((key.interestOps() & ~SelectionKey.OP_WRITE) | SelectionKey.OP_READ);
+            }
+        }
+
+        // Closes keep-alive connections that have been idle for longer than the timeout
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < IDLE_CHECK_INTERVAL_MS) {
+                return;
+            }
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && connection.pendingWrites.isEmpty() && !connection.waiting
+                        && connection.subscription == null && now - connection.lastActive > KEEP_ALIVE_TIMEOUT_MS) {
+                    close(key);
+                }
+            }
+        }
+
+        private void close(SelectionKey key) {
+            if (!key.channel().isOpen()) {
+                return;
+            }
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // nothing left to do with this connection
+            }
+            Connection connection = (Connection) key.attachment();
+            if (connection != null && connection.subscription != null) {
+                AggregationServer.getSubscriptions().unsubscribe(connection.subscription);
+            }
+            openConnections.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+public class NioServerEngineTest {
+    private NioServerEngine engine;
+
+    // Starts an engine with one event loop on a free port
+    private int start(Function<HttpRequest, HttpResponse> handler) throws InterruptedException {
+        engine = new NioServerEngine(0, 1, 4, handler);
+        Thread acceptor = new Thread(() -> {
+            try {
+                engine.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (int i = 0; i < 200 && engine.getPort() == 0; i++) {
+            Thread.sleep(10);
+        }
+        return engine.getPort();
+    }
+
+    @After
+    public void stop() {
+        if (engine != null) {
+            engine.shutdown();
+        }
+    }
+
+    // Reads one response and returns its status line and body
+    private static String readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        int contentLength = 0;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        byte[] body = new byte[contentLength];
+        for (int read = 0; read < contentLength; ) {
+            int count = in.read(body, read, contentLength - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+        return statusLine + " " + new String(body, StandardCharsets.UTF_8);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private static void send(Socket socket, String requests) throws IOException {
+        socket.getOutputStream().write(requests.getBytes(StandardCharsets.US_ASCII));
+        socket.getOutputStream().flush();
+    }
+
+    @Test
+    public void pipelinedRequestsAreAnsweredInOrder() throws Exception {
+        int port = start(request -> new HttpResponse(200).body("text/plain", request.getTarget()));
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            send(socket, "GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\nGET /c HTTP/1.1\r\n\r\n");
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            Assert.assertEquals("HTTP/1.1 200 OK /a", readResponse(in));
+            Assert.assertEquals("HTTP/1.1 200 OK /b", readResponse(in));
+            Assert.assertEquals("HTTP/1.1 200 OK /c", readResponse(in));
+        }
+    }
+
+    @Test
+    public void slowRequestDoesNotHoldTheEventLoop() throws Exception {
+        CountDownLatch committed = new CountDownLatch(1);
+        int port = start(request -> {
+            if ("PUT".equals(request.getMethod())) {
+                // like a PUT waiting for its write-ahead log commit
+                try {
+                    committed.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new HttpResponse(201);
+            }
+            return new HttpResponse(200).body("text/plain", "fast");
+        });
+
+        try (Socket slow = new Socket("localhost", port); Socket fast = new Socket("localhost", port)) {
+            slow.setSoTimeout(5000);
+            fast.setSoTimeout(2000);
+            send(slow, "PUT /weather.json HTTP/1.1\r\nContent-Length: 2\r\n\r\n{}GET /after HTTP/1.1\r\n\r\n");
+            Thread.sleep(100);
+
+            // same event loop, answered while the PUT is still waiting
+            send(fast, "GET /weather.json HTTP/1.1\r\n\r\n");
+            Assert.assertEquals("HTTP/1.1 200 OK fast", readResponse(new BufferedInputStream(fast.getInputStream())));
+
+            committed.countDown();
+            InputStream in = new BufferedInputStream(slow.getInputStream());
+            Assert.assertEquals("HTTP/1.1 201 Created ", readResponse(in));
+            Assert.assertEquals("HTTP/1.1 200 OK fast", readResponse(in));
+        }
+    }
+}
@@ -0,0 +1,451 @@
+import com.google.gson.Gson;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Primary/backup replication of weatherDataStore.
+ *
+ * The primary streams every stored reading, with its Lamport time and receive time, to each backup
+ * over a persistent connection (PUT /replicate, NDJSON batches of up to BATCH_SIZE readings). A backup
+ * that is new, fell behind or lost its connection first gets the whole store again. When there is
+ * nothing to send, an empty batch goes out every HEARTBEAT_MS as a heartbeat.
+ *
+ * A backup applies readings the same way as replayed PUTs, keeping a station's reading with the highest
+ * Lamport time, so readings that arrive twice or out of order do no harm. It answers GETs but turns
+ * PUTs away with 503 Service Unavailable.
+ *
+ * Every batch carries the primary's term and its list of backups. When the heartbeats stop, the first
+ * backup in that list takes over after FAILOVER_MS, the second after twice that, and so on: it starts a
+ * new term and replicates to the backups after it. A primary that is told about a higher term (e.g. the
+ * old primary after a restart) becomes a backup, so there is only ever one primary that backups accept.
+ */
+public class Replication {
+
+    public enum Role { PRIMARY, BACKUP }
+
+    public static final String TERM_HEADER = "Replication-Term";
+    public static final String PRIMARY_HEADER = "Replication-Primary";
+    public static final String BACKUPS_HEADER = "Replication-Backups";
+
+    private final String self;
+    private final long heartbeatMs;
+    private final long failoverMs;
+    private final int batchSize;
+    private final int queueCapacity;
+    private final Supplier<Collection<WeatherData>> store;
+    private final LongSupplier clock;
+    private final Gson gson = new Gson();
+
+    private volatile Role role;
+    private volatile long term;
+    private volatile List<String> backups;
+    private volatile String primary;
+    private volatile long lastHeard = System.currentTimeMillis();
+    private final Map<String, Replicator> replicators = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "replication-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong promotions = new AtomicLong();
+
+    /**
+     * @param self    address the other servers reach this server at, e.g. localhost:4568
+     * @param store   the current readings, for a full resync of a backup
+     * @param clock   send event of the Lamport clock, for the Lamport-Clock header
+     */
+    public Replication(Role role, String self, List<String> backups, String primary, long heartbeatMs, long failoverMs,
+                       int batchSize, int queueCapacity, Supplier<Collection<WeatherData>> store, LongSupplier clock) {
+        this.role = role;
+        this.self = self;
+        this.backups = new ArrayList<>(backups);
+        this.primary = (role == Role.PRIMARY) ? self : primary;
+        this.term = (role == Role.PRIMARY) ? 1 : 0;
+        this.heartbeatMs = heartbeatMs;
+        this.failoverMs = failoverMs;
+        this.batchSize = Math.max(1, batchSize);
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.store = store;
+        this.clock = clock;
+    }
+
+    /**
+     * Builds the replication from system properties, e.g.
+     * -Daggregation.role=primary -Daggregation.backups=localhost:4568,localhost:4569 on the primary and
+     * -Daggregation.role=backup on the backups. Returns null when the server runs on its own.
+     */
+    public static Replication fromSystemProperties(int port, Supplier<Collection<WeatherData>> store, LongSupplier clock) {
+        String roleName = System.getProperty("aggregation.role");
+        List<String> backups = new ArrayList<>();
+        for (String backup : System.getProperty("aggregation.backups", "").split(",")) {
+            if (!backup.trim().isEmpty()) {
+                backups.add(backup.trim());
+            }
+        }
+        if (roleName == null && backups.isEmpty()) {
+            return null;
+        }
+        Role role = Role.valueOf((roleName == null ? "primary" : roleName).toUpperCase());
+        String self = System.getProperty("aggregation.advertise", "localhost:" + port);
+        long heartbeatMs = Long.getLong("aggregation.heartbeatMs", 1000);
+        long failoverMs = Long.getLong("aggregation.failoverMs", 5000);
+        int batchSize = Integer.getInteger("aggregation.replicationBatch", 512);
+        int queueCapacity = Integer.getInteger("aggregation.replicationQueue", 65536);
+        return new Replication(role, self, backups, null, heartbeatMs, failoverMs, batchSize, queueCapacity, store, clock);
+    }
+
+    // Starts replicating to the backups, or watching the primary's heartbeats
+    public void start() {
+        if (role == Role.PRIMARY) {
+            startReplicators();
+        }
+        monitor.scheduleWithFixedDelay(() -> checkFailover(System.currentTimeMillis()),
+                heartbeatMs, Math.max(1, heartbeatMs / 2), TimeUnit.MILLISECONDS);
+        System.out.println("Replication: " + this);
+    }
+
+    public void stop() {
+        monitor.shutdownNow();
+        stopReplicators();
+    }
+
+    public boolean isReadOnly() {
+        return role == Role.BACKUP;
+    }
+
+    // Hands a stored reading to every backup; does nothing on a backup
+    public void offer(WeatherData weatherData) {
+        if (role != Role.PRIMARY) {
+            return;
+        }
+        for (Replicator replicator : replicators.values()) {
+            replicator.offer(weatherData);
+        }
+    }
+
+    /**
+     * Checks a replication request from a primary. Returns 200 if its readings should be applied, or
+     * 409 Conflict if it comes from an older term than this server knows about.
+     */
+    public synchronized int accept(long requestTerm, String requestPrimary, List<String> requestBackups) {
+        if (requestTerm < term || (requestTerm == term && role == Role.PRIMARY)) {
+            return 409;
+        }
+        if (role == Role.PRIMARY) {
+            System.out.println("Replication: " + requestPrimary + " is primary in term " + requestTerm + ", becoming a backup");
+            stopReplicators();
+            role = Role.BACKUP;
+        }
+        term = requestTerm;
+        primary = requestPrimary;
+        backups = new ArrayList<>(requestBackups);
+        lastHeard = System.currentTimeMillis();
+        return 200;
+    }
+
+    // A backup answered 409, so another server (newPrimary, if the backup knows it) is primary in a newer term
+    synchronized void rejectedBy(String backup, long backupTerm, String newPrimary) {
+        if (role == Role.PRIMARY && backupTerm >= term) {
+            System.out.println("Replication: " + backup + " knows term " + backupTerm + ", becoming a backup");
+            stopReplicators();
+            role = Role.BACKUP;
+            term = backupTerm;
+            primary = newPrimary;
+            lastHeard = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Takes over when the primary has not been heard from for FAILOVER_MS times this backup's place in the
+     * primary's list of backups. A backup that was never told about a primary does not take over.
+     */
+    synchronized boolean checkFailover(long now) {
+        if (role != Role.BACKUP || primary == null) {
+            return false;
+        }
+        int rank = backups.indexOf(self);
+        if (rank < 0 || now - lastHeard <= failoverMs * (rank + 1)) {
+            return false;
+        }
+        System.out.println("Replication: no heartbeat from " + primary + " for " + (now - lastHeard) + " ms, taking over");
+        role = Role.PRIMARY;
+        term++;
+        primary = self;
+        List<String> remaining = new ArrayList<>(backups.subList(rank + 1, backups.size()));
+        backups = remaining;
+        promotions.incrementAndGet();
+        startReplicators();
+        return true;
+    }
+
+    private void startReplicators() {
+        for (String backup : backups) {
+            Replicator replicator = new Replicator(backup);
+            replicators.put(backup, replicator);
+            replicator.start();
+        }
+    }
+
+    private void stopReplicators() {
+        for (Replicator replicator : replicators.values()) {
+            replicator.stop();
+        }
+        replicators.clear();
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    public long getTerm() {
+        return term;
+    }
+
+    public String getPrimary() {
+        return primary;
+    }
+
+    public long getPromotionCount() {
+        return promotions.get();
+    }
+
+    // Readings waiting to be sent, summed over the backups
+    public long getBacklog() {
+        long backlog = 0;
+        for (Replicator replicator : replicators.values()) {
+            backlog += replicator.queue.size();
+        }
+        return backlog;
+    }
+
+    public long getReplicatedCount() {
+        long replicated = 0;
+        for (Replicator replicator : replicators.values()) {
+            replicated += replicator.replicated.get();
+        }
+        return replicated;
+    }
+
+    /**
+     * Sends the readings of one backup on its own thread. Readings are queued as they are stored; if the
+     * queue overflows or a send fails, the backup is brought up to date with the whole store instead.
+     */
+    final class Replicator implements Runnable {
+        private final String target;
+        private final BlockingQueue<WeatherData> queue = new LinkedBlockingQueue<>(queueCapacity);
+        private volatile boolean fullSync = true;
+        private volatile boolean running = true;
+        private final Thread thread;
+        private final AtomicLong replicated = new AtomicLong();
+        private int failedAttempts;
+
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+
+        Replicator(String target) {
+            this.target = target;
+            this.thread = new Thread(this, "replicator-" + target);
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void stop() {
+            running = false;
+            thread.interrupt();
+            closeConnection();
+        }
+
+        void offer(WeatherData weatherData) {
+            if (!queue.offer(weatherData)) {
+                fullSync = true;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    List<WeatherData> batch = new ArrayList<>();
+                    if (fullSync) {
+                        // readings stored from now on are queued again, and older ones are in the store
+                        fullSync = false;
+                        queue.clear();
+                        batch.addAll(store.get());
+                    } else {
+                        WeatherData first = queue.poll(heartbeatMs, TimeUnit.MILLISECONDS);
+                        if (first != null) {
+                            batch.add(first);
+                            queue.drainTo(batch, batchSize - 1);
+                        }
+                    }
+                    send(batch);
+                    failedAttempts = 0;
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    if (!running) {
+                        return;
+                    }
+                    System.err.println("Error replicating to " + target + ": " + e.getMessage());
+                    closeConnection();
+                    fullSync = true;
+                    try {
+                        Thread.sleep(ContentFeed.backoffDelay(failedAttempts++, 100, Math.max(100, heartbeatMs), ThreadLocalRandom.current()));
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Sends the readings in requests of at most BATCH_SIZE; an empty list is sent as a heartbeat
+        private void send(List<WeatherData> readings) throws IOException {
+            int from = 0;
+            do {
+                int to = Math.min(readings.size(), from + batchSize);
+                sendBatch(readings.subList(from, to));
+                from = to;
+            } while (from < readings.size());
+        }
+
+        private void sendBatch(List<WeatherData> readings) throws IOException {
+            StringBuilder body = new StringBuilder(readings.size() * 400);
+            for (WeatherData weatherData : readings) {
+                body.append(gson.toJson(weatherData)).append('\n');
+            }
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+
+            connectIfNeeded();
+            String head = "PUT /replicate HTTP/1.1\r\n"
+                    + "Host: " + target + "\r\n"
+                    + "Content-Type: " + WeatherBatch.NDJSON + "\r\n"
+                    + "Lamport-Clock: " + clock.getAsLong() + "\r\n"
+                    + TERM_HEADER + ": " + term + "\r\n"
+                    + PRIMARY_HEADER + ": " + self + "\r\n"
+                    + BACKUPS_HEADER + ": " + String.join(",", backups) + "\r\n"
+                    + "Content-Length: " + bytes.length + "\r\n"
+                    + "\r\n";
+            out.write(head.getBytes(StandardCharsets.US_ASCII));
+            out.write(bytes);
+            out.flush();
+
+            Map<String, String> headers = new HashMap<>();
+            int status = readResponse(headers);
+            if (status == 409) {
+                String backupTerm = headers.get(TERM_HEADER.toLowerCase());
+                rejectedBy(target, (backupTerm == null) ? term : Long.parseLong(backupTerm), headers.get(PRIMARY_HEADER.toLowerCase()));
+                throw new IOException(target + " follows a newer term");
+            }
+            if (status != 200) {
+                throw new IOException(target + " answered " + status);
+            }
+            replicated.addAndGet(readings.size());
+        }
+
+        private void connectIfNeeded() throws IOException {
+            if (socket != null) {
+                return;
+            }
+            int colon = target.lastIndexOf(':');
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1))), 5000);
+                s.setSoTimeout((int) Math.max(5000, 10 * heartbeatMs));
+                s.setTcpNoDelay(true);
+            } catch (IOException | RuntimeException e) {
+                s.close();
+                throw (e instanceof IOException) ? (IOException) e : new IOException("Invalid backup address " + target, e);
+            }
+            socket = s;
+            out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+            in = new BufferedInputStream(s.getInputStream());
+        }
+
+        private void closeConnection() {
+            Socket s = socket;
+            if (s == null) {
+                return;
+            }
+            try {
+                s.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+            socket = null;
+            out = null;
+            in = null;
+        }
+
+        // Reads one response into the headers map (names in lower case) and returns the status; the body is skipped
+        private int readResponse(Map<String, String> headers) throws IOException {
+            String statusLine = readLine();
+            String[] parts = statusLine.split(" ");
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            int status;
+            try {
+                status = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+            long contentLength = Long.parseLong(headers.getOrDefault("content-length", "0"));
+            for (long i = 0; i < contentLength; i++) {
+                if (in.read() < 0) {
+                    throw new EOFException("Connection closed in the middle of a response");
+                }
+            }
+            if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                closeConnection();
+            }
+            return status;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("Connection closed by " + target);
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Replication{" +
+                "self=" + self +
+                ", role=" + role +
+                ", term=" + term +
+                ", primary=" + primary +
+                ", backups=" + backups +
+                ", replicated=" + getReplicatedCount() +
+                ", backlog=" + getBacklog() +
+                '}';
+    }
+}
@@ -0,0 +1,188 @@
+import com.google.gson.Gson;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReplicationTest {
+
+    private static Replication replication(Replication.Role role, String self, List<String> backups,
+                                           long heartbeatMs, Collection<WeatherData> store) {
+        AtomicLong clock = new AtomicLong();
+        return new Replication(role, self, backups, null, heartbeatMs, 1000, 2, 100,
+                () -> store, clock::incrementAndGet);
+    }
+
+    private static WeatherData reading(String id, long lamportTime) {
+        WeatherData weatherData = new WeatherData().fromJson("{\"id\":\"" + id + "\",\"air_temp\":13.3}");
+        weatherData.setLamportTimestamp(lamportTime);
+        weatherData.setTimestamp(1_700_000_000_000L + lamportTime);
+        return weatherData;
+    }
+
+    @Test
+    public void backupFollowsTheNewestTerm() {
+        Replication backup = replication(Replication.Role.BACKUP, "localhost:2", Collections.emptyList(), 1000, Collections.emptyList());
+        List<String> backups = Arrays.asList("localhost:2", "localhost:3");
+
+        Assert.assertEquals(200, backup.accept(2, "localhost:1", backups));
+        Assert.assertEquals(2, backup.getTerm());
+        Assert.assertEquals("localhost:1", backup.getPrimary());
+        // a primary of an older term is turned away
+        Assert.assertEquals(409, backup.accept(1, "localhost:9", backups));
+        Assert.assertEquals("localhost:1", backup.getPrimary());
+        Assert.assertTrue(backup.isReadOnly());
+    }
+
+    @Test
+    public void primaryStepsDownForANewerTerm() {
+        Replication primary = replication(Replication.Role.PRIMARY, "localhost:1", Collections.emptyList(), 1000, Collections.emptyList());
+        Assert.assertFalse(primary.isReadOnly());
+        // another primary of the same term is a conflict
+        Assert.assertEquals(409, primary.accept(1, "localhost:2", Collections.singletonList("localhost:1")));
+        Assert.assertFalse(primary.isReadOnly());
+
+        Assert.assertEquals(200, primary.accept(2, "localhost:2", Collections.singletonList("localhost:1")));
+        Assert.assertTrue(primary.isReadOnly());
+        Assert.assertEquals("localhost:2", primary.getPrimary());
+    }
+
+    @Test
+    public void backupsTakeOverInTheirOrder() {
+        List<String> backups = Arrays.asList("localhost:2", "localhost:3");
+        Replication first = replication(Replication.Role.BACKUP, "localhost:2", Collections.emptyList(), 1000, Collections.emptyList());
+        Replication second = replication(Replication.Role.BACKUP, "localhost:3", Collections.emptyList(), 1000, Collections.emptyList());
+        Replication unknown = replication(Replication.Role.BACKUP, "localhost:4", Collections.emptyList(), 1000, Collections.emptyList());
+        long now = System.currentTimeMillis();
+
+        // without a primary to lose, nobody takes over
+        Assert.assertFalse(first.checkFailover(now + 60_000));
+
+        for (Replication backup : Arrays.asList(first, second, unknown)) {
+            Assert.assertEquals(200, backup.accept(1, "localhost:1", backups));
+        }
+        Assert.assertFalse(first.checkFailover(now + 500));
+        // the second backup waits twice as long, the first has taken over by then
+        Assert.assertFalse(second.checkFailover(now + 1500));
+        Assert.assertFalse(unknown.checkFailover(now + 60_000));
+
+        try {
+            Assert.assertTrue(first.checkFailover(now + 1500));
+            Assert.assertFalse(first.isReadOnly());
+            Assert.assertEquals(2, first.getTerm());
+            Assert.assertEquals(1, first.getPromotionCount());
+            Assert.assertTrue(second.checkFailover(now + 2500));
+        } finally {
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void streamsTheStoreThenUpdatesAndHeartbeats() throws Exception {
+        List<HttpRequest> requests = new CopyOnWriteArrayList<>();
+        AtomicLong rejectWithTerm = new AtomicLong();
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread acceptor = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    answer(socket, requests, rejectWithTerm);
+                } catch (Exception e) {
+                    // closed by the test
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            String backup = "localhost:" + server.getLocalPort();
+            List<WeatherData> store = Arrays.asList(reading("IDS1", 1), reading("IDS2", 2), reading("IDS3", 3));
+            Replication primary = replication(Replication.Role.PRIMARY, "localhost:1", Collections.singletonList(backup), 50, store);
+            primary.start();
+            try {
+                waitFor(() -> requests.size() >= 2);
+                primary.offer(reading("IDS1", 4));
+                waitFor(() -> replicatedIds(requests).contains("IDS1@4"));
+
+                // the store went out in batches of two, then the update
+                List<String> ids = replicatedIds(requests);
+                Assert.assertEquals(Arrays.asList("IDS1@1", "IDS2@2", "IDS3@3", "IDS1@4"), ids);
+                HttpRequest first = requests.get(0);
+                Assert.assertEquals("/replicate", first.getPath());
+                Assert.assertEquals("1", first.getHeader(Replication.TERM_HEADER));
+                Assert.assertEquals("localhost:1", first.getHeader(Replication.PRIMARY_HEADER));
+                Assert.assertEquals(backup, first.getHeader(Replication.BACKUPS_HEADER));
+                Assert.assertEquals(4, primary.getReplicatedCount());
+
+                // nothing to send, so empty heartbeats keep coming
+                int sent = requests.size();
+                waitFor(() -> requests.size() >= sent + 2);
+                Assert.assertTrue(requests.get(requests.size() - 1).getBody().isEmpty());
+
+                // the backup has seen a newer primary, this one steps down
+                rejectWithTerm.set(3);
+                waitFor(primary::isReadOnly);
+                Assert.assertEquals(3, primary.getTerm());
+                Assert.assertEquals("localhost:2", primary.getPrimary());
+            } finally {
+                primary.stop();
+            }
+        }
+    }
+
+    // The replicated stations as id@lamportTimestamp, in the order they were sent
+    private static List<String> replicatedIds(List<HttpRequest> requests) {
+        List<String> ids = new ArrayList<>();
+        for (HttpRequest request : requests) {
+            for (String line : request.getBody().split("\n")) {
+                if (!line.isEmpty()) {
+                    WeatherData weatherData = new Gson().fromJson(line, WeatherData.class);
+                    ids.add(weatherData.getId() + "@" + weatherData.getLamportTimestamp());
+                }
+            }
+        }
+        return ids;
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.holds()) {
+            Assert.assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    // A backup that records the replication requests and answers 200, or 409 once rejectWithTerm is set
+    private static void answer(Socket socket, List<HttpRequest> requests, AtomicLong rejectWithTerm) throws Exception {
+        InputStream in = socket.getInputStream();
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] bytes = new byte[8192];
+        int count;
+        while ((count = in.read(bytes)) > 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, count);
+            HttpRequest request;
+            while ((request = parser.parse(buffer)) != null) {
+                long term = rejectWithTerm.get();
+                if (term > 0) {
+                    new HttpResponse(409).header(Replication.TERM_HEADER, String.valueOf(term))
+                            .header(Replication.PRIMARY_HEADER, "localhost:2").writeTo(out, true, 1);
+                } else {
+                    requests.add(request);
+                    new HttpResponse(200).writeTo(out, true, 1);
+                }
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.function.Supplier;
+
+/**
+ * Holds one pre-encoded response together with the store version it was built from.
+ *
+ * As long as the store version does not change every request gets the same, already encoded response.
+ * When it has changed, the first request rebuilds the response while concurrent requests wait for
+ * that rebuild instead of serializing the store themselves. The gzip-compressed form is kept next to
+ * it, so it is compressed once per version as well.
+ */
+public class ResponseCache {
+    private static final class Entry {
+        final long version;
+        final HttpResponse response;
+        volatile HttpResponse gzipped;
+
+        Entry(long version, HttpResponse response) {
+            this.version = version;
+            this.response = response;
+        }
+    }
+
+    private volatile Entry entry;
+    private final Object rebuildLock = new Object();
+
+    public HttpResponse get(long version, Supplier<HttpResponse> builder) {
+        Entry current = entry;
+        if (current != null && current.version == version) {
+            return current.response;
+        }
+
+        synchronized (rebuildLock) {
+            current = entry;
+            if (current != null && current.version >= version) {
+                return current.response;  // another request rebuilt it while this one was waiting
+            }
+            HttpResponse response = builder.get().share();
+            entry = new Entry(version, response);
+            return response;
+        }
+    }
+
+    /**
+     * The gzip-compressed form of a response this cache returned, compressed by the first request that
+     * asks for it. Returns null if the response is no longer the cached one.
+     */
+    public HttpResponse gzipped(HttpResponse response) {
+        Entry current = entry;
+        if (current == null || current.response != response) {
+            return null;
+        }
+        HttpResponse gzipped = current.gzipped;
+        if (gzipped == null) {
+            synchronized (current) {
+                gzipped = current.gzipped;
+                if (gzipped == null) {
+                    gzipped = response.gzipped().share();
+                    current.gzipped = gzipped;
+                }
+            }
+        }
+        return gzipped;
+    }
+
+    public void clear() {
+        entry = null;
+    }
+}
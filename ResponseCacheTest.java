@@ -0,0 +1,92 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+public class ResponseCacheTest {
+
+    @Test
+    public void rebuildsOnlyWhenTheVersionChanges() {
+        ResponseCache cache = new ResponseCache();
+        AtomicInteger builds = new AtomicInteger();
+
+        HttpResponse first = cache.get(1, () -> {
+            builds.incrementAndGet();
+            return new HttpResponse(200).body("application/json", "[]");
+        });
+        HttpResponse second = cache.get(1, () -> {
+            builds.incrementAndGet();
+            return new HttpResponse(200).body("application/json", "[]");
+        });
+        Assert.assertSame(first, second);
+        Assert.assertSame(first.toBytes(true), second.toBytes(true));
+
+        cache.get(2, () -> {
+            builds.incrementAndGet();
+            return new HttpResponse(200).body("application/json", "[{}]");
+        });
+        Assert.assertEquals(2, builds.get());
+    }
+
+    @Test
+    public void concurrentRequestsShareOneRebuild() throws InterruptedException {
+        ResponseCache cache = new ResponseCache();
+        AtomicInteger builds = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] readers = new Thread[16];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                cache.get(7, () -> {
+                    builds.incrementAndGet();
+                    return new HttpResponse(200).body("application/json", "[]");
+                });
+            });
+            readers[i].start();
+        }
+        start.countDown();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        Assert.assertEquals(1, builds.get());
+    }
+
+    @Test
+    public void gzippedFormIsKeptPerVersion() throws IOException {
+        ResponseCache cache = new ResponseCache();
+        String json = "[{\"id\":\"IDS60901\",\"air_temp\":13.3}]";
+        HttpResponse plain = cache.get(1, () -> new HttpResponse(200).header("ETag", "W/\"1\"").body("application/json", json));
+
+        HttpResponse gzipped = cache.gzipped(plain);
+        Assert.assertSame(gzipped, cache.gzipped(plain));
+        Assert.assertEquals("gzip", gzipped.getHeader("Content-Encoding"));
+        Assert.assertEquals("W/\"1\"", gzipped.getHeader("ETag"));
+        Assert.assertNull(plain.getHeader("Content-Encoding"));
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped.getBody()))) {
+            byte[] buffer = new byte[256];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                body.write(buffer, 0, count);
+            }
+        }
+        Assert.assertEquals(json, body.toString("UTF-8"));
+
+        // once the version has moved on, the old response is no longer the cached one
+        cache.get(2, () -> new HttpResponse(200).body("application/json", "[]"));
+        Assert.assertNull(cache.gzipped(plain));
+    }
+}
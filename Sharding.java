@@ -0,0 +1,286 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This server's view of a sharded cluster: the HashRing of all aggregation nodes, which of them is this
+ * one, and keep-alive connections to the others for forwarding PUTs and scatter-gather GETs.
+ *
+ * Requests between nodes carry the Shard-Local header, which tells the receiving node to answer from its
+ * own stations and store what it is sent, even if its ring says otherwise. So a request is forwarded at
+ * most once, also while the nodes do not agree on the ring yet.
+ */
+public class Sharding {
+    public static final String LOCAL_HEADER = "Shard-Local";
+    public static final String MISSING_HEADER = "Shard-Missing";
+
+    private final String self;
+    private final int timeoutMs;
+    private volatile HashRing ring;
+
+    private final Map<String, Deque<Connection>> idle = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "shard-client");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public Sharding(String self, HashRing ring, int timeoutMs) {
+        this.self = self;
+        this.ring = ring;
+        this.timeoutMs = timeoutMs;
+        if (!ring.contains(self)) {
+            System.err.println("Sharding: " + self + " is not one of the ring's nodes " + ring);
+        }
+    }
+
+    /**
+     * Builds the sharding from -Daggregation.ring=host:port,... (all nodes, this one included) and
+     * -Daggregation.advertise, the address of this node in that list. Returns null without a ring.
+     */
+    public static Sharding fromSystemProperties(int port) {
+        HashRing ring = HashRing.parse(System.getProperty("aggregation.ring"));
+        if (ring == null) {
+            return null;
+        }
+        String self = System.getProperty("aggregation.advertise", "localhost:" + port);
+        return new Sharding(self, ring, Integer.getInteger("aggregation.shardTimeoutMs", 5000));
+    }
+
+    // A node's answer
+    public static final class Response {
+        private final int status;
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        Response(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        // header names are in lower case
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getBodyText() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    public void setRing(HashRing ring) {
+        this.ring = ring;
+    }
+
+    public boolean owns(String id) {
+        return self.equals(ring.nodeFor(id));
+    }
+
+    public String ownerOf(String id) {
+        return ring.nodeFor(id);
+    }
+
+    public long getForwardedCount() {
+        return forwarded.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    // Sends the request on another thread, for sending to several nodes at once
+    public Future<Response> sendAsync(String node, String method, String target, Map<String, String> headers, byte[] body) {
+        return executor.submit(() -> send(node, method, target, headers, body));
+    }
+
+    /**
+     * Sends one request to a node, marked with Shard-Local, over a pooled keep-alive connection.
+     * A pooled connection the node has closed in the meantime is replaced once.
+     */
+    public Response send(String node, String method, String target, Map<String, String> headers, byte[] body) throws IOException {
+        byte[] request = encode(node, method, target, headers, body);
+        forwarded.incrementAndGet();
+        Deque<Connection> pool = idle.computeIfAbsent(node, key -> new ConcurrentLinkedDeque<>());
+        Connection pooled = pool.pollFirst();
+        if (pooled != null) {
+            try {
+                Response response = pooled.exchange(request);
+                release(pool, pooled, response);
+                return response;
+            } catch (IOException e) {
+                pooled.close();
+            }
+        }
+
+        Connection connection = null;
+        try {
+            connection = new Connection(node);
+            Response response = connection.exchange(request);
+            release(pool, connection, response);
+            return response;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            failures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private static void release(Deque<Connection> pool, Connection connection, Response response) {
+        if ("close".equalsIgnoreCase(response.getHeader("Connection"))) {
+            connection.close();
+        } else {
+            pool.offerFirst(connection);
+        }
+    }
+
+    private static byte[] encode(String node, String method, String target, Map<String, String> headers, byte[] body) {
+        StringBuilder head = new StringBuilder();
+        head.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(node).append("\r\n");
+        head.append(LOCAL_HEADER).append(": true\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (body != null) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.UTF_8);
+        if (body == null) {
+            return headBytes;
+        }
+        byte[] request = Arrays.copyOf(headBytes, headBytes.length + body.length);
+        System.arraycopy(body, 0, request, headBytes.length, body.length);
+        return request;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+        for (Deque<Connection> pool : idle.values()) {
+            Connection connection;
+            while ((connection = pool.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    // One keep-alive connection to a node
+    private final class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+
+        Connection(String node) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(HashRing.host(node), HashRing.port(node)), timeoutMs);
+                socket.setSoTimeout(timeoutMs);
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+        }
+
+        Response exchange(byte[] request) throws IOException {
+            out.write(request);
+            out.flush();
+
+            String statusLine = readLine();
+            String[] parts = statusLine.split(" ");
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            int status;
+            try {
+                status = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+            int contentLength;
+            try {
+                contentLength = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + headers.get("content-length"));
+            }
+            byte[] body = new byte[contentLength];
+            int read = 0;
+            while (read < contentLength) {
+                int count = in.read(body, read, contentLength - read);
+                if (count < 0) {
+                    throw new EOFException("Connection closed in the middle of a response");
+                }
+                read += count;
+            }
+            return new Response(status, headers, body);
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("Connection closed by " + socket.getRemoteSocketAddress());
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Sharding{" +
+                "self=" + self +
+                ", ring=" + ring +
+                ", forwarded=" + forwarded +
+                ", failures=" + failures +
+                '}';
+    }
+}
@@ -0,0 +1,136 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ShardingTest {
+
+    @Test
+    public void ownsItsShareOfTheStations() {
+        Sharding sharding = new Sharding("localhost:4568", HashRing.parse("localhost:4567,localhost:4568"), 1000);
+        int owned = 0;
+        for (int i = 0; i < 1000; i++) {
+            String id = "IDS" + i;
+            Assert.assertEquals(sharding.owns(id), "localhost:4568".equals(sharding.ownerOf(id)));
+            if (sharding.owns(id)) {
+                owned++;
+            }
+        }
+        Assert.assertEquals(500, owned, 100);
+
+        sharding.setRing(HashRing.parse("localhost:4568"));
+        Assert.assertTrue(sharding.owns("IDS1"));
+    }
+
+    @Test
+    public void sendsOverPooledConnectionsAndReconnects() throws Exception {
+        List<HttpRequest> requests = new CopyOnWriteArrayList<>();
+        AtomicInteger connections = new AtomicInteger();
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        connections.incrementAndGet();
+                        Thread handler = new Thread(() -> answer(socket, requests));
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (Exception e) {
+                        return;
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            String node = "localhost:" + server.getLocalPort();
+            Sharding sharding = new Sharding("localhost:1", HashRing.parse("localhost:1," + node), 5000);
+            try {
+                Sharding.Response first = sharding.send(node, "GET", "/weather.json?id=IDS1", Collections.emptyMap(), null);
+                Assert.assertEquals(200, first.getStatus());
+                Assert.assertEquals("[{\"id\":\"IDS1\"}]", first.getBodyText());
+
+                Future<Sharding.Response> second = sharding.sendAsync(node, "PUT", "/weather.json",
+                        Collections.singletonMap("Content-Type", "application/json"), "{\"id\":\"IDS2\"}".getBytes("UTF-8"));
+                Assert.assertEquals(201, second.get().getStatus());
+                Assert.assertEquals(1, connections.get());
+
+                // the node closes its end after "close", the next request opens a new connection
+                Assert.assertEquals(200, sharding.send(node, "GET", "/close", Collections.emptyMap(), null).getStatus());
+                Assert.assertEquals(200, sharding.send(node, "GET", "/weather.json?id=IDS3", Collections.emptyMap(), null).getStatus());
+                Assert.assertEquals(2, connections.get());
+
+                Assert.assertEquals("true", requests.get(0).getHeader(Sharding.LOCAL_HEADER));
+                Assert.assertEquals("{\"id\":\"IDS2\"}", requests.get(1).getBody());
+                Assert.assertEquals(4, sharding.getForwardedCount());
+                Assert.assertEquals(0, sharding.getFailureCount());
+            } finally {
+                sharding.close();
+            }
+        }
+
+        // nothing listens on the node any more
+        Sharding sharding = new Sharding("localhost:1", HashRing.parse("localhost:1"), 1000);
+        try {
+            sharding.send("localhost:1", "GET", "/weather.json", Collections.emptyMap(), null);
+            Assert.fail("Expected the connection to fail");
+        } catch (java.io.IOException e) {
+            Assert.assertEquals(1, sharding.getFailureCount());
+        } finally {
+            sharding.close();
+        }
+    }
+
+    // Answers GETs with the requested station, PUTs with 201, and GET /close by closing the connection
+    private static void answer(Socket socket, List<HttpRequest> requests) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            HttpRequestParser parser = new HttpRequestParser();
+            byte[] bytes = new byte[8192];
+            int count;
+            while ((count = in.read(bytes)) > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, count);
+                HttpRequest request;
+                while ((request = parser.parse(buffer)) != null) {
+                    requests.add(request);
+                    if ("/close".equals(request.getPath())) {
+                        new HttpResponse(200).writeTo(out, false, 1);
+                        out.flush();
+                        return;
+                    } else if ("PUT".equals(request.getMethod())) {
+                        new HttpResponse(201).writeTo(out, true, 1);
+                    } else {
+                        String id = request.getQueryParameter("id");
+                        new HttpResponse(200).body("application/json", "[{\"id\":\"" + id + "\"}]").writeTo(out, true, 1);
+                    }
+                }
+                out.flush();
+            }
+        } catch (Exception e) {
+            // the client closed the connection
+        }
+    }
+
+    @Test
+    public void handoffIsRefusedWithoutSharding() throws Exception {
+        String copy = "{\"id\":\"IDS99901\",\"air_temp\":13.3,\"lamportTimestamp\":1000,\"timestamp\":" + Long.MAX_VALUE + "}\n";
+        for (String local : new String[]{"", "Shard-Local: true\r\n"}) {
+            HttpRequest handoff = new HttpRequestParser().parse(ByteBuffer.wrap(("PUT /handoff HTTP/1.1\r\n" + local
+                    + "Content-Length: " + copy.length() + "\r\n\r\n" + copy).getBytes("US-ASCII")));
+            Assert.assertEquals(400, AggregationServer.handleRequest(handoff).getStatusCode());
+        }
+        HttpRequest get = new HttpRequestParser().parse(ByteBuffer.wrap(
+                "GET /weather.json?id=IDS99901 HTTP/1.1\r\n\r\n".getBytes("US-ASCII")));
+        Assert.assertEquals(404, AggregationServer.handleRequest(get).getStatusCode());
+    }
+}
@@ -0,0 +1,403 @@
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The recent readings of every station, next to weatherDataStore which only holds the latest one, for
+ * GET /weather.json?id=X&from=..&to=.. and ?trend=true.
+ *
+ * A station keeps at most CAPACITY readings and none older than MAX_AGE_MS before its newest one, in
+ * primitive ring buffers that start small and grow as the station sends more readings. Only the receive
+ * time, the Lamport time and the tracked metrics are kept, not whole WeatherData objects.
+ *
+ * The minimum, maximum and average of every metric over the buffer are kept up to date on every reading:
+ * monotonic deques of sequence numbers give the minimum and maximum in amortized O(1) as readings come
+ * and go, and running sums the average. So ?trend=true never looks at the readings themselves.
+ */
+public class StationHistory {
+
+    // The numeric fields with statistics, by their JSON names
+    public enum Metric {
+        AIR_TEMP("air_temp"), PRESS("press"), WIND_SPD_KMH("wind_spd_kmh");
+
+        private final String field;
+
+        Metric(String field) {
+            this.field = field;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        double of(WeatherData weatherData) {
+            switch (this) {
+                case AIR_TEMP: return weatherData.getAirTemp();
+                case PRESS: return weatherData.getPress();
+                default: return weatherData.getWindSpdKmh();
+            }
+        }
+    }
+
+    private static final Metric[] METRICS = Metric.values();
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final int capacity;
+    private final long maxAgeMs;
+    private final Map<String, Series> series = new ConcurrentHashMap<>();
+
+    /**
+     * @param capacity readings kept per station, 0 turns the history off
+     * @param maxAgeMs readings older than this before a station's newest reading are dropped
+     */
+    public StationHistory(int capacity, long maxAgeMs) {
+        this.capacity = Math.max(0, capacity);
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    // -Daggregation.historySize=120 readings per station and -Daggregation.historyMs=3600000 (one hour)
+    public static StationHistory fromSystemProperties() {
+        return new StationHistory(Integer.getInteger("aggregation.historySize", 120),
+                Long.getLong("aggregation.historyMs", 3_600_000L));
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    // Adds a stored reading to its station; called in store order per station
+    public void record(WeatherData weatherData) {
+        if (capacity == 0) {
+            return;
+        }
+        double[] values = new double[METRICS.length];
+        for (Metric metric : METRICS) {
+            values[metric.ordinal()] = metric.of(weatherData);
+        }
+        series.computeIfAbsent(weatherData.getId(), id -> new Series())
+                .add(weatherData.getTimestamp(), weatherData.getLamportTimestamp(), values);
+    }
+
+    // Forgets a station, e.g. when it expires
+    public void remove(String id) {
+        series.remove(id);
+    }
+
+    public Series get(String id) {
+        return series.get(id);
+    }
+
+    public int size() {
+        return series.size();
+    }
+
+    public long getReadingCount() {
+        long readings = 0;
+        for (Series station : series.values()) {
+            readings += station.size();
+        }
+        return readings;
+    }
+
+    // Minimum, maximum and average of one metric over some readings
+    public static final class Stats {
+        private final int count;
+        private final double min;
+        private final double max;
+        private final double sum;
+
+        Stats(int count, double min, double max, double sum) {
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getAverage() {
+            return (count == 0) ? 0 : sum / count;
+        }
+    }
+
+    /**
+     * The readings of one station. Reading number s (counting from the first one the station ever sent)
+     * is at index s % length of the buffers while it is between first and next.
+     */
+    public final class Series {
+        private long[] timestamps = new long[INITIAL_CAPACITY];
+        private long[] lamportTimes = new long[INITIAL_CAPACITY];
+        private double[][] values = new double[METRICS.length][INITIAL_CAPACITY];
+        private long first;
+        private long next;
+
+        // per metric: sequence numbers of increasing values (minimums) and of decreasing values (maximums)
+        private final LongDeque[] minimums = new LongDeque[METRICS.length];
+        private final LongDeque[] maximums = new LongDeque[METRICS.length];
+        private final double[] sums = new double[METRICS.length];
+        private int addsSinceResum;
+
+        Series() {
+            for (int m = 0; m < METRICS.length; m++) {
+                minimums[m] = new LongDeque();
+                maximums[m] = new LongDeque();
+            }
+        }
+
+        synchronized void add(long timestamp, long lamportTime, double[] metricValues) {
+            if (next > first && lamportTime <= lamportTimes[index(next - 1)]) {
+                return;  // a reading sent again (replication resync, handoff retry, replay) or an older one
+            }
+            if (next - first == capacity) {
+                evictFirst();
+            } else if (next - first == timestamps.length) {
+                grow();
+            }
+            int index = index(next);
+            timestamps[index] = timestamp;
+            lamportTimes[index] = lamportTime;
+            for (int m = 0; m < METRICS.length; m++) {
+                double value = metricValues[m];
+                values[m][index] = value;
+                sums[m] += value;
+                while (!minimums[m].isEmpty() && values[m][index(minimums[m].peekLast())] >= value) {
+                    minimums[m].pollLast();
+                }
+                minimums[m].addLast(next);
+                while (!maximums[m].isEmpty() && values[m][index(maximums[m].peekLast())] <= value) {
+                    maximums[m].pollLast();
+                }
+                maximums[m].addLast(next);
+            }
+            next++;
+
+            while (next - first > 1 && timestamps[index(first)] < timestamp - maxAgeMs) {
+                evictFirst();
+            }
+
+            // adding and subtracting doubles drifts, so the sums are added up again once per buffer
+            if (++addsSinceResum >= Math.max(capacity, 64)) {
+                resum();
+            }
+        }
+
+        private void evictFirst() {
+            for (int m = 0; m < METRICS.length; m++) {
+                sums[m] -= values[m][index(first)];
+                if (minimums[m].peekFirst() == first) {
+                    minimums[m].pollFirst();
+                }
+                if (maximums[m].peekFirst() == first) {
+                    maximums[m].pollFirst();
+                }
+            }
+            first++;
+        }
+
+        private void grow() {
+            int length = Math.min(capacity, timestamps.length * 2);
+            long[] newTimestamps = new long[length];
+            long[] newLamportTimes = new long[length];
+            double[][] newValues = new double[METRICS.length][length];
+            for (long s = first; s < next; s++) {
+                int from = index(s);
+                int to = (int) (s % length);
+                newTimestamps[to] = timestamps[from];
+                newLamportTimes[to] = lamportTimes[from];
+                for (int m = 0; m < METRICS.length; m++) {
+                    newValues[m][to] = values[m][from];
+                }
+            }
+            timestamps = newTimestamps;
+            lamportTimes = newLamportTimes;
+            values = newValues;
+        }
+
+        private void resum() {
+            for (int m = 0; m < METRICS.length; m++) {
+                double sum = 0;
+                for (long s = first; s < next; s++) {
+                    sum += values[m][index(s)];
+                }
+                sums[m] = sum;
+            }
+            addsSinceResum = 0;
+        }
+
+        private int index(long sequence) {
+            return (int) (sequence % timestamps.length);
+        }
+
+        public synchronized int size() {
+            return (int) (next - first);
+        }
+
+        // The statistics over all readings held, without looking at them
+        public synchronized Stats stats(Metric metric) {
+            int m = metric.ordinal();
+            if (next == first) {
+                return new Stats(0, 0, 0, 0);
+            }
+            return new Stats((int) (next - first), values[m][index(minimums[m].peekFirst())],
+                    values[m][index(maximums[m].peekFirst())], sums[m]);
+        }
+
+        /**
+         * Writes the readings received between from and to (inclusive, milliseconds since the epoch) and
+         * the statistics over them. Without a range, the statistics are the rolling ones.
+         */
+        synchronized void write(JsonWriter out, long from, long to, boolean readings) throws IOException {
+            boolean whole = from == Long.MIN_VALUE && to == Long.MAX_VALUE;
+            int count = 0;
+            double[] min = new double[METRICS.length];
+            double[] max = new double[METRICS.length];
+            double[] sum = new double[METRICS.length];
+            if (readings) {
+                out.name("readings").beginArray();
+            }
+            for (long s = first; s < next && (readings || !whole); s++) {
+                int index = index(s);
+                if (timestamps[index] < from || timestamps[index] > to) {
+                    continue;
+                }
+                if (readings) {
+                    out.beginObject();
+                    out.name("timestamp").value(timestamps[index]);
+                    out.name("lamportTimestamp").value(lamportTimes[index]);
+                    for (Metric metric : METRICS) {
+                        out.name(metric.getField()).value(values[metric.ordinal()][index]);
+                    }
+                    out.endObject();
+                }
+                for (int m = 0; m < METRICS.length; m++) {
+                    double value = values[m][index];
+                    min[m] = (count == 0) ? value : Math.min(min[m], value);
+                    max[m] = (count == 0) ? value : Math.max(max[m], value);
+                    sum[m] += value;
+                }
+                count++;
+            }
+            if (readings) {
+                out.endArray();
+            }
+
+            out.name("stats").beginObject();
+            for (Metric metric : METRICS) {
+                int m = metric.ordinal();
+                Stats stats = whole ? stats(metric) : new Stats(count, min[m], max[m], sum[m]);
+                out.name(metric.getField()).beginObject();
+                out.name("count").value(stats.getCount());
+                if (stats.getCount() > 0) {
+                    out.name("min").value(stats.getMin());
+                    out.name("max").value(stats.getMax());
+                    out.name("avg").value(stats.getAverage());
+                }
+                out.endObject();
+            }
+            out.endObject();
+        }
+    }
+
+    /**
+     * A JSON array with one object per station that has a history:
+     * [{"id":"IDS60901","from":..,"to":..,"readings":[{"timestamp":..,"lamportTimestamp":..,"air_temp":..,
+     * "press":..,"wind_spd_kmh":..}],"stats":{"air_temp":{"count":..,"min":..,"max":..,"avg":..},..}}]
+     * With readings false (?trend=true) only the rolling statistics are written, in O(1) per station.
+     * Returns null if none of the stations has a history.
+     */
+    public String toJson(Collection<String> ids, long from, long to, boolean readings) {
+        StringWriter text = new StringWriter();
+        boolean any = false;
+        try (JsonWriter out = new JsonWriter(text)) {
+            out.beginArray();
+            for (String id : ids) {
+                Series station = series.get(id);
+                if (station == null) {
+                    continue;
+                }
+                any = true;
+                out.beginObject();
+                out.name("id").value(id);
+                if (from != Long.MIN_VALUE) {
+                    out.name("from").value(from);
+                }
+                if (to != Long.MAX_VALUE) {
+                    out.name("to").value(to);
+                }
+                station.write(out, from, to, readings);
+                out.endObject();
+            }
+            out.endArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("StringWriter does not throw", e);
+        }
+        return any ? text.toString() : null;
+    }
+
+    // A deque of primitive longs on a growing circular array
+    static final class LongDeque {
+        private long[] elements = new long[INITIAL_CAPACITY];
+        private int head;
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void addLast(long value) {
+            if (size == elements.length) {
+                long[] grown = new long[elements.length * 2];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = elements[(head + i) % elements.length];
+                }
+                elements = grown;
+                head = 0;
+            }
+            elements[(head + size) % elements.length] = value;
+            size++;
+        }
+
+        long peekFirst() {
+            return elements[head];
+        }
+
+        long peekLast() {
+            return elements[(head + size - 1) % elements.length];
+        }
+
+        long pollFirst() {
+            long value = elements[head];
+            head = (head + 1) % elements.length;
+            size--;
+            return value;
+        }
+
+        long pollLast() {
+            size--;
+            return elements[(head + size) % elements.length];
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StationHistory{" +
+                "capacity=" + capacity +
+                ", maxAgeMs=" + maxAgeMs +
+                ", stations=" + series.size() +
+                '}';
+    }
+}
@@ -0,0 +1,151 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class StationHistoryTest {
+
+    private static WeatherData reading(String id, long timestamp, double airTemp, double press, int windSpdKmh) {
+        WeatherData weatherData = new WeatherData();
+        weatherData.setId(id);
+        weatherData.setTimestamp(timestamp);
+        weatherData.setLamportTimestamp(timestamp / 10);
+        weatherData.setAirTemp(airTemp);
+        weatherData.setPress(press);
+        weatherData.setWindSpdKmh(windSpdKmh);
+        return weatherData;
+    }
+
+    @Test
+    public void rollingStatsMatchTheReadingsHeld() {
+        StationHistory history = new StationHistory(50, Long.MAX_VALUE);
+        Random random = new Random(11);
+        Deque<double[]> expected = new ArrayDeque<>();
+        for (int i = 0; i < 5000; i++) {
+            double airTemp = Math.round(random.nextGaussian() * 100) / 10.0;
+            double press = 1000 + random.nextInt(50);
+            int wind = random.nextInt(80);
+            history.record(reading("IDS1", i * 1000L, airTemp, press, wind));
+            expected.addLast(new double[]{airTemp, press, wind});
+            if (expected.size() > 50) {
+                expected.removeFirst();
+            }
+
+            StationHistory.Series series = history.get("IDS1");
+            Assert.assertEquals(expected.size(), series.size());
+            for (StationHistory.Metric metric : StationHistory.Metric.values()) {
+                double min = Double.MAX_VALUE;
+                double max = -Double.MAX_VALUE;
+                double sum = 0;
+                for (double[] values : expected) {
+                    double value = values[metric.ordinal()];
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                    sum += value;
+                }
+                StationHistory.Stats stats = series.stats(metric);
+                Assert.assertEquals(expected.size(), stats.getCount());
+                Assert.assertEquals(min, stats.getMin(), 0);
+                Assert.assertEquals(max, stats.getMax(), 0);
+                Assert.assertEquals(sum / expected.size(), stats.getAverage(), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void oldReadingsAgeOut() {
+        StationHistory history = new StationHistory(100, 10_000);
+        for (int i = 0; i < 20; i++) {
+            history.record(reading("IDS1", i * 1000L, i, 1000, i));
+        }
+        // readings at 9 to 19 seconds are within 10 seconds of the newest
+        StationHistory.Series series = history.get("IDS1");
+        Assert.assertEquals(11, series.size());
+        Assert.assertEquals(9, series.stats(StationHistory.Metric.AIR_TEMP).getMin(), 0);
+        Assert.assertEquals(19, series.stats(StationHistory.Metric.AIR_TEMP).getMax(), 0);
+        Assert.assertEquals(14, series.stats(StationHistory.Metric.WIND_SPD_KMH).getAverage(), 1e-9);
+    }
+
+    @Test
+    public void rangeQueriesReturnTheReadingsAndTheirStats() {
+        StationHistory history = new StationHistory(100, Long.MAX_VALUE);
+        for (int i = 1; i <= 10; i++) {
+            history.record(reading("IDS1", i * 1000L, i, 1000 + i, i * 2));
+        }
+        history.record(reading("IDS2", 5000, 30, 990, 0));
+
+        JsonArray stations = JsonParser.parseString(history.toJson(Arrays.asList("IDS1", "IDS3", "IDS2"), 3000, 5000, true)).getAsJsonArray();
+        Assert.assertEquals(2, stations.size());
+        JsonObject first = stations.get(0).getAsJsonObject();
+        Assert.assertEquals("IDS1", first.get("id").getAsString());
+        Assert.assertEquals(3000, first.get("from").getAsLong());
+        JsonArray readings = first.getAsJsonArray("readings");
+        Assert.assertEquals(3, readings.size());
+        Assert.assertEquals(3000, readings.get(0).getAsJsonObject().get("timestamp").getAsLong());
+        Assert.assertEquals(300, readings.get(0).getAsJsonObject().get("lamportTimestamp").getAsLong());
+        Assert.assertEquals(5.0, readings.get(2).getAsJsonObject().get("air_temp").getAsDouble(), 0);
+        JsonObject airTemp = first.getAsJsonObject("stats").getAsJsonObject("air_temp");
+        Assert.assertEquals(3, airTemp.get("count").getAsInt());
+        Assert.assertEquals(3.0, airTemp.get("min").getAsDouble(), 0);
+        Assert.assertEquals(5.0, airTemp.get("max").getAsDouble(), 0);
+        Assert.assertEquals(4.0, airTemp.get("avg").getAsDouble(), 0);
+
+        // a trend is the rolling stats over everything held, without the readings
+        JsonObject trend = JsonParser.parseString(history.toJson(Collections.singletonList("IDS1"), Long.MIN_VALUE, Long.MAX_VALUE, false))
+                .getAsJsonArray().get(0).getAsJsonObject();
+        Assert.assertFalse(trend.has("readings"));
+        JsonObject wind = trend.getAsJsonObject("stats").getAsJsonObject("wind_spd_kmh");
+        Assert.assertEquals(10, wind.get("count").getAsInt());
+        Assert.assertEquals(2.0, wind.get("min").getAsDouble(), 0);
+        Assert.assertEquals(20.0, wind.get("max").getAsDouble(), 0);
+        Assert.assertEquals(11.0, wind.get("avg").getAsDouble(), 0);
+
+        Assert.assertNull(history.toJson(Collections.singletonList("IDS3"), Long.MIN_VALUE, Long.MAX_VALUE, true));
+        history.remove("IDS1");
+        Assert.assertNull(history.get("IDS1"));
+        Assert.assertEquals(1, history.getReadingCount());
+    }
+
+    @Test
+    public void turnedOffKeepsNothing() {
+        StationHistory history = new StationHistory(0, Long.MAX_VALUE);
+        history.record(reading("IDS1", 1000, 1, 1000, 1));
+        Assert.assertFalse(history.isEnabled());
+        Assert.assertEquals(0, history.size());
+    }
+
+    @Test
+    public void readingAppliedAgainIsKeptOnce() {
+        StationHistory history = new StationHistory(50, Long.MAX_VALUE);
+        WeatherData first = reading("IDS1", 1000, 10, 1000, 5);
+        WeatherData second = reading("IDS1", 2000, 20, 1010, 15);
+        history.record(first);
+        history.record(second);
+        history.record(second);
+        history.record(first);
+
+        StationHistory.Series series = history.get("IDS1");
+        Assert.assertEquals(2, series.size());
+        Assert.assertEquals(15, series.stats(StationHistory.Metric.AIR_TEMP).getAverage(), 1e-9);
+    }
+
+    @Test
+    public void storeDoesNotRecordAnUnchangedReadingAgain() throws Exception {
+        WeatherData reading = reading("IDS99902", System.currentTimeMillis(), 12.5, 1000, 5);
+        reading.setLamportTimestamp(7);
+        AggregationServer.storeIfNewer(reading);
+        // a replication resync or handoff retry sends the same reading again
+        AggregationServer.storeIfNewer(reading);
+
+        HttpRequest trend = new HttpRequestParser().parse(ByteBuffer.wrap(
+                "GET /weather.json?id=IDS99902&trend=true HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+        String body = new String(AggregationServer.handleRequest(trend).getBody(), StandardCharsets.UTF_8);
+        Assert.assertTrue(body, body.contains("\"count\":1,"));
+        Assert.assertFalse(body, body.contains("\"count\":2"));
+    }
+}
@@ -0,0 +1,358 @@
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Change subscriptions for GET /subscribe.
+ *
+ * A subscription covers all stations or a set of station ids. Every reading that is stored is offered to
+ * the subscriptions interested in its station, and the subscriber picks them up through a long-poll or
+ * an event stream (SSE). Each subscription buffers at most BUFFER_CAPACITY stations: a newer reading of a
+ * station that is still buffered replaces the older one (coalescing), and when the buffer is full the
+ * oldest buffered station is dropped and counted, so a slow subscriber costs bounded memory and is told
+ * to fetch the full store again. Every delivery is sorted by Lamport time, and readings of one station
+ * are always delivered in Lamport order.
+ *
+ * publish is called while the store holds the station's entry. A reading is buffered right there, but a
+ * waiting long-poll is completed on a notifier thread, so writing its response does not hold up the PUT
+ * or other writers to the store.
+ */
+public class SubscriptionHub {
+    // Interval of the keep-alive comments on an idle event stream
+    public static final long STREAM_PING_MS = Long.getLong("aggregation.ssePingMs", 15000);
+
+    private final int bufferCapacity;
+    private final long idleTimeoutMs;
+    private final Map<Long, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final Map<String, Set<Subscription>> byStation = new ConcurrentHashMap<>();
+    private final Set<Subscription> allStations = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextId = new AtomicLong();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "subscription-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService notifier = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "subscription-notifier");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public SubscriptionHub(int bufferCapacity, long idleTimeoutMs) {
+        this.bufferCapacity = Math.max(1, bufferCapacity);
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    // Builds the hub from system properties, e.g. -Daggregation.subscriptionBuffer=4096
+    public static SubscriptionHub fromSystemProperties() {
+        int bufferCapacity = Integer.getInteger("aggregation.subscriptionBuffer", 1024);
+        long idleTimeoutMs = Long.getLong("aggregation.subscriptionIdleMs", 60000);
+        return new SubscriptionHub(bufferCapacity, idleTimeoutMs);
+    }
+
+    // Readings picked up by one poll, and how many readings were dropped since the previous one
+    public static class Delivery {
+        private final List<WeatherData> updates;
+        private final long dropped;
+
+        Delivery(List<WeatherData> updates, long dropped) {
+            this.updates = updates;
+            this.dropped = dropped;
+        }
+
+        public List<WeatherData> getUpdates() {
+            return updates;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+    }
+
+    public class Subscription {
+        private final long id;
+        private final Set<String> stationIds;
+        private final LinkedHashMap<String, WeatherData> pending = new LinkedHashMap<>();
+        private long droppedSinceDelivery;
+        private CompletableFuture<Delivery> waiter;
+        private ScheduledFuture<?> waiterTimeout;
+        private boolean streaming;
+        private boolean closed;
+        private volatile long lastActive = System.currentTimeMillis();
+
+        Subscription(long id, Set<String> stationIds) {
+            this.id = id;
+            this.stationIds = stationIds;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Completes with the buffered readings as soon as there are any, or with an empty delivery after
+         * the timeout. A new call replaces a waiting one, which then completes empty.
+         */
+        public CompletableFuture<Delivery> next(long timeoutMs) {
+            CompletableFuture<Delivery> replaced;
+            CompletableFuture<Delivery> result;
+            synchronized (this) {
+                lastActive = System.currentTimeMillis();
+                replaced = takeWaiter();
+                if (closed || !pending.isEmpty() || droppedSinceDelivery > 0) {
+                    result = CompletableFuture.completedFuture(drain());
+                } else {
+                    CompletableFuture<Delivery> created = new CompletableFuture<>();
+                    waiter = created;
+                    waiterTimeout = timer.schedule(() -> timeout(created), timeoutMs, TimeUnit.MILLISECONDS);
+                    result = created;
+                }
+            }
+            if (replaced != null) {
+                replaced.complete(new Delivery(Collections.emptyList(), 0));
+            }
+            return result;
+        }
+
+        // An event stream is closed with its connection instead of expiring when it is not polled
+        public synchronized void setStreaming(boolean streaming) {
+            this.streaming = streaming;
+        }
+
+        void offer(WeatherData weatherData) {
+            CompletableFuture<Delivery> ready = null;
+            Delivery delivery = null;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                WeatherData buffered = pending.remove(weatherData.getId());
+                if (buffered != null) {
+                    coalesced.incrementAndGet();
+                    if (buffered.getLamportTimestamp() > weatherData.getLamportTimestamp()) {
+                        weatherData = buffered;
+                    }
+                } else if (pending.size() >= bufferCapacity) {
+                    Iterator<WeatherData> oldest = pending.values().iterator();
+                    oldest.next();
+                    oldest.remove();
+                    droppedSinceDelivery++;
+                    dropped.incrementAndGet();
+                }
+                pending.put(weatherData.getId(), weatherData);
+
+                if (waiter != null) {
+                    ready = takeWaiter();
+                    delivery = drain();
+                }
+            }
+            // completed on a notifier thread, the continuation builds and writes the subscriber's response
+            if (ready != null) {
+                completeLater(ready, delivery);
+            }
+        }
+
+        void close() {
+            CompletableFuture<Delivery> waiting;
+            synchronized (this) {
+                closed = true;
+                pending.clear();
+                waiting = takeWaiter();
+            }
+            if (waiting != null) {
+                waiting.complete(new Delivery(Collections.emptyList(), 0));
+            }
+        }
+
+        synchronized boolean isIdle(long now) {
+            return !streaming && waiter == null && now - lastActive > idleTimeoutMs;
+        }
+
+        boolean wants(String stationId) {
+            return stationIds == null || stationIds.contains(stationId);
+        }
+
+        private void timeout(CompletableFuture<Delivery> expected) {
+            Delivery delivery;
+            synchronized (this) {
+                if (waiter != expected) {
+                    return;
+                }
+                waiter = null;
+                waiterTimeout = null;
+                lastActive = System.currentTimeMillis();
+                delivery = drain();
+            }
+            expected.complete(delivery);
+        }
+
+        private void completeLater(CompletableFuture<Delivery> ready, Delivery delivery) {
+            ready.completeAsync(() -> delivery, notifier);
+        }
+
+        // Must be called with the lock held
+        private CompletableFuture<Delivery> takeWaiter() {
+            CompletableFuture<Delivery> taken = waiter;
+            waiter = null;
+            if (waiterTimeout != null) {
+                waiterTimeout.cancel(false);
+                waiterTimeout = null;
+            }
+            return taken;
+        }
+
+        // Must be called with the lock held
+        private Delivery drain() {
+            List<WeatherData> updates = new ArrayList<>(pending.values());
+            updates.sort(Comparator.comparingLong(WeatherData::getLamportTimestamp));
+            pending.clear();
+            Delivery delivery = new Delivery(updates, droppedSinceDelivery);
+            droppedSinceDelivery = 0;
+            lastActive = System.currentTimeMillis();
+            return delivery;
+        }
+    }
+
+    // Registers interest in the given stations, or in all stations if stationIds is null
+    public Subscription subscribe(Set<String> stationIds) {
+        Subscription subscription = new Subscription(nextId.incrementAndGet(), stationIds);
+        subscriptions.put(subscription.id, subscription);
+        if (stationIds == null) {
+            allStations.add(subscription);
+        } else {
+            for (String stationId : stationIds) {
+                byStation.computeIfAbsent(stationId, key -> ConcurrentHashMap.newKeySet()).add(subscription);
+            }
+        }
+        return subscription;
+    }
+
+    // The subscription with this id, or null if it was closed or expired
+    public Subscription get(long id) {
+        return subscriptions.get(id);
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        if (subscriptions.remove(subscription.id) == null) {
+            return;
+        }
+        if (subscription.stationIds == null) {
+            allStations.remove(subscription);
+        } else {
+            for (String stationId : subscription.stationIds) {
+                byStation.computeIfPresent(stationId, (key, subscribers) -> {
+                    subscribers.remove(subscription);
+                    return subscribers.isEmpty() ? null : subscribers;
+                });
+            }
+        }
+        subscription.close();
+    }
+
+    /**
+     * Offers a stored reading to every interested subscription.
+     * Called while the store holds the station's entry, so readings of one station arrive in store order.
+     */
+    public void publish(WeatherData weatherData) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        published.incrementAndGet();
+        for (Subscription subscription : allStations) {
+            subscription.offer(weatherData);
+        }
+        Set<Subscription> subscribers = byStation.get(weatherData.getId());
+        if (subscribers != null) {
+            for (Subscription subscription : subscribers) {
+                subscription.offer(weatherData);
+            }
+        }
+    }
+
+    // Closes long-poll subscriptions that have not been polled for longer than the idle timeout
+    public void expireIdle(long now) {
+        for (Subscription subscription : subscriptions.values()) {
+            if (subscription.isIdle(now)) {
+                unsubscribe(subscription);
+            }
+        }
+    }
+
+    public int size() {
+        return subscriptions.size();
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * The long-poll response body, e.g.
+     * {"subscription":3,"dropped":0,"updates":[{"id":"IDS60901",...,"lamportTimestamp":42}]}
+     */
+    public static String toJson(Subscription subscription, Delivery delivery) {
+        StringWriter text = new StringWriter();
+        try (JsonWriter out = new JsonWriter(text)) {
+            out.beginObject();
+            out.name("subscription").value(subscription.getId());
+            out.name("dropped").value(delivery.dropped);
+            out.name("updates").beginArray();
+            for (WeatherData weatherData : delivery.updates) {
+                WeatherJson.write(out, weatherData, null);
+            }
+            out.endArray();
+            out.endObject();
+        } catch (IOException e) {
+            throw new IllegalStateException("StringWriter does not throw", e);
+        }
+        return text.toString();
+    }
+
+    /**
+     * The delivery as server-sent events: one "update" event per reading with its Lamport time as the
+     * event id, an "overflow" event if readings were dropped, or a comment line to keep an idle stream open.
+     */
+    public static byte[] toEventStream(Delivery delivery) {
+        StringBuilder events = new StringBuilder();
+        if (delivery.dropped > 0) {
+            events.append("event: overflow\ndata: {\"dropped\":").append(delivery.dropped).append("}\n\n");
+        }
+        for (WeatherData weatherData : delivery.updates) {
+            events.append("id: ").append(weatherData.getLamportTimestamp()).append('\n');
+            events.append("event: update\n");
+            events.append("data: ").append(WeatherJson.toJson(weatherData)).append("\n\n");
+        }
+        if (events.length() == 0) {
+            events.append(": ping\n\n");
+        }
+        return events.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "SubscriptionHub{" +
+                "subscriptions=" + size() +
+                ", published=" + getPublishedCount() +
+                ", coalesced=" + getCoalescedCount() +
+                ", dropped=" + getDroppedCount() +
+                '}';
+    }
+}
@@ -0,0 +1,105 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class SubscriptionHubTest {
+
+    private static WeatherData reading(String id, long lamportTimestamp) {
+        WeatherData weatherData = new WeatherData();
+        weatherData.setId(id);
+        weatherData.setLamportTimestamp(lamportTimestamp);
+        return weatherData;
+    }
+
+    private static List<String> ids(SubscriptionHub.Delivery delivery) {
+        List<String> ids = new ArrayList<>();
+        for (WeatherData weatherData : delivery.getUpdates()) {
+            ids.add(weatherData.getId() + "@" + weatherData.getLamportTimestamp());
+        }
+        return ids;
+    }
+
+    @Test
+    public void waitingPollCompletesOnTheFirstUpdate() throws Exception {
+        SubscriptionHub hub = new SubscriptionHub(16, 60000);
+        SubscriptionHub.Subscription subscription = hub.subscribe(null);
+
+        CompletableFuture<SubscriptionHub.Delivery> poll = subscription.next(10000);
+        Assert.assertFalse(poll.isDone());
+        hub.publish(reading("IDS60901", 1));
+
+        Assert.assertEquals(Collections.singletonList("IDS60901@1"), ids(poll.get(1, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void waitingPollIsNotAnsweredOnThePublishingThread() throws Exception {
+        SubscriptionHub hub = new SubscriptionHub(16, 60000);
+        CompletableFuture<Thread> answeredOn = hub.subscribe(null).next(5000).thenApply(delivery -> Thread.currentThread());
+
+        // publish runs while the store holds the station's entry
+        hub.publish(reading("IDS60901", 1));
+        Assert.assertNotSame(Thread.currentThread(), answeredOn.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void pollTimesOutEmpty() throws Exception {
+        SubscriptionHub hub = new SubscriptionHub(16, 60000);
+        SubscriptionHub.Delivery delivery = hub.subscribe(null).next(20).get(1, TimeUnit.SECONDS);
+        Assert.assertTrue(delivery.getUpdates().isEmpty());
+    }
+
+    @Test
+    public void onlySubscribedStationsAreDeliveredInLamportOrder() throws Exception {
+        SubscriptionHub hub = new SubscriptionHub(16, 60000);
+        SubscriptionHub.Subscription subscription = hub.subscribe(new HashSet<>(Arrays.asList("IDS60901", "IDS60902")));
+
+        hub.publish(reading("IDS60902", 5));
+        hub.publish(reading("IDS60903", 6));
+        hub.publish(reading("IDS60901", 4));
+
+        Assert.assertEquals(Arrays.asList("IDS60901@4", "IDS60902@5"), ids(subscription.next(0).get()));
+    }
+
+    @Test
+    public void slowSubscribersAreCoalescedAndBounded() throws Exception {
+        SubscriptionHub hub = new SubscriptionHub(2, 60000);
+        SubscriptionHub.Subscription subscription = hub.subscribe(null);
+
+        hub.publish(reading("IDS60901", 1));
+        hub.publish(reading("IDS60901", 2));
+        hub.publish(reading("IDS60902", 3));
+        hub.publish(reading("IDS60903", 4));
+
+        SubscriptionHub.Delivery delivery = subscription.next(0).get();
+        Assert.assertEquals(Arrays.asList("IDS60902@3", "IDS60903@4"), ids(delivery));
+        Assert.assertEquals(1, delivery.getDropped());
+        Assert.assertEquals(1, hub.getCoalescedCount());
+    }
+
+    @Test
+    public void idleLongPollSubscriptionsExpire() {
+        SubscriptionHub hub = new SubscriptionHub(16, 1000);
+        SubscriptionHub.Subscription subscription = hub.subscribe(null);
+        hub.expireIdle(System.currentTimeMillis());
+        Assert.assertSame(subscription, hub.get(subscription.getId()));
+
+        hub.expireIdle(System.currentTimeMillis() + 5000);
+        Assert.assertNull(hub.get(subscription.getId()));
+        Assert.assertEquals(0, hub.size());
+    }
+
+    @Test
+    public void eventStreamFormat() {
+        SubscriptionHub hub = new SubscriptionHub(1, 60000);
+        SubscriptionHub.Subscription subscription = hub.subscribe(null);
+        hub.publish(reading("IDS60901", 1));
+        hub.publish(reading("IDS60902", 2));
+
+        String events = new String(SubscriptionHub.toEventStream(subscription.next(0).join()));
+        Assert.assertTrue(events.startsWith("event: overflow\ndata: {\"dropped\":1}\n\nid: 2\nevent: update\ndata: {\"id\":\"IDS60902\""));
+        Assert.assertTrue(events.endsWith("}\n\n"));
+    }
+}
@@ -0,0 +1,200 @@
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A PUT that carries many stations at once, either as a JSON array of station objects or as
+ * newline-delimited JSON (one station object per line, Content-Type application/x-ndjson).
+ *
+ * Every record gets its own status: 201 or 200 once it is stored, 400 if it is malformed or has no id.
+ * In NDJSON a malformed line only fails that record; in an array the records cannot be told apart after
+ * a syntax error, so a malformed array fails the whole request.
+ */
+public class WeatherBatch {
+    public static final String NDJSON = "application/x-ndjson";
+
+    // One record of the batch and what happened to it
+    public static class Record {
+        final int index;
+        final WeatherData weatherData;
+        int status;
+        String error;
+
+        Record(int index, WeatherData weatherData, int status, String error) {
+            this.index = index;
+            this.weatherData = weatherData;
+            this.status = status;
+            this.error = error;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        // null if the record could not be parsed
+        public WeatherData getWeatherData() {
+            return weatherData;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void setStatus(int status) {
+            this.status = status;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public void setError(String error) {
+            this.error = error;
+        }
+
+        public boolean isValid() {
+            return status != 400;
+        }
+    }
+
+    // A batch is an NDJSON body or a body that starts with a JSON array, anything else is a single station
+    public static boolean isBatch(HttpRequest request) {
+        String contentType = request.getHeader("Content-Type");
+        if (contentType != null && contentType.toLowerCase().startsWith(NDJSON)) {
+            return true;
+        }
+        String body = request.getBody();
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '[';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the records of a batch. Records that are valid have status 0 until they are stored.
+     * Throws IllegalArgumentException if a JSON array is malformed.
+     */
+    public static List<Record> parse(String body, boolean ndjson) {
+        return ndjson ? parseLines(body) : parseArray(body);
+    }
+
+    private static List<Record> parseArray(String body) {
+        List<Record> records = new ArrayList<>();
+        int pos = skipWhitespace(body, 0);
+        if (pos >= body.length() || body.charAt(pos) != '[') {
+            throw new IllegalArgumentException("Expected a JSON array at position " + pos);
+        }
+        pos = skipWhitespace(body, pos + 1);
+        if (pos < body.length() && body.charAt(pos) == ']') {
+            pos++;
+        } else {
+            while (true) {
+                WeatherData weatherData = new WeatherData();
+                pos = skipWhitespace(body, weatherData.fromJson(body, pos));
+                records.add(validate(records.size(), weatherData));
+                if (pos >= body.length()) {
+                    throw new IllegalArgumentException("Unterminated JSON array");
+                }
+                char c = body.charAt(pos++);
+                if (c == ']') {
+                    break;
+                }
+                if (c != ',') {
+                    throw new IllegalArgumentException("Expected ',' or ']' at position " + (pos - 1));
+                }
+            }
+        }
+        if (skipWhitespace(body, pos) < body.length()) {
+            throw new IllegalArgumentException("Unexpected content after the JSON array");
+        }
+        return records;
+    }
+
+    private static List<Record> parseLines(String body) {
+        List<Record> records = new ArrayList<>();
+        int start = 0;
+        while (start < body.length()) {
+            int end = body.indexOf('\n', start);
+            if (end < 0) {
+                end = body.length();
+            }
+            String line = body.substring(start, end).trim();
+            if (!line.isEmpty()) {
+                try {
+                    records.add(validate(records.size(), new WeatherData().fromJson(line)));
+                } catch (IllegalArgumentException e) {
+                    records.add(new Record(records.size(), null, 400, e.getMessage()));
+                }
+            }
+            start = end + 1;
+        }
+        return records;
+    }
+
+    private static Record validate(int index, WeatherData weatherData) {
+        if (weatherData.getId() == null || weatherData.getId().isEmpty()) {
+            return new Record(index, weatherData, 400, "Missing weather data ID");
+        }
+        return new Record(index, weatherData, 0, null);
+    }
+
+    /**
+     * The batch response body: counts per outcome and the status of every record, e.g.
+     * {"records":2,"created":1,"updated":0,"failed":1,"results":[{"index":0,"id":"IDS60901","status":201},
+     * {"index":1,"status":400,"error":"Missing weather data ID"}]}
+     */
+    public static String resultsJson(List<Record> records) {
+        int created = 0;
+        int updated = 0;
+        int failed = 0;
+        for (Record record : records) {
+            if (record.status == 201) {
+                created++;
+            } else if (record.status == 200) {
+                updated++;
+            } else {
+                failed++;
+            }
+        }
+
+        StringWriter text = new StringWriter();
+        try (JsonWriter out = new JsonWriter(text)) {
+            out.beginObject();
+            out.name("records").value(records.size());
+            out.name("created").value(created);
+            out.name("updated").value(updated);
+            out.name("failed").value(failed);
+            out.name("results").beginArray();
+            for (Record record : records) {
+                out.beginObject();
+                out.name("index").value(record.index);
+                if (record.weatherData != null && record.weatherData.getId() != null) {
+                    out.name("id").value(record.weatherData.getId());
+                }
+                out.name("status").value(record.status);
+                if (record.error != null) {
+                    out.name("error").value(record.error);
+                }
+                out.endObject();
+            }
+            out.endArray();
+            out.endObject();
+        } catch (IOException e) {
+            throw new IllegalStateException("StringWriter does not throw", e);
+        }
+        return text.toString();
+    }
+
+    private static int skipWhitespace(String text, int pos) {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,61 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class WeatherBatchTest {
+
+    private static HttpRequest put(String contentType, String body) {
+        HttpRequest request = new HttpRequest("PUT", "/weather.json", "HTTP/1.1");
+        request.addHeader("Content-Type", contentType);
+        request.setBody(body);
+        return request;
+    }
+
+    @Test
+    public void recognizesArraysAndNdjson() {
+        Assert.assertTrue(WeatherBatch.isBatch(put("application/json", "  [{\"id\":\"a\"}]")));
+        Assert.assertTrue(WeatherBatch.isBatch(put("application/x-ndjson", "{\"id\":\"a\"}\n{\"id\":\"b\"}")));
+        Assert.assertFalse(WeatherBatch.isBatch(put("application/json", "{\"id\":\"a\"}")));
+    }
+
+    @Test
+    public void parsesEveryRecordOfAnArray() {
+        List<WeatherBatch.Record> records = WeatherBatch.parse(
+                "[{\"id\":\"IDS60901\",\"air_temp\":13.3},\n {\"name\":\"no id\"}, {\"id\":\"IDS60902\"}]", false);
+
+        Assert.assertEquals(3, records.size());
+        Assert.assertEquals("IDS60901", records.get(0).getWeatherData().getId());
+        Assert.assertEquals(13.3, records.get(0).getWeatherData().getAirTemp(), 0.0);
+        Assert.assertFalse(records.get(1).isValid());
+        Assert.assertEquals("IDS60902", records.get(2).getWeatherData().getId());
+        Assert.assertTrue(WeatherBatch.parse(" [ ] ", false).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedArrayFailsTheBatch() {
+        WeatherBatch.parse("[{\"id\":\"IDS60901\"} {\"id\":\"IDS60902\"}]", false);
+    }
+
+    @Test
+    public void malformedLineOnlyFailsItsRecord() {
+        List<WeatherBatch.Record> records = WeatherBatch.parse("{\"id\":\"IDS60901\"}\n{\"id\":\n\n{\"id\":\"IDS60902\"}\n", true);
+
+        Assert.assertEquals(3, records.size());
+        Assert.assertTrue(records.get(0).isValid());
+        Assert.assertEquals(400, records.get(1).getStatus());
+        Assert.assertNotNull(records.get(1).getError());
+        Assert.assertTrue(records.get(2).isValid());
+    }
+
+    @Test
+    public void resultsListTheStatusOfEveryRecord() {
+        List<WeatherBatch.Record> records = WeatherBatch.parse("{\"id\":\"IDS60901\"}\n{}\n", true);
+        records.get(0).setStatus(201);
+
+        Assert.assertEquals("{\"records\":2,\"created\":1,\"updated\":0,\"failed\":1,\"results\":["
+                        + "{\"index\":0,\"id\":\"IDS60901\",\"status\":201},"
+                        + "{\"index\":1,\"status\":400,\"error\":\"Missing weather data ID\"}]}",
+                WeatherBatch.resultsJson(records));
+    }
+}
@@ -1,6 +1,3 @@
-import java.util.HashMap;
-import java.util.Map;
-
 public class WeatherData {
     private String id;
     private String name;
@@ -20,53 +17,354 @@ public class WeatherData {
     private int wind_spd_kmh;
     private int wind_spd_kt;
     private long timestamp;
-    private int lamportTimestamp;
+    private long lamportTimestamp;
 
     // Constructor
     public WeatherData() {}
 
-    public WeatherData(String data, int lamportTimestamp, long timestamp) {
+    public WeatherData(String data, long lamportTimestamp, long timestamp) {
         this.timestamp = timestamp;
         this.lamportTimestamp = lamportTimestamp;
         fromJson(data);
     }
 
-    // **This is the method that was missing**
+    /**
+     * Reads the fields of a JSON object into this WeatherData in a single pass over the text.
+     * Unknown keys are skipped, string values may contain any escaped or special character (such as
+     * "15/04:00pm"), and numeric fields accept both numbers and numeric strings.
+     * Throws IllegalArgumentException describing the position of the first error in malformed JSON.
+     */
     public WeatherData fromJson(String jsonString) {
-
-        Map<String, String> jsonMap = parseJsonToMap(jsonString);
-
-        this.id = jsonMap.get("id");
-        this.name = jsonMap.get("name");
-        this.state = jsonMap.get("state");
-        this.time_zone = jsonMap.get("time_zone");
-        this.lat = Double.parseDouble(jsonMap.get("lat"));
-        this.lon = Double.parseDouble(jsonMap.get("lon"));
-        this.local_date_time = jsonMap.get("local_date_time");
-        this.local_date_time_full = jsonMap.get("local_date_time_full");
-        this.air_temp = Double.parseDouble(jsonMap.get("air_temp"));
-        this.apparent_t = Double.parseDouble(jsonMap.get("apparent_t"));
-        this.cloud = jsonMap.get("cloud");
-        this.dewpt = Double.parseDouble(jsonMap.get("dewpt"));
-        this.press = Double.parseDouble(jsonMap.get("press"));
-        this.rel_hum = Integer.parseInt(jsonMap.get("rel_hum"));
-        this.wind_dir = jsonMap.get("wind_dir");
-        this.wind_spd_kmh = Integer.parseInt(jsonMap.get("wind_spd_kmh"));
-        this.wind_spd_kt = Integer.parseInt(jsonMap.get("wind_spd_kt"));
+        Parser parser = new Parser(jsonString, 0);
+        parser.readObject(this);
+        parser.skipWhitespace();
+        if (parser.pos < jsonString.length()) {
+            throw parser.error("Unexpected content after the JSON object");
+        }
         return this;
+    }
 
+    /**
+     * Reads one JSON object starting at the given index into this WeatherData and
+     * returns the index just after the object, so several objects can be read from one text.
+     */
+    public int fromJson(String text, int start) {
+        Parser parser = new Parser(text, start);
+        parser.readObject(this);
+        return parser.pos;
+    }
+
+    // Field names in the order of FIELD_* indexes below
+    private static final String[] FIELD_NAMES = {
+            "id", "name", "state", "time_zone", "lat", "lon", "local_date_time", "local_date_time_full", "air_temp",
+            "apparent_t", "cloud", "dewpt", "press", "rel_hum", "wind_dir", "wind_spd_kmh", "wind_spd_kt"
+    };
+
+    // Stores one parsed value, the parser calls this without building a map of the object first
+    private void setField(int field, Parser parser) {
+        switch (field) {
+            case 0: id = parser.readString(); break;
+            case 1: name = parser.readString(); break;
+            case 2: state = parser.readString(); break;
+            case 3: time_zone = parser.readString(); break;
+            case 4: lat = parser.readDouble(); break;
+            case 5: lon = parser.readDouble(); break;
+            case 6: local_date_time = parser.readString(); break;
+            case 7: local_date_time_full = parser.readString(); break;
+            case 8: air_temp = parser.readDouble(); break;
+            case 9: apparent_t = parser.readDouble(); break;
+            case 10: cloud = parser.readString(); break;
+            case 11: dewpt = parser.readDouble(); break;
+            case 12: press = parser.readDouble(); break;
+            case 13: rel_hum = parser.readInt(); break;
+            case 14: wind_dir = parser.readString(); break;
+            case 15: wind_spd_kmh = parser.readInt(); break;
+            case 16: wind_spd_kt = parser.readInt(); break;
+            default: parser.skipValue(); break;
+        }
     }
 
-    // Helper method to parse JSON string to a map (key-value pairs)
-    private static Map<String, String> parseJsonToMap(String json) {
-        Map<String, String> map = new HashMap<>();
-        json = json.replaceAll("[{}\"]", ""); // Remove curly braces and quotes
-        String[] pairs = json.split(",");
-        for (String pair : pairs) {
-            String[] keyValue = pair.split(":");
-            map.put(keyValue[0].trim(), keyValue[1].trim());
+    /**
+     * Single-pass JSON reader over a String. Keys are matched against FIELD_NAMES in place and values are
+     * read straight into the WeatherData fields, so the only objects created are the string values.
+     */
+    private static final class Parser {
+        private final String json;
+        private int pos;
+
+        Parser(String json, int start) {
+            this.json = json;
+            this.pos = start;
+        }
+
+        void readObject(WeatherData target) {
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                int field = readKey();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                target.setField(field, this);
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    return;
+                }
+                if (c != ',') {
+                    pos--;
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+
+        // Reads an object key and returns its index in FIELD_NAMES, or -1 for an unknown key
+        private int readKey() {
+            if (peek() != '"') {
+                throw error("Expected a quoted key");
+            }
+            int start = pos + 1;
+            int end = start;
+            while (end < json.length() && json.charAt(end) != '"') {
+                if (json.charAt(end) == '\\') {
+                    // keys with escapes are rare, decode them the slow way
+                    String key = readString();
+                    return fieldIndex(key, 0, key.length());
+                }
+                end++;
+            }
+            if (end >= json.length()) {
+                throw error("Unterminated key");
+            }
+            pos = end + 1;
+            return fieldIndex(json, start, end - start);
+        }
+
+        private static int fieldIndex(String text, int start, int length) {
+            for (int i = 0; i < FIELD_NAMES.length; i++) {
+                if (FIELD_NAMES[i].length() == length && text.startsWith(FIELD_NAMES[i], start)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        String readString() {
+            char first = peek();
+            if (first == 'n' && json.startsWith("null", pos)) {
+                pos += 4;
+                return null;
+            }
+            if (first != '"') {
+                // unquoted numbers or booleans are kept as their text
+                int start = pos;
+                skipLiteral();
+                return json.substring(start, pos);
+            }
+            pos++;
+            int start = pos;
+            StringBuilder unescaped = null;
+            while (true) {
+                if (pos >= json.length()) {
+                    throw error("Unterminated string");
+                }
+                char c = json.charAt(pos);
+                if (c == '"') {
+                    String value = (unescaped == null) ? json.substring(start, pos) : unescaped.append(json, start, pos).toString();
+                    pos++;
+                    return value;
+                }
+                if (c == '\\') {
+                    if (unescaped == null) {
+                        unescaped = new StringBuilder();
+                    }
+                    unescaped.append(json, start, pos);
+                    pos++;
+                    unescaped.append(readEscape());
+                    start = pos;
+                    continue;
+                }
+                if (c < 0x20) {
+                    throw error("Control character in string");
+                }
+                pos++;
+            }
+        }
+
+        private char readEscape() {
+            char c = next();
+            switch (c) {
+                case '"': return '"';
+                case '\\': return '\\';
+                case '/': return '/';
+                case 'b': return '\b';
+                case 'f': return '\f';
+                case 'n': return '\n';
+                case 'r': return '\r';
+                case 't': return '\t';
+                case 'u':
+                    if (pos + 4 > json.length()) {
+                        throw error("Incomplete unicode escape");
+                    }
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(json.charAt(pos++), 16);
+                        if (digit < 0) {
+                            pos--;
+                            throw error("Invalid unicode escape");
+                        }
+                        code = code * 16 + digit;
+                    }
+                    return (char) code;
+                default:
+                    pos--;
+                    throw error("Invalid escape character '" + c + "'");
+            }
+        }
+
+        double readDouble() {
+            String text = readNumberText();
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                throw error("Invalid number \"" + text + "\"");
+            }
+        }
+
+        int readInt() {
+            boolean quoted = peek() == '"';
+            if (!quoted) {
+                // the common case, digits parsed in place without a substring
+                int start = pos;
+                boolean negative = peek() == '-';
+                if (negative) {
+                    pos++;
+                }
+                long value = 0;
+                int digits = 0;
+                while (pos < json.length() && json.charAt(pos) >= '0' && json.charAt(pos) <= '9') {
+                    value = value * 10 + (json.charAt(pos++) - '0');
+                    if (value > Integer.MAX_VALUE + 1L) {
+                        pos = start;
+                        throw error("Integer out of range");
+                    }
+                    digits++;
+                }
+                if (digits > 0 && !isNumberChar(peekOrEnd())) {
+                    value = negative ? -value : value;
+                    if (value > Integer.MAX_VALUE) {
+                        pos = start;
+                        throw error("Integer out of range");
+                    }
+                    return (int) value;
+                }
+                pos = start;
+            }
+            double value = readDouble();
+            if (value != Math.rint(value) || value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+                throw error("Expected a whole number");
+            }
+            return (int) value;
+        }
+
+        // The text of a number, either bare or inside quotes
+        private String readNumberText() {
+            if (peek() == '"') {
+                String text = readString();
+                return (text == null) ? "" : text.trim();
+            }
+            int start = pos;
+            skipLiteral();
+            if (start == pos) {
+                throw error("Expected a number");
+            }
+            return json.substring(start, pos);
+        }
+
+        void skipValue() {
+            char c = peek();
+            if (c == '"') {
+                readString();
+            } else if (c == '{' || c == '[') {
+                skipNested();
+            } else {
+                int start = pos;
+                skipLiteral();
+                if (start == pos) {
+                    throw error("Expected a value");
+                }
+            }
+        }
+
+        // Skips an object or array, keeping track of strings so brackets inside them are ignored
+        private void skipNested() {
+            int depth = 0;
+            do {
+                char c = next();
+                if (c == '"') {
+                    pos--;
+                    readString();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        }
+
+        private void skipLiteral() {
+            while (pos < json.length()) {
+                char c = json.charAt(pos);
+                if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        private static boolean isNumberChar(char c) {
+            return c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-' || (c >= '0' && c <= '9');
+        }
+
+        void skipWhitespace() {
+            while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private void expect(char expected) {
+            if (peek() != expected) {
+                throw error("Expected '" + expected + "'");
+            }
+            pos++;
+        }
+
+        private char peek() {
+            if (pos >= json.length()) {
+                throw error("Unexpected end of JSON");
+            }
+            return json.charAt(pos);
+        }
+
+        private char peekOrEnd() {
+            return (pos < json.length()) ? json.charAt(pos) : ' ';
+        }
+
+        private char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos);
         }
-        return map;
     }
 
     // Getters
@@ -78,6 +376,151 @@ public class WeatherData {
         return timestamp;
     }
 
+    public long getLamportTimestamp() {
+        return lamportTimestamp;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public String getTimeZone() {
+        return time_zone;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+
+    public String getLocalDateTime() {
+        return local_date_time;
+    }
+
+    public String getLocalDateTimeFull() {
+        return local_date_time_full;
+    }
+
+    public double getAirTemp() {
+        return air_temp;
+    }
+
+    public double getApparentT() {
+        return apparent_t;
+    }
+
+    public String getCloud() {
+        return cloud;
+    }
+
+    public double getDewpt() {
+        return dewpt;
+    }
+
+    public double getPress() {
+        return press;
+    }
+
+    public int getRelHum() {
+        return rel_hum;
+    }
+
+    public String getWindDir() {
+        return wind_dir;
+    }
+
+    public int getWindSpdKmh() {
+        return wind_spd_kmh;
+    }
+
+    public int getWindSpdKt() {
+        return wind_spd_kt;
+    }
+
+    // Setters, used when a reading is rebuilt from a snapshot
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    public void setTimeZone(String time_zone) {
+        this.time_zone = time_zone;
+    }
+
+    public void setLat(double lat) {
+        this.lat = lat;
+    }
+
+    public void setLon(double lon) {
+        this.lon = lon;
+    }
+
+    public void setLocalDateTime(String local_date_time) {
+        this.local_date_time = local_date_time;
+    }
+
+    public void setLocalDateTimeFull(String local_date_time_full) {
+        this.local_date_time_full = local_date_time_full;
+    }
+
+    public void setAirTemp(double air_temp) {
+        this.air_temp = air_temp;
+    }
+
+    public void setApparentT(double apparent_t) {
+        this.apparent_t = apparent_t;
+    }
+
+    public void setCloud(String cloud) {
+        this.cloud = cloud;
+    }
+
+    public void setDewpt(double dewpt) {
+        this.dewpt = dewpt;
+    }
+
+    public void setPress(double press) {
+        this.press = press;
+    }
+
+    public void setRelHum(int rel_hum) {
+        this.rel_hum = rel_hum;
+    }
+
+    public void setWindDir(String wind_dir) {
+        this.wind_dir = wind_dir;
+    }
+
+    public void setWindSpdKmh(int wind_spd_kmh) {
+        this.wind_spd_kmh = wind_spd_kmh;
+    }
+
+    public void setWindSpdKt(int wind_spd_kt) {
+        this.wind_spd_kt = wind_spd_kt;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public void setLamportTimestamp(long lamportTimestamp) {
+        this.lamportTimestamp = lamportTimestamp;
+    }
+
     // Overriding the toString method to output the weather data as a JSON string
     @Override
     public String toString() {
@@ -0,0 +1,47 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WeatherDataTest {
+
+    @Test
+    public void keepsColonsCommasAndEscapesInStrings() {
+        WeatherData data = new WeatherData().fromJson("{ \"id\" : \"IDS60901\", \"name\": \"Adelaide, \\\"West\\\" Terrace\\u0021\","
+                + " \"local_date_time\": \"15/04:00pm\", \"air_temp\": 13.3, \"rel_hum\": \"60\", \"wind_spd_kmh\": -15 }");
+
+        Assert.assertEquals("IDS60901", data.getId());
+        Assert.assertEquals("Adelaide, \"West\" Terrace!", data.getName());
+        Assert.assertEquals("15/04:00pm", data.getLocalDateTime());
+        Assert.assertEquals(13.3, data.getAirTemp(), 0.0);
+        Assert.assertEquals(60, data.getRelHum());
+        Assert.assertEquals(-15, data.getWindSpdKmh());
+    }
+
+    @Test
+    public void skipsUnknownKeys() {
+        WeatherData data = new WeatherData().fromJson("{\"extra\": {\"a\": [1, \"}\"]}, \"id\": \"IDS60901\", \"flag\": true}");
+
+        Assert.assertEquals("IDS60901", data.getId());
+    }
+
+    @Test
+    public void readsSeveralObjectsFromOneText() {
+        String text = "{\"id\":\"a\"}\n{\"id\":\"b\"}";
+        WeatherData first = new WeatherData();
+        int end = first.fromJson(text, 0);
+        WeatherData second = new WeatherData();
+        second.fromJson(text, end + 1);
+
+        Assert.assertEquals("a", first.getId());
+        Assert.assertEquals("b", second.getId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonNumericValues() {
+        new WeatherData().fromJson("{\"id\": \"IDS60901\", \"air_temp\": \"warm\"}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnterminatedObjects() {
+        new WeatherData().fromJson("{\"id\": \"IDS60901\", \"air_temp\": 13.3");
+    }
+}
@@ -0,0 +1,102 @@
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.*;
+
+/**
+ * Writes WeatherData as JSON field by field, so a GET can return only some of the fields.
+ * With all fields selected the output is the same as Gson's.
+ */
+public class WeatherJson {
+
+    // Field names in the order Gson writes them
+    public static final List<String> FIELDS = Collections.unmodifiableList(Arrays.asList(
+            "id", "name", "state", "time_zone", "lat", "lon", "local_date_time", "local_date_time_full",
+            "air_temp", "apparent_t", "cloud", "dewpt", "press", "rel_hum", "wind_dir", "wind_spd_kmh",
+            "wind_spd_kt", "timestamp", "lamportTimestamp"));
+
+    /**
+     * Checks the requested field names and returns them as a set that always contains "id".
+     * Throws IllegalArgumentException for an unknown field.
+     */
+    public static Set<String> projection(Collection<String> requested) {
+        Set<String> fields = new HashSet<>();
+        fields.add("id");
+        for (String field : requested) {
+            if (!FIELDS.contains(field)) {
+                throw new IllegalArgumentException("Unknown field: " + field);
+            }
+            fields.add(field);
+        }
+        return fields;
+    }
+
+    // Writes the readings as a JSON array; a null projection writes every field
+    public static String toJson(Collection<WeatherData> readings, Set<String> fields) {
+        StringWriter text = new StringWriter();
+        try (JsonWriter out = new JsonWriter(text)) {
+            out.beginArray();
+            for (WeatherData data : readings) {
+                write(out, data, fields);
+            }
+            out.endArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("StringWriter does not throw", e);
+        }
+        return text.toString();
+    }
+
+    // Writes one reading as a JSON object with every field
+    public static String toJson(WeatherData data) {
+        StringWriter text = new StringWriter();
+        try (JsonWriter out = new JsonWriter(text)) {
+            write(out, data, null);
+        } catch (IOException e) {
+            throw new IllegalStateException("StringWriter does not throw", e);
+        }
+        return text.toString();
+    }
+
+    public static void write(JsonWriter out, WeatherData data, Set<String> fields) throws IOException {
+        out.beginObject();
+        for (String field : FIELDS) {
+            if (fields == null || fields.contains(field)) {
+                writeField(out, data, field);
+            }
+        }
+        out.endObject();
+    }
+
+    private static void writeField(JsonWriter out, WeatherData data, String field) throws IOException {
+        switch (field) {
+            case "id": string(out, field, data.getId()); break;
+            case "name": string(out, field, data.getName()); break;
+            case "state": string(out, field, data.getState()); break;
+            case "time_zone": string(out, field, data.getTimeZone()); break;
+            case "lat": out.name(field).value(data.getLat()); break;
+            case "lon": out.name(field).value(data.getLon()); break;
+            case "local_date_time": string(out, field, data.getLocalDateTime()); break;
+            case "local_date_time_full": string(out, field, data.getLocalDateTimeFull()); break;
+            case "air_temp": out.name(field).value(data.getAirTemp()); break;
+            case "apparent_t": out.name(field).value(data.getApparentT()); break;
+            case "cloud": string(out, field, data.getCloud()); break;
+            case "dewpt": out.name(field).value(data.getDewpt()); break;
+            case "press": out.name(field).value(data.getPress()); break;
+            case "rel_hum": out.name(field).value(data.getRelHum()); break;
+            case "wind_dir": string(out, field, data.getWindDir()); break;
+            case "wind_spd_kmh": out.name(field).value(data.getWindSpdKmh()); break;
+            case "wind_spd_kt": out.name(field).value(data.getWindSpdKt()); break;
+            case "timestamp": out.name(field).value(data.getTimestamp()); break;
+            case "lamportTimestamp": out.name(field).value(data.getLamportTimestamp()); break;
+            default: throw new IllegalArgumentException("Unknown field: " + field);
+        }
+    }
+
+    // Like Gson, null strings are left out
+    private static void string(JsonWriter out, String field, String value) throws IOException {
+        if (value != null) {
+            out.name(field).value(value);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+import com.google.gson.Gson;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class WeatherJsonTest {
+
+    private static final String STATION = "{\"id\":\"IDS60901\",\"name\":\"Adelaide\",\"state\":\"SA\",\"time_zone\":\"CST\",\"lat\":-34.9,\"lon\":138.6,"
+            + "\"local_date_time\":\"15/04\",\"local_date_time_full\":\"20230715160000\",\"air_temp\":13.3,\"apparent_t\":9.5,"
+            + "\"cloud\":\"Partly cloudy\",\"dewpt\":5.7,\"press\":1023.9,\"rel_hum\":60,\"wind_dir\":\"S\",\"wind_spd_kmh\":15,\"wind_spd_kt\":8}";
+
+    @Test
+    public void writesTheSameJsonAsGson() {
+        List<WeatherData> readings = Collections.singletonList(new WeatherData(STATION, 3, 1727943536434L));
+
+        Assert.assertEquals(new Gson().toJson(readings), WeatherJson.toJson(readings, null));
+    }
+
+    @Test
+    public void projectsRequestedFieldsAndId() {
+        List<WeatherData> readings = Collections.singletonList(new WeatherData(STATION, 3, 1727943536434L));
+
+        String json = WeatherJson.toJson(readings, WeatherJson.projection(Arrays.asList("press", "air_temp")));
+
+        Assert.assertEquals("[{\"id\":\"IDS60901\",\"air_temp\":13.3,\"press\":1023.9}]", json);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownFields() {
+        WeatherJson.projection(Collections.singletonList("humidity"));
+    }
+}
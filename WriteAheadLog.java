@@ -0,0 +1,308 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of accepted PUTs.
+ *
+ * Every stored WeatherData is written as one JSON line. Writers hand their record to a single commit
+ * thread and wait; the commit thread collects everything that arrives within the batching window,
+ * writes it in Lamport order and syncs the file once for the whole group (group commit).
+ *
+ * close() stops taking records, lets the commit thread write everything that was already handed to it
+ * and closes the segment only after that thread has finished.
+ *
+ * The log is split into numbered segments (wal-000001.log, ...). rotate() starts a new segment so the
+ * older ones can be deleted once a snapshot containing their records has been written.
+ */
+public class WriteAheadLog implements Closeable {
+
+    public enum FsyncPolicy {
+        ALWAYS,    // sync every group before the writers are acknowledged
+        INTERVAL,  // acknowledge after the write, sync at most once per interval
+        NEVER      // leave syncing to the operating system
+    }
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int MAX_BATCH = 4096;
+
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final long batchWindowMs;
+    private final long fsyncIntervalMs;
+    private final Gson gson = new Gson();
+
+    private final BlockingQueue<PendingRecord> pending = new LinkedBlockingQueue<>();
+    private final Object segmentLock = new Object();
+    private final Object enqueueLock = new Object();  // a record is either queued before close() or refused
+    private final Thread committer;
+    private volatile boolean closed;
+
+    private FileChannel segment;
+    private long segmentNumber;
+    private long segmentSize;
+    private long lastSync = System.currentTimeMillis();
+
+    public WriteAheadLog(Path directory, FsyncPolicy fsyncPolicy, long batchWindowMs, long fsyncIntervalMs) throws IOException {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.batchWindowMs = batchWindowMs;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+
+        Files.createDirectories(directory);
+        List<Path> existing = listSegments();
+        segmentNumber = existing.isEmpty() ? 1 : segmentNumber(existing.get(existing.size() - 1)) + 1;
+        openSegment();
+
+        committer = new Thread(this::commitLoop, "wal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    // Builds the log from system properties, e.g. -Daggregation.wal.fsync=interval
+    public static WriteAheadLog fromSystemProperties() throws IOException {
+        Path directory = Paths.get(System.getProperty("aggregation.wal.dir", "wal"));
+        FsyncPolicy policy = FsyncPolicy.valueOf(System.getProperty("aggregation.wal.fsync", "always").toUpperCase());
+        long batchWindowMs = Long.getLong("aggregation.wal.batchWindowMs", 2);
+        long fsyncIntervalMs = Long.getLong("aggregation.wal.fsyncIntervalMs", 1000);
+        return new WriteAheadLog(directory, policy, batchWindowMs, fsyncIntervalMs);
+    }
+
+    /**
+     * Appends one record and waits until it has been committed according to the fsync policy.
+     */
+    public void append(WeatherData weatherData) throws IOException {
+        appendAll(Collections.singletonList(weatherData));
+    }
+
+    /**
+     * Appends several records and waits until they have been committed. The records always go into
+     * the same group, so a batch PUT costs a single write and a single fsync.
+     */
+    public void appendAll(List<WeatherData> readings) throws IOException {
+        if (readings.isEmpty()) {
+            return;
+        }
+        PendingRecord record = new PendingRecord(readings);
+        synchronized (enqueueLock) {
+            if (closed) {
+                throw new IOException("Write-ahead log is closed");
+            }
+            pending.add(record);
+        }
+        try {
+            record.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the write-ahead log", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Write-ahead log append failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Closes the current segment and starts a new one.
+     * Returns the closed segments, which can be deleted once a snapshot covering them is safely written.
+     */
+    public List<Path> rotate() throws IOException {
+        synchronized (segmentLock) {
+            segment.force(false);
+            segment.close();
+            List<Path> sealed = listSegments();
+            segmentNumber++;
+            openSegment();
+            return sealed;
+        }
+    }
+
+    public void deleteSegments(List<Path> segments) throws IOException {
+        for (Path path : segments) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // Reads every record of every segment, oldest segment first
+    public void replay(Consumer<WeatherData> consumer) throws IOException {
+        for (Path path : listSegments()) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        WeatherData weatherData = gson.fromJson(line, WeatherData.class);
+                        if (weatherData != null && weatherData.getId() != null) {
+                            consumer.accept(weatherData);
+                        }
+                    } catch (JsonSyntaxException e) {
+                        // a torn last line from a crash in the middle of a write, nothing after it was acknowledged
+                        System.err.println("Skipping damaged write-ahead log record in " + path.getFileName());
+                    }
+                }
+            }
+        }
+    }
+
+    // Size of the segment currently being written, used to decide when to compact
+    public long getSegmentSize() {
+        synchronized (segmentLock) {
+            return segmentSize;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (enqueueLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        // the committer drains the queue before it stops; closing the segment under it would fail its writes
+        boolean interrupted = false;
+        while (committer.isAlive()) {
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // only left over if the committer itself was interrupted
+        PendingRecord record;
+        while ((record = pending.poll()) != null) {
+            record.done.completeExceptionally(new IOException("Write-ahead log is closed"));
+        }
+
+        synchronized (segmentLock) {
+            segment.force(false);
+            segment.close();
+        }
+    }
+
+    private void commitLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        while (!closed || !pending.isEmpty()) {
+            try {
+                PendingRecord first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    syncIfDue();
+                    continue;
+                }
+                batch.add(first);
+                if (batchWindowMs > 0) {
+                    Thread.sleep(batchWindowMs);  // give concurrent writers a chance to join this group
+                }
+                pending.drainTo(batch, MAX_BATCH - 1);
+            } catch (InterruptedException e) {
+                // not interrupted on purpose, an interrupt would also close the FileChannel mid-write
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<PendingRecord> batch) {
+        List<WeatherData> readings = new ArrayList<>();
+        for (PendingRecord record : batch) {
+            readings.addAll(record.readings);
+        }
+        readings.sort(Comparator.comparingLong(WeatherData::getLamportTimestamp));
+
+        StringBuilder lines = new StringBuilder();
+        for (WeatherData weatherData : readings) {
+            lines.append(gson.toJson(weatherData)).append('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+
+        try {
+            synchronized (segmentLock) {
+                int written = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    segment.write(buffer);
+                }
+                segmentSize += written;
+                if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                    segment.force(false);
+                    lastSync = System.currentTimeMillis();
+                }
+            }
+            syncIfDue();
+            for (PendingRecord record : batch) {
+                record.done.complete(null);
+            }
+        } catch (IOException e) {
+            for (PendingRecord record : batch) {
+                record.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void syncIfDue() {
+        if (fsyncPolicy != FsyncPolicy.INTERVAL || System.currentTimeMillis() - lastSync < fsyncIntervalMs) {
+            return;
+        }
+        synchronized (segmentLock) {
+            try {
+                segment.force(false);
+            } catch (IOException e) {
+                System.err.println("Error syncing write-ahead log: " + e.getMessage());
+            }
+            lastSync = System.currentTimeMillis();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        Path path = directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+        segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = segment.size();
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = new ArrayList<>();
+            files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).forEach(segments::add);
+            segments.sort(Comparator.comparingLong(WriteAheadLog::segmentNumber));
+            return segments;
+        }
+    }
+
+    private static long segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // One append or appendAll call, acknowledged once its readings are committed
+    private static class PendingRecord {
+        final List<WeatherData> readings;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingRecord(List<WeatherData> readings) {
+            this.readings = readings;
+        }
+    }
+}
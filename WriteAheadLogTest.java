@@ -0,0 +1,119 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+public class WriteAheadLogTest {
+
+    private static WeatherData reading(String id, int lamportTimestamp) {
+        String json = "{\"id\":\"" + id + "\",\"name\":\"Adelaide\",\"state\":\"SA\",\"time_zone\":\"CST\",\"lat\":-34.9,\"lon\":138.6,"
+                + "\"local_date_time\":\"15/04\",\"local_date_time_full\":\"20230715160000\",\"air_temp\":13.3,\"apparent_t\":9.5,"
+                + "\"cloud\":\"Partly cloudy\",\"dewpt\":5.7,\"press\":1023.9,\"rel_hum\":60,\"wind_dir\":\"S\",\"wind_spd_kmh\":15,\"wind_spd_kt\":8}";
+        return new WeatherData(json, lamportTimestamp, System.currentTimeMillis());
+    }
+
+    @Test
+    public void concurrentAppendsAreAllReplayed() throws Exception {
+        Path directory = Files.createTempDirectory("wal-test");
+        WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.ALWAYS, 2, 1000);
+
+        Thread[] writers = new Thread[8];
+        for (int t = 0; t < writers.length; t++) {
+            int writer = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    try {
+                        log.append(reading("station" + writer + "-" + i, writer * 100 + i));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        log.close();
+
+        Set<String> replayed = new HashSet<>();
+        try (WriteAheadLog reopened = new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.NEVER, 0, 1000)) {
+            reopened.replay(data -> replayed.add(data.getId()));
+        }
+        Assert.assertEquals(400, replayed.size());
+    }
+
+    @Test
+    public void batchIsCommittedInLamportOrder() throws Exception {
+        Path directory = Files.createTempDirectory("wal-test");
+        WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.ALWAYS, 0, 1000);
+
+        log.appendAll(Arrays.asList(reading("IDS60902", 3), reading("IDS60901", 2), reading("IDS60903", 4)));
+        log.appendAll(Collections.emptyList());
+
+        List<String> replayed = new ArrayList<>();
+        log.replay(data -> replayed.add(data.getId()));
+        log.close();
+
+        Assert.assertEquals(Arrays.asList("IDS60901", "IDS60902", "IDS60903"), replayed);
+    }
+
+    @Test
+    public void rotatedSegmentsCanBeDeleted() throws Exception {
+        Path directory = Files.createTempDirectory("wal-test");
+        WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.ALWAYS, 0, 1000);
+
+        log.append(reading("IDS60901", 1));
+        List<Path> sealed = log.rotate();
+        log.append(reading("IDS60902", 2));
+        log.deleteSegments(sealed);
+
+        List<String> replayed = new ArrayList<>();
+        log.replay(data -> replayed.add(data.getId()));
+        log.close();
+
+        Assert.assertEquals(Collections.singletonList("IDS60902"), replayed);
+    }
+
+    @Test
+    public void appendsRacingCloseEitherCommitOrFail() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            Path directory = Files.createTempDirectory("wal-test");
+            WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.NEVER, 0, 1000);
+            Set<String> acknowledged = Collections.synchronizedSet(new HashSet<>());
+
+            Thread[] writers = new Thread[4];
+            for (int t = 0; t < writers.length; t++) {
+                int writer = t;
+                writers[t] = new Thread(() -> {
+                    for (int i = 0; ; i++) {
+                        String id = "station" + writer + "-" + i;
+                        try {
+                            log.append(reading(id, i));
+                            acknowledged.add(id);
+                        } catch (IOException e) {
+                            return;  // closed
+                        }
+                    }
+                });
+                writers[t].start();
+            }
+            Thread.sleep(5);
+            log.close();
+
+            // no writer may be left waiting for a commit that never comes
+            for (Thread writer : writers) {
+                writer.join(5000);
+                Assert.assertFalse("writer still waiting after close", writer.isAlive());
+            }
+            Set<String> replayed = new HashSet<>();
+            try (WriteAheadLog reopened = new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.NEVER, 0, 1000)) {
+                reopened.replay(data -> replayed.add(data.getId()));
+            }
+            Assert.assertTrue(replayed.containsAll(acknowledged));
+        }
+    }
+}